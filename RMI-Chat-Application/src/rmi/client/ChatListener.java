@@ -0,0 +1,156 @@
+package rmi.client;
+
+import rmi.shared.ChatMessage;
+import rmi.shared.TransferOffer;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Receives the events of a {@link ChatSession}. Methods are called one at a time on the session's event thread, in
+ * the order the server sent the events. All methods do nothing by default.
+ */
+public interface ChatListener {
+
+    /**
+     * A new user joined the chat room
+     *
+     * @param username
+     */
+    default void onUserJoined(String username) {
+    }
+
+    /**
+     * A user left the chat room. Not called for the peer of this session, see {@link #onPeerDisconnected(String)}.
+     *
+     * @param username
+     */
+    default void onUserLeft(String username) {
+    }
+
+    /**
+     * Another user started a conversation with this session
+     *
+     * @param username
+     */
+    default void onPeeredUp(String username) {
+    }
+
+    /**
+     * Two other users peered up
+     *
+     * @param from
+     * @param to
+     */
+    default void onStatusChanged(String from, String to) {
+    }
+
+    /**
+     * Two users ended their conversation. One of them may be this session's user.
+     *
+     * @param from
+     * @param to
+     */
+    default void onPeerReturnedHomePage(String from, String to) {
+    }
+
+    /**
+     * The peer of this session left the chat room in the middle of the conversation
+     *
+     * @param username
+     */
+    default void onPeerDisconnected(String username) {
+    }
+
+    /**
+     * Messages of the conversation, in the order they were sent
+     *
+     * @param messages
+     */
+    default void onMessages(List<ChatMessage> messages) {
+    }
+
+    /**
+     * Messages other users have left for this session, e.g. while it was offline
+     *
+     * @param messages
+     */
+    default void onMailboxMessages(List<ChatMessage> messages) {
+    }
+
+    /**
+     * A message sent to one of the chat rooms of this session
+     *
+     * @param roomName
+     * @param message
+     */
+    default void onRoomMessage(String roomName, ChatMessage message) {
+    }
+
+    /**
+     * Someone joined or left one of the chat rooms of this session
+     *
+     * @param roomName
+     * @param username
+     * @param joined
+     */
+    default void onRoomMembershipChanged(String roomName, String username, boolean joined) {
+    }
+
+    /**
+     * The local roster has been updated
+     */
+    default void onRosterChanged() {
+    }
+
+    /**
+     * Messages to the peer could not be sent, e.g. because the server has rejected them with a
+     * {@link rmi.shared.RateLimitedException}. They are not sent again.
+     *
+     * @param peerUserName
+     * @param messages
+     * @param e
+     */
+    default void onSendFailed(String peerUserName, List<String> messages, Exception e) {
+    }
+
+    /**
+     * The server has disconnected this session, e.g. because its lease has expired
+     */
+    default void onDisconnected() {
+    }
+
+    /**
+     * The session has been resumed after the server could not be reached, e.g. because it has been restarted. The
+     * roster has been loaded again.
+     */
+    default void onResumed() {
+    }
+
+    /**
+     * The peer offers a file, see {@link ChatSession#acceptFile(String)}
+     *
+     * @param offer
+     */
+    default void onFileOffered(TransferOffer offer) {
+    }
+
+    /**
+     * A file has been sent or received completely
+     *
+     * @param offer
+     * @param file  the file sent or where the received file has been saved
+     */
+    default void onTransferCompleted(TransferOffer offer, Path file) {
+    }
+
+    /**
+     * A file transfer has been declined, cancelled or has failed. A received part is kept until the file is offered
+     * again.
+     *
+     * @param offer
+     * @param reason
+     */
+    default void onTransferFailed(TransferOffer offer, String reason) {
+    }
+}
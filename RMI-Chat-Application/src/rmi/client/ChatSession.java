@@ -0,0 +1,769 @@
+package rmi.client;
+
+import rmi.shared.ChatConfig;
+import rmi.shared.ChatMessage;
+import rmi.shared.ChatSocketFactory;
+import rmi.shared.FileChunk;
+import rmi.shared.HistoryPage;
+import rmi.shared.InterestFilter;
+import rmi.shared.NameMatch;
+import rmi.shared.PresenceDelta;
+import rmi.shared.PresenceSnapshot;
+import rmi.shared.PresenceStatus;
+import rmi.shared.RMIClientInterface;
+import rmi.shared.RMIOperationsUtil;
+import rmi.shared.RMIServerInterface;
+import rmi.shared.RateLimitedException;
+import rmi.shared.TransferOffer;
+import rmi.shared.Transport;
+import rmi.shared.UserPage;
+import rmi.shared.UserPresence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless chat client. Talks to the server through an asynchronous API and reports what happens to a
+ * {@link ChatListener}. Callbacks from the server only update the session state and queue an event, they return
+ * immediately; listeners are called one at a time on the session's event queue.
+ * <p>
+ * Sessions share a small thread pool, so one JVM can host many of them, e.g. for bots or load tests.
+ */
+public class ChatSession extends UnicastRemoteObject implements RMIClientInterface {
+    private static final long serialVersionUID = 1L;
+    private static final ScheduledExecutorService SHARED_EXECUTOR = Executors.newScheduledThreadPool(
+            ChatConfig.getDefault().getInt("rmi.chat.client.threads",
+                    Math.max(4, Runtime.getRuntime().availableProcessors() * 2)), new SessionThreadFactory());
+
+    @FunctionalInterface
+    private interface ServerCall<T> {
+        T call() throws IOException;
+    }
+
+    private volatile RMIServerInterface serverInterface;
+    // Set if the session has looked the server up itself and can do so again after a restart of the server
+    private final ChatConfig reconnectConfig;
+    private final ChatListener listener;
+    private final SerialExecutor events = new SerialExecutor(SHARED_EXECUTOR);
+    private final SerialExecutor commands = new SerialExecutor(SHARED_EXECUTOR);
+    private final MessageBatcher messageBatcher;
+    private final FileTransfers transfers;
+
+    private volatile String username;
+    private volatile boolean isBusy = false;
+    private volatile String peerName = null;
+    private volatile ScheduledFuture<?> heartbeat;
+    private volatile String resumeToken;
+
+    // Local copy of the chat room, kept up to date by presence deltas pushed from the server
+    private final Map<String, UserPresence> roster = new LinkedHashMap<>();
+    private long rosterVersion = -1;
+    private volatile InterestFilter interest = InterestFilter.everyone();
+
+    public ChatSession(RMIServerInterface serverInterface, ChatListener listener) throws RemoteException {
+        this(serverInterface, listener, ChatConfig.getDefault());
+    }
+
+    /**
+     * @param serverInterface
+     * @param listener
+     * @param config          batching and transport settings of the session
+     * @throws RemoteException
+     */
+    public ChatSession(RMIServerInterface serverInterface, ChatListener listener, ChatConfig config)
+            throws RemoteException {
+        this(serverInterface, listener, config, ChatSocketFactory.fromConfig(config), null);
+    }
+
+    private ChatSession(RMIServerInterface serverInterface, ChatListener listener, ChatConfig config,
+                        ChatSocketFactory socketFactory, ChatConfig reconnectConfig) throws RemoteException {
+        super(0, socketFactory, socketFactory);
+        this.serverInterface = serverInterface;
+        this.reconnectConfig = reconnectConfig;
+        this.listener = listener;
+        this.messageBatcher = new MessageBatcher((peer, messages) -> this.serverInterface.sendMessagesToPeer(peer,
+                messages), this::onSendFailed,
+                config.getLong("rmi.chat.client.batchWindowMillis", MessageBatcher.DEFAULT_WINDOW_MILLIS),
+                config.getInt("rmi.chat.client.maxBatchSize", MessageBatcher.DEFAULT_MAX_BATCH_SIZE),
+                SHARED_EXECUTOR);
+        this.transfers = new FileTransfers(() -> this.serverInterface, () -> this.username, listener, events,
+                new SerialExecutor(SHARED_EXECUTOR), config);
+    }
+
+    /**
+     * Creates a session with the server at the configured host. If the server cannot be reached later on, e.g.
+     * because it has been restarted, the session looks it up again and resumes.
+     *
+     * @param listener
+     * @param config
+     * @return session
+     * @throws RemoteException
+     * @throws NotBoundException
+     */
+    public static ChatSession connect(ChatListener listener, ChatConfig config)
+            throws RemoteException, NotBoundException {
+        return new ChatSession(lookup(config), listener, config, ChatSocketFactory.fromConfig(config), config);
+    }
+
+    /**
+     * Finds the server at the configured host. With the NIO transport the server interface is a connection to the
+     * server's NIO port, otherwise it is looked up in the registry.
+     *
+     * @param config
+     * @return server interface
+     * @throws RemoteException
+     * @throws NotBoundException
+     */
+    public static RMIServerInterface lookup(ChatConfig config) throws RemoteException, NotBoundException {
+        if (config.getEnum("rmi.chat.transport", Transport.class, Transport.RMI) == Transport.NIO) {
+            return NioServerConnection.connect(config.getHost(),
+                    config.getInt("rmi.chat.nio.port", ChatConfig.DEFAULT_NIO_PORT), config);
+        }
+        return lookup(config.getHost(), config.getPort());
+    }
+
+    /**
+     * Looks through the registry to find the shared server interface
+     *
+     * @param host
+     * @param port
+     * @return server interface
+     * @throws RemoteException
+     * @throws NotBoundException
+     */
+    public static RMIServerInterface lookup(String host, int port) throws RemoteException, NotBoundException {
+        Registry registry = LocateRegistry.getRegistry(host, port);
+        return (RMIServerInterface) registry.lookup("ServerInterface");
+    }
+
+    /**
+     * Joins the chat room. On success the roster is loaded and the lease is renewed periodically.
+     *
+     * @param username
+     * @return false if the username has been taken already or is not valid
+     */
+    public CompletableFuture<Boolean> join(String username) {
+        return submit(() -> {
+            String previousUsername = this.username;
+            this.username = username;
+            String token = serverInterface.openSession(username, this);
+            if (token == null) {
+                this.username = previousUsername;
+                return false;
+            }
+            resumeToken = token;
+            refreshRoster();
+            startHeartbeat();
+            return true;
+        });
+    }
+
+    /**
+     * Sets which users the roster and the notifications are about, the roster is loaded again
+     *
+     * @param filter null for everyone
+     * @return future completed when the roster has been loaded
+     */
+    public CompletableFuture<Void> setInterest(InterestFilter filter) {
+        return submit(() -> {
+            interest = filter != null ? filter : InterestFilter.everyone();
+            serverInterface.setInterestFilter(username, filter);
+            refreshRoster();
+            return null;
+        });
+    }
+
+    /**
+     * Starts a conversation with an available user
+     *
+     * @param peerUserName
+     * @return false if there is no such user or the user is busy
+     */
+    public CompletableFuture<Boolean> peerUpWith(String peerUserName) {
+        return submit(() -> {
+            boolean peered = serverInterface.peerUpWith(username, peerUserName);
+            if (peered) {
+                // Server confirms the status asynchronously, don't drop the first messages until then
+                isBusy = true;
+                peerName = peerUserName;
+            }
+            return peered;
+        });
+    }
+
+    /**
+     * Sends a message to the peer. Messages are batched and sent in order, nothing is sent without a peer.
+     *
+     * @param message
+     */
+    public void sendMessage(String message) {
+        String peer = peerName;
+        if (isBusy && peer != null) {
+            messageBatcher.add(peer, message);
+        }
+    }
+
+    /**
+     * RMI wraps exceptions thrown by the server, the listener gets a rejection by the rate limiter as it is
+     */
+    private void onSendFailed(String peer, List<String> messages, Exception e) {
+        Exception cause = e.getCause() instanceof RateLimitedException ? (RateLimitedException) e.getCause() : e;
+        events.execute(() -> listener.onSendFailed(peer, messages, cause));
+    }
+
+    /**
+     * Ends the conversation and returns to the home page. Messages sent before are delivered first.
+     *
+     * @return future completed when the server has been told
+     */
+    public CompletableFuture<Void> returnToHomePage() {
+        return submit(() -> {
+            isBusy = false;
+            peerName = null;
+            serverInterface.returnToHomePage(username);
+            // Presence changes are not sent during a conversation
+            refreshRoster();
+            return null;
+        });
+    }
+
+    /**
+     * Leaves the chat room for good and releases the resources of the session
+     *
+     * @return future completed when the server has been told
+     */
+    public CompletableFuture<Void> disconnect() {
+        return submit(() -> {
+            stopHeartbeat();
+            transfers.stopAll("The session has been closed");
+            serverInterface.disconnectFromChatServer(username);
+            UnicastRemoteObject.unexportObject(this, true);
+            close(serverInterface);
+            return null;
+        });
+    }
+
+    /**
+     * Offers a file to the peer. The file is hashed first, offering a file the peer has received in part before
+     * resumes it.
+     *
+     * @param file
+     * @param direct true to send the file over a direct connection to the peer, false to relay it through the server
+     * @return future completed with the offer, null if the server has refused it
+     */
+    public CompletableFuture<TransferOffer> sendFile(Path file, boolean direct) {
+        String peer = peerName;
+        if (!isBusy || peer == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("There is no peer to send the file to"));
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return transfers.prepare(file, direct);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, SHARED_EXECUTOR).thenCompose(offer -> submit(() -> {
+            if (serverInterface.offerTransfer(username, offer)) {
+                return offer;
+            }
+            transfers.discard(offer);
+            return null;
+        }));
+    }
+
+    /**
+     * Accepts a file offered by the peer, see {@link ChatListener#onFileOffered(TransferOffer)}
+     *
+     * @param transferId
+     * @return future completed when the server has been told
+     */
+    public CompletableFuture<Void> acceptFile(String transferId) {
+        return submit(() -> {
+            transfers.accept(transferId);
+            return null;
+        });
+    }
+
+    /**
+     * Declines a file offered by the peer
+     *
+     * @param transferId
+     * @return future completed when the server has been told
+     */
+    public CompletableFuture<Void> declineFile(String transferId) {
+        return submit(() -> {
+            transfers.decline(transferId);
+            return null;
+        });
+    }
+
+    /**
+     * Cancels a file transfer in either direction. The part received so far is kept, so the transfer can be resumed.
+     *
+     * @param transferId
+     * @return future completed when the server has been told
+     */
+    public CompletableFuture<Void> cancelTransfer(String transferId) {
+        return submit(() -> {
+            transfers.cancel(transferId, username + " has cancelled the transfer");
+            return null;
+        });
+    }
+
+    /**
+     * Creates a chat room and joins it
+     *
+     * @param roomName
+     * @return false if there is a room with that name already or the name is not valid
+     */
+    public CompletableFuture<Boolean> createRoom(String roomName) {
+        return submit(() -> serverInterface.createRoom(username, roomName));
+    }
+
+    /**
+     * Joins an existing chat room
+     *
+     * @param roomName
+     * @return false if there is no such room
+     */
+    public CompletableFuture<Boolean> joinRoom(String roomName) {
+        return submit(() -> serverInterface.joinRoom(username, roomName));
+    }
+
+    /**
+     * Leaves a chat room
+     *
+     * @param roomName
+     * @return future completed when the server has been told
+     */
+    public CompletableFuture<Void> leaveRoom(String roomName) {
+        return submit(() -> {
+            serverInterface.leaveRoom(username, roomName);
+            return null;
+        });
+    }
+
+    /**
+     * Sends a message to every member of a chat room, including this session
+     *
+     * @param roomName
+     * @param message
+     * @return future completed with false if the room does not exist or this session is not a member
+     */
+    public CompletableFuture<Boolean> sendMessageToRoom(String roomName, String message) {
+        return submit(() -> serverInterface.sendMessageToRoom(username, roomName, message));
+    }
+
+    /**
+     * Leaves a message for a user. Users who are offline get it when they join again.
+     *
+     * @param recipientName
+     * @param message
+     * @return future completed with false if the recipient's mailbox is full
+     */
+    public CompletableFuture<Boolean> sendMessageToUser(String recipientName, String message) {
+        return submit(() -> serverInterface.sendMessageToUser(username, recipientName, message));
+    }
+
+    /**
+     * Searches the users of the chat room on the server, including users the roster does not follow
+     *
+     * @param text   search text, empty for all users
+     * @param match
+     * @param status only users with this status, null for any
+     * @param cursor cursor of the previous page, null for the first page
+     * @param limit  maximum number of users
+     * @return page of users
+     */
+    public CompletableFuture<UserPage> findUsers(String text, NameMatch match, PresenceStatus status, String cursor,
+                                                 int limit) {
+        return submit(() -> serverInterface.findUsers(text, match, status, cursor, limit));
+    }
+
+    /**
+     * Returns names of all chat rooms on the server
+     *
+     * @return room names
+     */
+    public CompletableFuture<List<String>> getRoomNames() {
+        return submit(serverInterface::getRoomNames);
+    }
+
+    /**
+     * Returns a page of stored messages of a conversation the session's user takes part in
+     *
+     * @param conversation id made by {@link RMIOperationsUtil#directConversation(String, String)} or
+     *                     {@link RMIOperationsUtil#roomConversation(String)}
+     * @param fromSequence sequence number of the first message, 0 or less for the latest messages
+     * @param limit
+     * @return page
+     */
+    public CompletableFuture<HistoryPage> getHistory(String conversation, long fromSequence, int limit) {
+        return submit(() -> serverInterface.getHistory(username, conversation, fromSequence, limit));
+    }
+
+    /**
+     * Returns users of the chat room from the local roster, without calling the server. The session's own user is
+     * left out.
+     *
+     * @param status
+     * @return usernames
+     */
+    public List<String> getUsers(PresenceStatus status) {
+        List<String> users = new ArrayList<>();
+        synchronized (roster) {
+            roster.values()
+                    .stream()
+                    .filter(user -> user.getStatus() == status && !user.getUserName().equalsIgnoreCase(username))
+                    .forEach(user -> users.add(user.getUserName()));
+        }
+        return users;
+    }
+
+    public boolean isBusy() {
+        return isBusy;
+    }
+
+    public String getPeerName() {
+        return peerName;
+    }
+
+    /**
+     * Runs a server call on the command queue after the pending messages have been sent, so calls are made in the
+     * order they were requested and never overtake earlier messages.
+     */
+    private <T> CompletableFuture<T> submit(ServerCall<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        messageBatcher.flush().thenRun(() -> commands.execute(() -> {
+            try {
+                result.complete(call.call());
+            } catch (ServerException e) {
+                // RMI wraps remote exceptions thrown by the server, pass on the server's own
+                result.completeExceptionally(e.getCause() instanceof RateLimitedException ? e.getCause() : e);
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        }));
+        return result;
+    }
+
+    private void startHeartbeat() throws RemoteException {
+        long period = Math.max(1, serverInterface.renewLease(username) / 3);
+        heartbeat = SHARED_EXECUTOR.scheduleAtFixedRate(() -> {
+            try {
+                if (serverInterface.renewLease(username) == 0 && !resume(serverInterface)) {
+                    stopHeartbeat();
+                    events.execute(listener::onDisconnected);
+                }
+            } catch (RemoteException e) {
+                reconnect(e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Looks the server up again and resumes the session, e.g. after the server has been restarted
+     *
+     * @param failure why the server could not be reached
+     */
+    private void reconnect(RemoteException failure) {
+        if (reconnectConfig == null) {
+            System.err.println("Server cannot be reached at the moment: " + failure.getMessage());
+            return;
+        }
+        RMIServerInterface server;
+        try {
+            server = lookup(reconnectConfig);
+        } catch (RemoteException | NotBoundException e) {
+            System.err.println("Server cannot be reached at the moment: " + e.getMessage());
+            return;
+        }
+        try {
+            if (!resume(server)) {
+                close(server);
+                stopHeartbeat();
+                events.execute(listener::onDisconnected);
+            }
+        } catch (RemoteException e) {
+            close(server);
+            System.err.println("Could not resume the session: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reattaches the session on the given server and loads the roster again
+     *
+     * @param server
+     * @return false if the server does not know the session
+     * @throws RemoteException
+     */
+    private boolean resume(RMIServerInterface server) throws RemoteException {
+        String token = resumeToken;
+        if (token == null || !server.resumeSession(username, token, this)) {
+            return false;
+        }
+        RMIServerInterface previous = serverInterface;
+        serverInterface = server;
+        if (previous != server) {
+            close(previous);
+        }
+        // A restarted server does not know the transfers, they are resumed by offering the files again
+        transfers.stopAll("The connection to the server has been lost");
+        synchronized (roster) {
+            // A restarted server counts the presence versions from the start
+            rosterVersion = -1;
+        }
+        refreshRoster();
+        UserPresence self;
+        synchronized (roster) {
+            self = roster.get(username.toLowerCase(Locale.ROOT));
+        }
+        String peer = peerName;
+        if (self != null && self.getStatus() == PresenceStatus.AVAILABLE && peer != null) {
+            // The chat has not survived the restart, e.g. because the peer was connected to another node
+            isBusy = false;
+            peerName = null;
+            events.execute(() -> listener.onPeerDisconnected(peer));
+        }
+        events.execute(listener::onResumed);
+        return true;
+    }
+
+    private static void close(RMIServerInterface server) {
+        if (server instanceof Closeable) {
+            try {
+                ((Closeable) server).close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void stopHeartbeat() {
+        ScheduledFuture<?> current = heartbeat;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+
+    /**
+     * Replaces the local roster with a snapshot from the server
+     *
+     * @throws RemoteException
+     */
+    private void refreshRoster() throws RemoteException {
+        PresenceSnapshot snapshot;
+        try {
+            snapshot = serverInterface.getPresenceSnapshot();
+        } catch (RemoteException e) {
+            RateLimitedException limited = e instanceof RateLimitedException ? (RateLimitedException) e
+                    : e.getCause() instanceof RateLimitedException ? (RateLimitedException) e.getCause() : null;
+            if (limited == null) {
+                throw e;
+            }
+            // The snapshot is limited for all clients together, e.g. while many of them join at once
+            SHARED_EXECUTOR.schedule(this::refreshRosterLater, limited.getRetryAfterMillis(), TimeUnit.MILLISECONDS);
+            return;
+        }
+        synchronized (roster) {
+            if (snapshot.getVersion() < rosterVersion) {
+                return;
+            }
+            roster.clear();
+            InterestFilter filter = interest;
+            snapshot.getUsers().stream()
+                    .filter(user -> filter.matches(user.getUserName()) || user.getUserName().equalsIgnoreCase(username))
+                    .forEach(this::applyPresence);
+            rosterVersion = snapshot.getVersion();
+        }
+        events.execute(listener::onRosterChanged);
+    }
+
+    private void refreshRosterLater() {
+        commands.execute(() -> {
+            try {
+                refreshRoster();
+            } catch (RemoteException e) {
+                System.err.println("Could not refresh the roster: " + e.getMessage());
+            }
+        });
+    }
+
+    private void applyPresence(UserPresence presence) {
+        String key = presence.getUserName().toLowerCase(Locale.ROOT);
+        if (presence.getStatus() == PresenceStatus.OFFLINE) {
+            roster.remove(key);
+        } else {
+            roster.put(key, presence);
+        }
+    }
+
+    @Override
+    public String getUserName() throws RemoteException {
+        return username;
+    }
+
+    @Override
+    public boolean getIsBusy() throws RemoteException {
+        return isBusy;
+    }
+
+    @Override
+    public void setIsBusy(boolean isBusy) throws RemoteException {
+        this.isBusy = isBusy;
+    }
+
+    /**
+     * Applies status changes of other users to the local roster on the event queue. The server may collect changes
+     * into digests, so the roster can lag behind the notifications, the listener is told by
+     * {@link ChatListener#onRosterChanged()}. A delta applies if it starts at or before
+     * the version of the roster, statuses are absolute. If changes have been missed, e.g. while the user was busy,
+     * the whole roster is fetched again.
+     *
+     * @param delta
+     * @throws RemoteException
+     */
+    @Override
+    public void applyPresenceDelta(PresenceDelta delta) throws RemoteException {
+        events.execute(() -> {
+            synchronized (roster) {
+                if (rosterVersion < 0 || delta.getVersion() <= rosterVersion) {
+                    // Either the roster has not been loaded yet or the snapshot already contains these changes
+                    return;
+                }
+                if (delta.getBaseVersion() == PresenceDelta.UNKNOWN_BASE || delta.getBaseVersion() > rosterVersion) {
+                    refreshRosterLater();
+                    return;
+                }
+                delta.getChanges().forEach(this::applyPresence);
+                rosterVersion = delta.getVersion();
+            }
+            listener.onRosterChanged();
+        });
+    }
+
+    @Override
+    public void notifyNewUserJoined(String username) throws RemoteException {
+        events.execute(() -> listener.onUserJoined(username));
+    }
+
+    @Override
+    public void notifyUserLeft(String username) throws RemoteException {
+        if (username.equalsIgnoreCase(peerName)) {
+            peerName = null;
+            isBusy = false;
+            events.execute(() -> listener.onPeerDisconnected(username));
+        } else {
+            events.execute(() -> listener.onUserLeft(username));
+        }
+    }
+
+    @Override
+    public void notifyPeeredUp(String username) throws RemoteException {
+        isBusy = true;
+        peerName = username;
+        events.execute(() -> listener.onPeeredUp(username));
+    }
+
+    @Override
+    public void notifyStatusChanged(String from, String to) throws RemoteException {
+        events.execute(() -> listener.onStatusChanged(from, to));
+    }
+
+    @Override
+    public void peerReturnedHomePage(String from, String to) throws RemoteException {
+        if (from.equalsIgnoreCase(username) || to.equalsIgnoreCase(username)) {
+            peerName = null;
+            if (to.equalsIgnoreCase(username)) {
+                refreshRosterLater();
+            }
+        }
+        events.execute(() -> listener.onPeerReturnedHomePage(from, to));
+    }
+
+    @Override
+    public void getMessageFromPeer(ChatMessage message) throws RemoteException {
+        if (isBusy) {
+            events.execute(() -> listener.onMessages(List.of(message)));
+        }
+    }
+
+    @Override
+    public void getMessagesFromPeer(List<ChatMessage> messages) throws RemoteException {
+        if (isBusy) {
+            events.execute(() -> listener.onMessages(messages));
+        }
+    }
+
+    @Override
+    public void getMailboxMessages(List<ChatMessage> messages) throws RemoteException {
+        events.execute(() -> listener.onMailboxMessages(messages));
+    }
+
+    @Override
+    public void getMessageFromRoom(String roomName, ChatMessage message) throws RemoteException {
+        events.execute(() -> listener.onRoomMessage(roomName, message));
+    }
+
+    @Override
+    public void notifyRoomMembershipChanged(String roomName, String username, boolean joined) throws RemoteException {
+        events.execute(() -> listener.onRoomMembershipChanged(roomName, username, joined));
+    }
+
+    @Override
+    public void transferOffered(TransferOffer offer) throws RemoteException {
+        transfers.offered(offer);
+    }
+
+    @Override
+    public void transferAccepted(String transferId, long offset, int windowChunks, String directAddress)
+            throws RemoteException {
+        transfers.accepted(transferId, offset, windowChunks, directAddress);
+    }
+
+    @Override
+    public void receiveChunk(FileChunk chunk) throws RemoteException {
+        transfers.received(chunk);
+    }
+
+    @Override
+    public void chunksAcknowledged(String transferId, long offset) throws RemoteException {
+        transfers.acknowledged(transferId, offset);
+    }
+
+    @Override
+    public void transferCancelled(String transferId, String reason) throws RemoteException {
+        transfers.cancelled(transferId, reason);
+    }
+
+    private static class SessionThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "chat-session-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
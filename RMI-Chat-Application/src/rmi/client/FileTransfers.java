@@ -0,0 +1,557 @@
+package rmi.client;
+
+import rmi.shared.ChatConfig;
+import rmi.shared.FileChunk;
+import rmi.shared.RMIServerInterface;
+import rmi.shared.TransferOffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Sends and receives the files of a {@link ChatSession}. A file is offered to the peer, who accepts it with the
+ * number of bytes it has from an earlier attempt, so offering the same file again resumes it. The file is then
+ * either relayed through the server in chunks, with at most a window of them unacknowledged, or streamed over a
+ * direct connection to the receiver. Every chunk carries a CRC-32 and the whole file is checked against its SHA-256
+ * before it is moved to the download directory.
+ * <p>
+ * Callbacks from the server only hand the work to the session's transfer queue, files are read by one thread per
+ * outgoing transfer.
+ */
+class FileTransfers {
+    static final int DEFAULT_CHUNK_BYTES = 64 * 1024;
+    private static final int DIRECT_ACCEPT_TIMEOUT_MILLIS = 30_000;
+    private static final int DIRECT_READ_TIMEOUT_MILLIS = 60_000;
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private final Supplier<RMIServerInterface> server;
+    private final Supplier<String> username;
+    private final ChatListener listener;
+    private final Executor events;
+    private final Executor io;
+    private final Path downloadDirectory;
+    private final int chunkBytes;
+    private final String directHost;
+    private final Map<String, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final Map<String, Incoming> incoming = new ConcurrentHashMap<>();
+
+    /**
+     * @param server   current server interface of the session
+     * @param username current username of the session
+     * @param listener
+     * @param events   the session's event queue
+     * @param io       queue that writes incoming chunks and calls the server
+     * @param config
+     */
+    FileTransfers(Supplier<RMIServerInterface> server, Supplier<String> username, ChatListener listener,
+                  Executor events, Executor io, ChatConfig config) {
+        this.server = server;
+        this.username = username;
+        this.listener = listener;
+        this.events = events;
+        this.io = io;
+        this.downloadDirectory = Paths.get(config.getString("rmi.chat.transfer.downloadDir", "downloads"));
+        this.chunkBytes = config.getInt("rmi.chat.transfer.chunkBytes", DEFAULT_CHUNK_BYTES);
+        this.directHost = config.get("rmi.chat.transfer.directHost");
+    }
+
+    private static class Outgoing {
+        final TransferOffer offer;
+        final Path file;
+        long acknowledged;
+        volatile boolean stopped;
+
+        Outgoing(TransferOffer offer, Path file) {
+            this.offer = offer;
+            this.file = file;
+        }
+
+        /**
+         * Waits until the chunk at the given offset fits into the window
+         *
+         * @return false if the transfer has been stopped
+         */
+        synchronized boolean awaitRoom(long offset, long windowBytes) throws InterruptedException {
+            while (!stopped && offset - acknowledged >= windowBytes) {
+                wait();
+            }
+            return !stopped;
+        }
+
+        synchronized void acknowledge(long offset) {
+            acknowledged = Math.max(acknowledged, offset);
+            notifyAll();
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+    }
+
+    private static class Incoming {
+        final TransferOffer offer;
+        final Path part;
+        FileChannel channel;
+        long expected;
+        ServerSocket listener;
+
+        Incoming(TransferOffer offer, Path part) {
+            this.offer = offer;
+            this.part = part;
+        }
+    }
+
+    /**
+     * Hashes the file and builds the offer. Blocks for the time it takes to read the file.
+     *
+     * @param file
+     * @param direct
+     * @return offer
+     * @throws IOException
+     */
+    TransferOffer prepare(Path file, boolean direct) throws IOException {
+        TransferOffer offer = new TransferOffer(UUID.randomUUID().toString(), username.get(),
+                file.getFileName().toString(), Files.size(file), chunkBytes, sha256(file), direct);
+        outgoing.put(offer.getTransferId(), new Outgoing(offer, file));
+        return offer;
+    }
+
+    /**
+     * Forgets an offer the server has refused
+     *
+     * @param offer
+     */
+    void discard(TransferOffer offer) {
+        outgoing.remove(offer.getTransferId());
+    }
+
+    /**
+     * Called back by the server, so it never throws: a malformed offer is cancelled, or ignored if it has no id
+     *
+     * @param offer
+     */
+    void offered(TransferOffer offer) {
+        if (offer == null || offer.getTransferId() == null) {
+            return;
+        }
+        String transferId = offer.getTransferId();
+        if (!offer.isWellFormed()) {
+            io.execute(() -> cancel(transferId, "Invalid file offer"));
+            return;
+        }
+        try {
+            incoming.put(transferId, new Incoming(offer, partFile(offer)));
+        } catch (RuntimeException e) {
+            io.execute(() -> cancel(transferId, "Invalid file name: " + e.getMessage()));
+            return;
+        }
+        events.execute(() -> listener.onFileOffered(offer));
+    }
+
+    /**
+     * Accepts an offered file. The part of it received earlier is kept and only the rest is transferred.
+     *
+     * @param transferId
+     * @throws IOException
+     */
+    void accept(String transferId) throws IOException {
+        Incoming transfer = incoming.get(transferId);
+        if (transfer == null) {
+            throw new IOException("No such transfer " + transferId);
+        }
+        String address = null;
+        synchronized (transfer) {
+            Files.createDirectories(downloadDirectory);
+            transfer.channel = FileChannel.open(transfer.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            long size = transfer.offer.getSize();
+            if (transfer.channel.size() > size) {
+                transfer.channel.truncate(0);
+            }
+            transfer.expected = transfer.channel.size();
+            if (transfer.offer.isDirect()) {
+                transfer.listener = new ServerSocket();
+                transfer.listener.bind(new InetSocketAddress(0), 1);
+                transfer.listener.setSoTimeout(DIRECT_ACCEPT_TIMEOUT_MILLIS);
+                address = host() + ":" + transfer.listener.getLocalPort();
+                startThread(() -> receiveDirect(transfer));
+            }
+        }
+        server.get().answerTransfer(username.get(), transferId, transfer.expected, address);
+        if (address == null && transfer.expected == transfer.offer.getSize()) {
+            io.execute(() -> finish(transfer));
+        }
+    }
+
+    void decline(String transferId) throws RemoteException {
+        Incoming transfer = incoming.remove(transferId);
+        if (transfer != null) {
+            server.get().answerTransfer(username.get(), transferId, -1, null);
+        }
+    }
+
+    /**
+     * Cancels a transfer of this session, the peer is told so
+     *
+     * @param transferId
+     * @param reason
+     */
+    void cancel(String transferId, String reason) {
+        stop(transferId, reason);
+        try {
+            server.get().cancelTransfer(username.get(), transferId, reason);
+        } catch (RemoteException e) {
+            // The server forgets the transfer when the chat ends
+        }
+    }
+
+    void accepted(String transferId, long offset, int windowChunks, String directAddress) {
+        Outgoing transfer = outgoing.get(transferId);
+        if (transfer == null) {
+            return;
+        }
+        transfer.acknowledge(offset);
+        if (directAddress != null) {
+            startThread(() -> sendDirect(transfer, offset, directAddress));
+        } else {
+            startThread(() -> relay(transfer, offset, windowChunks));
+        }
+    }
+
+    void acknowledged(String transferId, long offset) {
+        Outgoing transfer = outgoing.get(transferId);
+        if (transfer == null) {
+            return;
+        }
+        transfer.acknowledge(offset);
+        if (offset == transfer.offer.getSize() && outgoing.remove(transferId) != null) {
+            events.execute(() -> listener.onTransferCompleted(transfer.offer, transfer.file));
+        }
+    }
+
+    void received(FileChunk chunk) {
+        io.execute(() -> write(chunk));
+    }
+
+    void cancelled(String transferId, String reason) {
+        stop(transferId, reason);
+    }
+
+    /**
+     * Stops every transfer, e.g. after the session has been resumed on a restarted server, which does not know them
+     *
+     * @param reason
+     */
+    void stopAll(String reason) {
+        outgoing.keySet().forEach(transferId -> stop(transferId, reason));
+        incoming.keySet().forEach(transferId -> stop(transferId, reason));
+    }
+
+    private void stop(String transferId, String reason) {
+        Outgoing sending = outgoing.remove(transferId);
+        if (sending != null) {
+            sending.stop();
+            events.execute(() -> listener.onTransferFailed(sending.offer, reason));
+        }
+        Incoming receiving = incoming.remove(transferId);
+        if (receiving != null) {
+            close(receiving);
+            events.execute(() -> listener.onTransferFailed(receiving.offer, reason));
+        }
+    }
+
+    /**
+     * Sends the chunks through the server, waiting for acknowledgements when the window is full
+     */
+    private void relay(Outgoing transfer, long offset, int windowChunks) {
+        String transferId = transfer.offer.getTransferId();
+        long size = transfer.offer.getSize();
+        int chunkSize = transfer.offer.getChunkSize();
+        long windowBytes = (long) Math.max(1, windowChunks) * chunkSize;
+        try (FileChannel channel = FileChannel.open(transfer.file, StandardOpenOption.READ)) {
+            long next = offset;
+            while (next < size) {
+                if (!transfer.awaitRoom(next, windowBytes)) {
+                    return;
+                }
+                byte[] data = read(channel, next, (int) Math.min(chunkSize, size - next));
+                if (!server.get().sendChunk(username.get(), new FileChunk(transferId, next, data))) {
+                    stop(transferId, "The transfer has been stopped by the server");
+                    return;
+                }
+                next += data.length;
+            }
+        } catch (IOException e) {
+            cancel(transferId, "Could not send the file: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Streams the file to the receiver's socket: the transfer id and offset, then [length][crc][data] chunks. The
+     * receiver answers with one byte once it has verified the whole file.
+     */
+    private void sendDirect(Outgoing transfer, long offset, String address) {
+        String transferId = transfer.offer.getTransferId();
+        int separator = address.lastIndexOf(':');
+        try (Socket socket = new Socket();
+             FileChannel channel = FileChannel.open(transfer.file, StandardOpenOption.READ)) {
+            socket.connect(new InetSocketAddress(address.substring(0, separator),
+                    Integer.parseInt(address.substring(separator + 1))), DIRECT_ACCEPT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(DIRECT_READ_TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(transferId);
+            out.writeLong(offset);
+            long size = transfer.offer.getSize();
+            for (long next = offset; next < size; ) {
+                if (transfer.stopped) {
+                    return;
+                }
+                byte[] data = read(channel, next, (int) Math.min(transfer.offer.getChunkSize(), size - next));
+                out.writeInt(data.length);
+                out.writeInt(FileChunk.checksum(data));
+                out.write(data);
+                next += data.length;
+            }
+            out.flush();
+            if (socket.getInputStream().read() != 1) {
+                stop(transferId, "The peer could not verify the file");
+                return;
+            }
+            acknowledged(transferId, size);
+        } catch (IOException | RuntimeException e) {
+            stop(transferId, "Direct transfer failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Accepts the sender's connection and writes the streamed chunks
+     */
+    private void receiveDirect(Incoming transfer) {
+        String transferId = transfer.offer.getTransferId();
+        try (ServerSocket serverSocket = transfer.listener; Socket socket = serverSocket.accept()) {
+            socket.setSoTimeout(DIRECT_READ_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (!in.readUTF().equals(transferId) || in.readLong() != transfer.expected) {
+                throw new IOException("Unexpected connection");
+            }
+            while (transfer.expected < transfer.offer.getSize()) {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length <= 0 || length > transfer.offer.getChunkSize()) {
+                    throw new IOException("Invalid chunk length " + length);
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                if (FileChunk.checksum(data) != crc) {
+                    throw new IOException("Damaged chunk at " + transfer.expected);
+                }
+                synchronized (transfer) {
+                    if (transfer.channel == null) {
+                        return;
+                    }
+                    writeFully(transfer.channel, data, transfer.expected);
+                    transfer.expected += length;
+                }
+            }
+            boolean verified = complete(transfer);
+            socket.getOutputStream().write(verified ? 1 : 0);
+            socket.getOutputStream().flush();
+        } catch (IOException e) {
+            stop(transferId, "Direct transfer failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a relayed chunk and acknowledges it. A missing or damaged chunk cancels the transfer, the part written
+     * so far is kept for the next attempt.
+     */
+    private void write(FileChunk chunk) {
+        Incoming transfer = incoming.get(chunk.getTransferId());
+        if (transfer == null) {
+            return;
+        }
+        String transferId = chunk.getTransferId();
+        long expected;
+        try {
+            synchronized (transfer) {
+                if (transfer.channel == null) {
+                    return;
+                }
+                if (chunk.getOffset() != transfer.expected) {
+                    cancel(transferId, "Chunks have been lost, send the file again to resume");
+                    return;
+                }
+                if (!chunk.isIntact()) {
+                    cancel(transferId, "A chunk has been damaged, send the file again to resume");
+                    return;
+                }
+                writeFully(transfer.channel, chunk.getData(), chunk.getOffset());
+                transfer.expected += chunk.getData().length;
+                expected = transfer.expected;
+            }
+            if (expected == transfer.offer.getSize()) {
+                finish(transfer);
+            } else {
+                server.get().acknowledgeChunks(username.get(), transferId, expected);
+            }
+        } catch (IOException e) {
+            cancel(transferId, "Could not write the file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Verifies a relayed file and acknowledges it as a whole
+     */
+    private void finish(Incoming transfer) {
+        try {
+            if (complete(transfer)) {
+                server.get().acknowledgeChunks(username.get(), transfer.offer.getTransferId(),
+                        transfer.offer.getSize());
+            } else {
+                cancel(transfer.offer.getTransferId(), "The file does not match its checksum");
+            }
+        } catch (RemoteException e) {
+            stop(transfer.offer.getTransferId(), "Server cannot be reached: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks the SHA-256 of a received file and moves it to the download directory, a damaged file is deleted
+     *
+     * @return true if the file is complete and intact
+     */
+    private boolean complete(Incoming transfer) {
+        try {
+            synchronized (transfer) {
+                if (transfer.channel == null) {
+                    return false;
+                }
+                transfer.channel.force(false);
+                transfer.channel.close();
+                transfer.channel = null;
+            }
+            if (!Arrays.equals(sha256(transfer.part), transfer.offer.getSha256())) {
+                Files.deleteIfExists(transfer.part);
+                incoming.remove(transfer.offer.getTransferId());
+                events.execute(() -> listener.onTransferFailed(transfer.offer, "The file does not match its checksum"));
+                return false;
+            }
+            Path target = target(transfer.offer.getFileName());
+            Files.move(transfer.part, target);
+            incoming.remove(transfer.offer.getTransferId());
+            events.execute(() -> listener.onTransferCompleted(transfer.offer, target));
+            return true;
+        } catch (IOException e) {
+            stop(transfer.offer.getTransferId(), "Could not save the file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void close(Incoming transfer) {
+        synchronized (transfer) {
+            try {
+                if (transfer.channel != null) {
+                    transfer.channel.close();
+                    transfer.channel = null;
+                }
+                if (transfer.listener != null) {
+                    transfer.listener.close();
+                }
+            } catch (IOException e) {
+                // The part file stays for the next attempt
+            }
+        }
+    }
+
+    /**
+     * The part of a file is named after its content, so only an attempt to receive the same file resumes it
+     */
+    private Path partFile(TransferOffer offer) {
+        String digest = HexFormat.of().formatHex(offer.getSha256(), 0, 8);
+        return downloadDirectory.resolve(offer.getFileName() + "." + digest + ".part");
+    }
+
+    /**
+     * @return path in the download directory that does not exist yet
+     */
+    private Path target(String fileName) {
+        Path target = downloadDirectory.resolve(fileName);
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String extension = dot > 0 ? fileName.substring(dot) : "";
+        for (int i = 1; Files.exists(target); i++) {
+            target = downloadDirectory.resolve(base + " (" + i + ")" + extension);
+        }
+        return target;
+    }
+
+    private String host() throws IOException {
+        return directHost != null ? directHost : InetAddress.getLocalHost().getHostAddress();
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File has changed while sending it");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static void writeFully(FileChannel channel, byte[] data, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static byte[] sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static void startThread(Runnable task) {
+        Thread thread = new Thread(task, "file-transfer-" + THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,119 @@
+package rmi.client;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects outgoing messages for a short time window and sends them to the server as one batch. Batches are sent one
+ * after another, so messages keep the order they were typed in.
+ */
+public class MessageBatcher {
+    public static final long DEFAULT_WINDOW_MILLIS = 20;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    /**
+     * Sends a batch of messages to the peer, e.g. by calling the server
+     */
+    @FunctionalInterface
+    public interface BatchSender {
+        void send(String peerUserName, List<String> messages) throws RemoteException;
+    }
+
+    /**
+     * Learns about a batch that could not be sent, e.g. because the server has rejected it
+     */
+    @FunctionalInterface
+    public interface FailureListener {
+        void onSendFailed(String peerUserName, List<String> messages, Exception e);
+    }
+
+    private final BatchSender sender;
+    private final FailureListener failureListener;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+    private final Executor sendExecutor;
+
+    private String pendingPeer = null;
+    private List<String> pending = new ArrayList<>();
+
+    /**
+     * @param sender
+     * @param failureListener called on the sending thread for every batch that could not be sent
+     * @param windowMillis    how long a message may wait for others to join its batch
+     * @param maxBatchSize    number of messages after which a batch is sent without waiting for the window
+     * @param scheduler       runs the window timers and the sends, may be shared by many batchers
+     */
+    public MessageBatcher(BatchSender sender, FailureListener failureListener, long windowMillis, int maxBatchSize,
+                          ScheduledExecutorService scheduler) {
+        this.sender = sender;
+        this.failureListener = failureListener;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = scheduler;
+        this.sendExecutor = new SerialExecutor(scheduler);
+    }
+
+    /**
+     * Queues a message. It is sent when the window elapses or the batch is full, whichever comes first.
+     *
+     * @param peerUserName
+     * @param message
+     */
+    public synchronized void add(String peerUserName, String message) {
+        if (!pending.isEmpty() && !peerUserName.equalsIgnoreCase(pendingPeer)) {
+            // Never mix messages of different conversations in one batch
+            submitPending();
+        }
+        pendingPeer = peerUserName;
+        pending.add(message);
+        if (pending.size() >= maxBatchSize) {
+            submitPending();
+        } else if (pending.size() == 1) {
+            scheduler.schedule(this::flushPending, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the pending messages right away. The returned future completes when every batch queued so far has been
+     * sent. Commands that must not overtake the messages, like returning to the home page, should wait for it.
+     *
+     * @return future completed after the sends
+     */
+    public CompletableFuture<Void> flush() {
+        synchronized (this) {
+            submitPending();
+        }
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        sendExecutor.execute(() -> sent.complete(null));
+        return sent;
+    }
+
+    private synchronized void flushPending() {
+        submitPending();
+    }
+
+    /**
+     * Hands the current batch over to the sender. Must be called with the lock held.
+     */
+    private void submitPending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        String peer = pendingPeer;
+        List<String> batch = pending;
+        pending = new ArrayList<>();
+        sendExecutor.execute(() -> {
+            try {
+                sender.send(peer, batch);
+            } catch (RemoteException | RuntimeException e) {
+                failureListener.onSendFailed(peer, batch, e);
+            }
+        });
+    }
+}
@@ -0,0 +1,256 @@
+package rmi.client;
+
+import rmi.shared.ChatConfig;
+import rmi.shared.ChatSocketFactory;
+import rmi.shared.FrameCodec;
+import rmi.shared.RMIClientInterface;
+import rmi.shared.RMIServerInterface;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side of the NIO transport. Implements {@link RMIServerInterface} over one persistent connection: calls
+ * wait for their replies, events pushed by the server are passed to the client object given to
+ * {@link RMIServerInterface#joinToChatServer} on the connection's reader thread. The returned server interface is
+ * also {@link Closeable}, closing it closes the connection.
+ * <p>
+ * Before the first call the connection negotiates compression and username ids with the server, see
+ * {@link FrameCodec}.
+ */
+public class NioServerConnection implements InvocationHandler {
+    public static final long DEFAULT_RESPONSE_TIMEOUT_MILLIS = ChatSocketFactory.DEFAULT_RESPONSE_TIMEOUT_MILLIS;
+
+    private final SocketChannel channel;
+    private final long responseTimeoutMillis;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, CompletableFuture<FrameCodec.Frame>> pending = new ConcurrentHashMap<>();
+    private final FrameCodec codec;
+    private volatile RMIClientInterface client;
+    private volatile boolean closed;
+
+    private NioServerConnection(SocketChannel channel, long responseTimeoutMillis, FrameCodec codec) {
+        this.channel = channel;
+        this.responseTimeoutMillis = responseTimeoutMillis;
+        this.codec = codec;
+    }
+
+    /**
+     * Connects to the NIO port of the server
+     *
+     * @param host
+     * @param port
+     * @param config buffer sizes, response timeout and features of the connection
+     * @return server interface
+     * @throws RemoteException if the server cannot be reached
+     */
+    public static RMIServerInterface connect(String host, int port, ChatConfig config) throws RemoteException {
+        SocketChannel channel = null;
+        FrameCodec codec;
+        try {
+            channel = SocketChannel.open();
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            int sendBufferBytes = config.getInt("rmi.chat.transport.sendBufferBytes", 0);
+            if (sendBufferBytes > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferBytes);
+            }
+            int receiveBufferBytes = config.getInt("rmi.chat.transport.receiveBufferBytes", 0);
+            if (receiveBufferBytes > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferBytes);
+            }
+            channel.connect(new InetSocketAddress(host, port));
+            codec = negotiate(channel, FrameCodec.supportedFeatures(config),
+                    config.getInt("rmi.chat.nio.compressionThreshold", FrameCodec.DEFAULT_COMPRESSION_THRESHOLD));
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closing) {
+                    e.addSuppressed(closing);
+                }
+            }
+            throw new ConnectException("Could not connect to " + host + ":" + port, e);
+        }
+        NioServerConnection connection = new NioServerConnection(channel,
+                config.getLong("rmi.chat.transport.responseTimeoutMillis", DEFAULT_RESPONSE_TIMEOUT_MILLIS), codec);
+        Thread reader = new Thread(connection::readFrames, "nio-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return (RMIServerInterface) Proxy.newProxyInstance(RMIServerInterface.class.getClassLoader(),
+                new Class<?>[]{RMIServerInterface.class, Closeable.class}, connection);
+    }
+
+    /**
+     * Asks the server for the wanted features and waits for its answer, no HELLO is sent without any
+     *
+     * @return codec with the features both sides support
+     */
+    private static FrameCodec negotiate(SocketChannel channel, int features, int compressionThreshold)
+            throws IOException {
+        if (features == 0) {
+            return new FrameCodec();
+        }
+        ByteBuffer hello = FrameCodec.hello(features);
+        while (hello.hasRemaining()) {
+            channel.write(hello);
+        }
+        FrameCodec.Frame answer = new FrameCodec().decode(readFrame(channel));
+        if (answer.getType() != FrameCodec.HELLO) {
+            throw new IOException("Server has not answered the HELLO");
+        }
+        return new FrameCodec(FrameCodec.negotiate(answer, features), compressionThreshold);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "NioServerConnection[" + channel.socket().getRemoteSocketAddress() + "]";
+            }
+        }
+        if (method.getDeclaringClass() == Closeable.class) {
+            close();
+            return null;
+        }
+        Object[] sent = args == null ? new Object[0] : args.clone();
+        for (int i = 0; i < sent.length; i++) {
+            if (sent[i] instanceof RMIClientInterface) {
+                // The server pushes to the connection, the client object stays here
+                client = (RMIClientInterface) sent[i];
+                sent[i] = null;
+            }
+        }
+        long id = nextId.incrementAndGet();
+        CompletableFuture<FrameCodec.Frame> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        try {
+            synchronized (channel) {
+                // Encoded under the lock, frames leave in the order the codec has given out username ids
+                write(codec.call(id, method, sent));
+            }
+            FrameCodec.Frame frame = reply.get(responseTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (frame.getType() == FrameCodec.ERROR) {
+                throw toThrowable(frame.getValue());
+            }
+            return frame.getValue();
+        } catch (TimeoutException e) {
+            throw new RemoteException("No reply to " + method.getName() + " within " + responseTimeoutMillis
+                    + " ms");
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    private static Throwable toThrowable(Object error) {
+        if (error instanceof RemoteException || error instanceof RuntimeException || error instanceof Error) {
+            return (Throwable) error;
+        }
+        return new RemoteException("Server failed", error instanceof Throwable ? (Throwable) error : null);
+    }
+
+    private void write(ByteBuffer frame) throws RemoteException {
+        synchronized (channel) {
+            try {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            } catch (IOException e) {
+                throw new ConnectException("Could not send to the server", e);
+            }
+        }
+    }
+
+    private void readFrames() {
+        try {
+            while (true) {
+                dispatch(codec.decode(readFrame(channel)));
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Connection to the server is lost: " + e.getMessage());
+            }
+        } finally {
+            close();
+            ConnectException lost = new ConnectException("Connection to the server is closed");
+            pending.values().forEach(reply -> reply.completeExceptionally(lost));
+        }
+    }
+
+    /**
+     * @return body of the next frame, without its length prefix
+     */
+    private static ByteBuffer readFrame(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(channel, header);
+        int length = header.getInt(0);
+        if (length <= 0 || length > FrameCodec.MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(channel, body);
+        body.flip();
+        return body;
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Server has closed the connection");
+            }
+        }
+    }
+
+    private void dispatch(FrameCodec.Frame frame) {
+        if (frame.getType() == FrameCodec.PUSH) {
+            RMIClientInterface target = client;
+            if (target == null) {
+                return;
+            }
+            try {
+                frame.getMethod().invoke(target, frame.getArguments());
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+                System.err.println("Could not handle " + frame.getMethod().getName() + ": " + cause);
+            }
+            return;
+        }
+        CompletableFuture<FrameCodec.Frame> reply = pending.get(frame.getId());
+        if (reply != null) {
+            reply.complete(frame);
+        }
+    }
+
+    private void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
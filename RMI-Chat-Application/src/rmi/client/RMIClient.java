@@ -1,75 +1,67 @@
 package rmi.client;
 
-import rmi.shared.RMIClientInterface;
-import rmi.shared.RMIExceptionsUtil;
-import rmi.shared.RMIServerInterface;
+import rmi.shared.ChatConfig;
+import rmi.shared.ChatMessage;
+import rmi.shared.ChatSocketFactory;
+import rmi.shared.HistoryPage;
+import rmi.shared.InterestFilter;
+import rmi.shared.NameMatch;
+import rmi.shared.PresenceStatus;
+import rmi.shared.RMIOperationsUtil;
+import rmi.shared.RateLimitedException;
+import rmi.shared.TransferOffer;
+import rmi.shared.UserPage;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Scanner;
+import java.util.concurrent.CompletionException;
 
 import static rmi.shared.RMIOperationsUtil.printProgramInstructions;
 
-public class RMIClient extends UnicastRemoteObject implements RMIClientInterface {
+/**
+ * Console front end of the chat application. All communication with the server goes through a {@link ChatSession},
+ * this class only reads the user's commands and prints the session's events.
+ */
+public class RMIClient implements ChatListener {
 
-    private String username;
-    private boolean isBusy = false;
+    private static final int HISTORY_PAGE_SIZE = 20;
+    private static final int USER_PAGE_SIZE = 20;
 
-    private RMIServerInterface serverInterface;
-
-    private String peerName = null;
+    private final ChatSession session;
+    private final Scanner sc = new Scanner(System.in);
+    private String searchText;
+    private String searchCursor;
+    // Latest file offered by the peer and latest transfer started, for $accept, $decline and $cancel
+    private volatile String offeredTransferId;
+    private volatile String currentTransferId;
 
     public RMIClient() throws RemoteException, NotBoundException {
-        // Look through registry to find shared server interface
-        Registry registry = LocateRegistry.getRegistry("127.0.0.1", 2222);
-        serverInterface = (RMIServerInterface) registry.lookup("ServerInterface");
+        ChatConfig config = ChatConfig.getDefault();
+        session = ChatSession.connect(this, config);
 
         promptForUserName();
         printProgramInstructions();
 
-        while (true) {
-            listAllUsers();
-            promptForStartingCommunication();
-        }
-
-    }
-
-    @Override
-    public String getUserName() throws RemoteException {
-        return username;
-    }
-
-    @Override
-    public boolean getIsBusy() throws RemoteException {
-        return isBusy;
+        listAllUsers();
+        promptForStartingCommunication();
     }
 
     /**
-     * Changes the status of the user. Either available or busy
+     * Prints the messages of the conversation
      *
-     * @param isBusy
-     * @throws RemoteException
+     * @param messages
      */
     @Override
-    public void setIsBusy(boolean isBusy) throws RemoteException {
-        this.isBusy = isBusy;
-    }
-
-    /**
-     * Server calls this one when user's peer sends a messagee
-     *
-     * @param message
-     * @throws RemoteException
-     */
-    @Override
-    public void getMessageFromPeer(String message) throws RemoteException {
-        if (isBusy) {
-            System.out.println(message);
-        }
+    public void onMessages(List<ChatMessage> messages) {
+        messages.forEach(message -> System.out.println(format(message)));
     }
 
     /**
@@ -77,11 +69,10 @@ public class RMIClient extends UnicastRemoteObject implements RMIClientInterface
      * users list
      *
      * @param username
-     * @throws RemoteException
      */
     @Override
-    public void notifyNewUserJoined(String username) throws RemoteException {
-        if (!isBusy) {
+    public void onUserJoined(String username) {
+        if (!session.isBusy()) {
             System.out.println("---------------------------------------------------->");
             System.out.println("New person joined our chat room. Welcome " + username + " !");
             System.out.println("Updated list of chat room:");
@@ -94,34 +85,35 @@ public class RMIClient extends UnicastRemoteObject implements RMIClientInterface
      * users list
      *
      * @param username
-     * @throws RemoteException
      */
     @Override
-    public void notifyUserLeft(String username) throws RemoteException {
-        if (!isBusy) {
+    public void onUserLeft(String username) {
+        if (!session.isBusy()) {
             System.out.println("---------------------------------------------------->");
             System.out.println("A person left our chat room. Farewell " + username + " :(");
             System.out.println("Updated list of chat room:");
             listAllUsers();
-        } else {
-            if (username.equalsIgnoreCase(peerName)) {
-                peerName = null;
-                System.out.println("Your peer has been disconnected. Returning home page...");
-                listAllUsers();
-            }
         }
     }
 
+    /**
+     * The peer left the chat room in the middle of the conversation
+     *
+     * @param username
+     */
+    @Override
+    public void onPeerDisconnected(String username) {
+        System.out.println("Your peer has been disconnected. Returning home page...");
+        listAllUsers();
+    }
+
     /**
      * A user wants to peer with this user.
      *
      * @param username
-     * @throws RemoteException
      */
     @Override
-    public void notifyPeeredUp(String username) throws RemoteException {
-        isBusy = true;
-        peerName = username;
+    public void onPeeredUp(String username) {
         System.out.println("--------------------------------------------------->");
         System.out.println("You have successfully peered up with user " + username);
         System.out.println("You may start chatting");
@@ -132,11 +124,10 @@ public class RMIClient extends UnicastRemoteObject implements RMIClientInterface
      *
      * @param from
      * @param to
-     * @throws RemoteException
      */
     @Override
-    public void notifyStatusChanged(String from, String to) throws RemoteException {
-        if (!isBusy) {
+    public void onStatusChanged(String from, String to) {
+        if (!session.isBusy()) {
             System.out.println(from + " and " + to + " has been peered up. Updated list of chat room:");
             listAllUsers();
         }
@@ -147,19 +138,17 @@ public class RMIClient extends UnicastRemoteObject implements RMIClientInterface
      *
      * @param from
      * @param to
-     * @throws RemoteException
      */
     @Override
-    public void peerReturnedHomePage(String from, String to) throws RemoteException {
+    public void onPeerReturnedHomePage(String from, String to) {
+        String username = currentUserName();
         if (from.equalsIgnoreCase(username)) {
             listAllUsers();
-            peerName = null;
         } else if (to.equalsIgnoreCase(username)) {
             System.out.println("Your peer has been terminated the communication. Returning to home page.");
-            peerName = null;
             listAllUsers();
         } else {
-            if (!isBusy) {
+            if (!session.isBusy()) {
                 System.out.println("Peer " + from + " and " + to + " has ended their conversation.");
                 System.out.println("Updated list of chat room:");
                 listAllUsers();
@@ -168,20 +157,110 @@ public class RMIClient extends UnicastRemoteObject implements RMIClientInterface
     }
 
     /**
-     * Ask user to enter a username. It should be unique. Verify user's request by calling server
+     * Prints the messages other users have left, marked so they are not mistaken for the current conversation
      *
-     * @throws RemoteException
+     * @param messages
+     */
+    @Override
+    public void onMailboxMessages(List<ChatMessage> messages) {
+        messages.forEach(message -> System.out.println("[mail] " + format(message)));
+    }
+
+    /**
+     * Prints a message of a chat room together with the room's name
+     *
+     * @param roomName
+     * @param message
+     */
+    @Override
+    public void onRoomMessage(String roomName, ChatMessage message) {
+        System.out.println("[" + roomName + "] " + format(message));
+    }
+
+    /**
+     * Let this user know when someone joins or leaves one of its chat rooms
+     *
+     * @param roomName
+     * @param username
+     * @param joined
+     */
+    @Override
+    public void onRoomMembershipChanged(String roomName, String username, boolean joined) {
+        System.out.println("[" + roomName + "] " + username + (joined ? " joined the room." : " left the room."));
+    }
+
+    /**
+     * The server has disconnected this user, e.g. after losing contact with it
+     */
+    @Override
+    public void onDisconnected() {
+        System.out.println("You have been disconnected from the chat room.");
+        System.exit(0);
+    }
+
+    /**
+     * Messages typed in a chat are sent in the background, tell the user which ones have been lost
+     *
+     * @param peerUserName
+     * @param messages
+     * @param e
+     */
+    @Override
+    public void onSendFailed(String peerUserName, List<String> messages, Exception e) {
+        String reason = e.getMessage();
+        if (e instanceof RateLimitedException) {
+            reason = "you are going too fast, please try again in " + ((RateLimitedException) e).getRetryAfterMillis()
+                    + " ms.";
+        }
+        System.out.println(messages.size() + " message(s) to " + peerUserName + " could not be sent: " + reason);
+    }
+
+    /**
+     * The server has been restarted and the session has been resumed
+     */
+    @Override
+    public void onResumed() {
+        System.out.println("The connection to the server has been restored.");
+    }
+
+    /**
+     * The peer offers a file, it can be accepted or declined
+     *
+     * @param offer
+     */
+    @Override
+    public void onFileOffered(TransferOffer offer) {
+        offeredTransferId = offer.getTransferId();
+        System.out.println(offer.getSender() + " wants to send you " + offer.getFileName() + " (" + offer.getSize()
+                + " bytes). Type $accept or $decline.");
+    }
+
+    @Override
+    public void onTransferCompleted(TransferOffer offer, Path file) {
+        if (offer.getSender().equalsIgnoreCase(currentUserName())) {
+            System.out.println(offer.getFileName() + " has been sent.");
+        } else {
+            System.out.println(offer.getFileName() + " has been saved to " + file);
+        }
+    }
+
+    @Override
+    public void onTransferFailed(TransferOffer offer, String reason) {
+        System.out.println("The transfer of " + offer.getFileName() + " has stopped: " + reason);
+    }
+
+    /**
+     * Ask user to enter a username. It should be unique. Verify user's request by calling server
      */
-    private void promptForUserName() throws RemoteException {
-        Scanner sc = new Scanner(System.in);
+    private void promptForUserName() {
         System.out.println("Please enter your username.");
         boolean joinStatus = false;
         do {
             String username = sc.nextLine();
-            this.username = username;
-            joinStatus = serverInterface.joinToChatServer(username, this);
+            joinStatus = session.join(username).join();
             if (!joinStatus) {
-                System.out.println("The username has been taken already. Please choose another name.");
+                System.out.println("The username has been taken already or is not valid. Please choose another name,"
+                        + " without \"|\" and not starting with \"#\".");
             } else {
                 System.out.println("You have successfully joined to the chat room!");
             }
@@ -190,71 +269,238 @@ public class RMIClient extends UnicastRemoteObject implements RMIClientInterface
     }
 
     /**
-     * Client logic from console. Decide what to do by parsing user's prompt
+     * Prints the latest messages with the current peer, or of a room if one is given as "#room"
      *
-     * @throws RemoteException
+     * @param target
      */
-    private void promptForStartingCommunication() throws RemoteException {
-        Scanner sc = new Scanner(System.in);
+    private void printHistory(String target) {
+        String conversation;
+        if (target.startsWith("#") && target.length() > 1) {
+            conversation = RMIOperationsUtil.roomConversation(target.substring(1));
+        } else if (target.isEmpty() && session.getPeerName() != null) {
+            conversation = RMIOperationsUtil.directConversation(currentUserName(), session.getPeerName());
+        } else {
+            System.out.println("Please chat with someone first or give a room, e.g. $history #room");
+            return;
+        }
+        HistoryPage page = session.getHistory(conversation, 0, HISTORY_PAGE_SIZE).join();
+        if (page.getEntries().isEmpty()) {
+            System.out.println("There are no messages yet.");
+        }
+        page.getEntries().forEach(entry ->
+                System.out.println(format(entry.getTimestamp(), entry.getSender(), entry.getMessage())));
+    }
+
+    /**
+     * Prints the next page of the current user search
+     */
+    private void printUserPage() {
+        UserPage page = session.findUsers(searchText, NameMatch.SUBSTRING, null, searchCursor, USER_PAGE_SIZE).join();
+        if (page.getUsers().isEmpty() && searchCursor == null && !page.hasMore()) {
+            System.out.println("No user matches \"" + searchText + "\".");
+        }
+        page.getUsers().forEach(user -> System.out.println(user.getUserName() + " ("
+                + user.getStatus().name().toLowerCase(Locale.ROOT) + ")"));
+        searchCursor = page.getNextCursor();
+        if (searchCursor != null) {
+            System.out.println("Type $more to see more users.");
+        }
+    }
+
+    /**
+     * Offers a file to the peer
+     *
+     * @param fileName
+     * @param direct
+     */
+    private void sendFile(String fileName, boolean direct) {
+        Path file = Paths.get(fileName);
+        if (!session.isBusy()) {
+            System.out.println("Please chat with someone first, files are sent to your peer.");
+        } else if (!Files.isRegularFile(file)) {
+            System.out.println("There is no such file: " + fileName);
+        } else {
+            TransferOffer offer = session.sendFile(file, direct).join();
+            if (offer == null) {
+                System.out.println("The file could not be offered, you may have too many transfers open.");
+            } else {
+                currentTransferId = offer.getTransferId();
+                System.out.println("Waiting for your peer to accept " + offer.getFileName()
+                        + ". Type $cancel to stop.");
+            }
+        }
+    }
+
+    private static String format(ChatMessage message) {
+        return format(message.getTimestamp(), message.getSender(), message.getText());
+    }
+
+    /**
+     * Formats a message for the console the way it is shown in conversations
+     *
+     * @param timestamp
+     * @param sender
+     * @param text
+     * @return line to print
+     */
+    private static String format(long timestamp, String sender, String text) {
+        return new Date(timestamp) + " - " + sender + ": " + text;
+    }
+
+    /**
+     * Client logic from console. Decide what to do by parsing user's prompt
+     */
+    private void promptForStartingCommunication() {
         while (true) {
             String text = sc.nextLine();
             System.out.println("---------------------------------------------------->");
-            if (text.equalsIgnoreCase("$disconnect")) {
-                serverInterface.disconnectFromChatServer(username);
-                System.exit(0);
-            } else if (text.equalsIgnoreCase("$return")) {
-                if (!isBusy) {
-                    System.out.println("You are already at home page, please read the possible options again.");
-                } else {
-                    isBusy = false;
-                    serverInterface.returnToHomePage(username);
-                }
-                continue;
-            } else if (text.startsWith("$")) {
-                String tempUserName = text.substring(1);
-                if (username.equalsIgnoreCase(tempUserName)) {
-                    System.out.println("You cannot chat with yourself. Please choose a user from available users list");
-                    continue;
-                }
-                boolean result = serverInterface.peerUpWith(username, tempUserName);
-                if (result) {
-                    System.out.println("--------------------------------------------------->");
-                    System.out.println("You have successfully peered up with user " + tempUserName);
-                    System.out.println("You may start chatting");
-                    peerName = tempUserName;
-                    continue;
-                } else {
-                    System.out.println("Peering was unsuccessful. Please make sure such a user exist and available");
-                }
-            } else {
-                if (isBusy) {
-                    serverInterface.sendMessageToPeer(peerName, text);
+            try {
+                handleCommand(text);
+            } catch (CompletionException e) {
+                if (!(e.getCause() instanceof RateLimitedException)) {
+                    throw e;
                 }
+                System.out.println("You are going too fast, please try again in "
+                        + ((RateLimitedException) e.getCause()).getRetryAfterMillis() + " ms.");
             }
         }
     }
 
     /**
-     * Lists available and busy users in the chat room.
+     * Runs one command of the user, any other text is sent to the peer
      *
-     * @throws RemoteException
+     * @param text
      */
-    private void listAllUsers() throws RemoteException {
-        List<RMIClientInterface> availableUsers = serverInterface.getAllAvailableUsers();
-        List<RMIClientInterface> busyUsers = serverInterface.getAllBusyUsers();
+    private void handleCommand(String text) {
+        if (text.equalsIgnoreCase("$disconnect")) {
+            session.disconnect().join();
+            System.exit(0);
+        } else if (text.equalsIgnoreCase("$return")) {
+            if (!session.isBusy()) {
+                System.out.println("You are already at home page, please read the possible options again.");
+            } else {
+                session.returnToHomePage().join();
+            }
+        } else if (text.startsWith("$create ")) {
+            String roomName = text.substring("$create ".length()).trim();
+            if (session.createRoom(roomName).join()) {
+                System.out.println("Room " + roomName + " has been created. Send messages with #" + roomName);
+            } else {
+                System.out.println("Room could not be created. Please choose another name.");
+            }
+        } else if (text.startsWith("$enter ")) {
+            String roomName = text.substring("$enter ".length()).trim();
+            if (session.joinRoom(roomName).join()) {
+                System.out.println("You have joined room " + roomName + ". Send messages with #" + roomName);
+            } else {
+                System.out.println("There is no such room. Type $rooms to see all rooms.");
+            }
+        } else if (text.startsWith("$leave ")) {
+            String roomName = text.substring("$leave ".length()).trim();
+            session.leaveRoom(roomName).join();
+            System.out.println("You have left room " + roomName);
+        } else if (text.equalsIgnoreCase("$rooms")) {
+            List<String> roomNames = session.getRoomNames().join();
+            System.out.println(roomNames.isEmpty() ? "There are no rooms yet." : "Rooms: " + roomNames);
+        } else if (text.startsWith("$friends ")) {
+            List<String> friends = new ArrayList<>();
+            for (String friend : text.substring("$friends ".length()).split(",")) {
+                if (!friend.isBlank()) {
+                    friends.add(friend.trim());
+                }
+            }
+            session.setInterest(InterestFilter.friendsOnly(friends)).join();
+            System.out.println("You will only be notified about " + friends + ". Type $everyone to undo.");
+        } else if (text.equalsIgnoreCase("$everyone")) {
+            session.setInterest(InterestFilter.everyone()).join();
+            System.out.println("You will be notified about everyone.");
+        } else if (text.equalsIgnoreCase("$users") || text.startsWith("$users ")) {
+            searchText = text.substring("$users".length()).trim();
+            searchCursor = null;
+            printUserPage();
+        } else if (text.equalsIgnoreCase("$more")) {
+            if (searchCursor == null) {
+                System.out.println("There are no more users. Type $users to search again.");
+            } else {
+                printUserPage();
+            }
+        } else if (text.equalsIgnoreCase("$history") || text.startsWith("$history ")) {
+            printHistory(text.substring("$history".length()).trim());
+        } else if (text.startsWith("$send ")) {
+            sendFile(text.substring("$send ".length()).trim(), false);
+        } else if (text.startsWith("$direct ")) {
+            sendFile(text.substring("$direct ".length()).trim(), true);
+        } else if (text.equalsIgnoreCase("$accept") || text.equalsIgnoreCase("$decline")) {
+            String transferId = offeredTransferId;
+            offeredTransferId = null;
+            if (transferId == null) {
+                System.out.println("Nobody has offered you a file.");
+            } else if (text.equalsIgnoreCase("$accept")) {
+                currentTransferId = transferId;
+                session.acceptFile(transferId).join();
+            } else {
+                session.declineFile(transferId).join();
+            }
+        } else if (text.equalsIgnoreCase("$cancel")) {
+            String transferId = currentTransferId;
+            currentTransferId = null;
+            if (transferId == null) {
+                System.out.println("There is no transfer to cancel.");
+            } else {
+                session.cancelTransfer(transferId).join();
+            }
+        } else if (text.startsWith("@")) {
+            int separator = text.indexOf(' ');
+            if (separator < 0) {
+                System.out.println("Please type a message after the username, e.g. @user hello");
+            } else if (!session.sendMessageToUser(text.substring(1, separator), text.substring(separator + 1))
+                    .join()) {
+                System.out.println("The message could not be delivered, the user's mailbox is full.");
+            }
+        } else if (text.startsWith("#")) {
+            int separator = text.indexOf(' ');
+            if (separator < 0) {
+                System.out.println("Please type a message after the room name, e.g. #room hello");
+            } else if (!session.sendMessageToRoom(text.substring(1, separator), text.substring(separator + 1))
+                    .join()) {
+                System.out.println("The message could not be sent, you are not a member of that room.");
+            }
+        } else if (text.startsWith("$")) {
+            String tempUserName = text.substring(1);
+            if (currentUserName().equalsIgnoreCase(tempUserName)) {
+                System.out.println("You cannot chat with yourself. Please choose a user from available users list");
+                return;
+            }
+            boolean result = session.peerUpWith(tempUserName).join();
+            if (result) {
+                System.out.println("--------------------------------------------------->");
+                System.out.println("You have successfully peered up with user " + tempUserName);
+                System.out.println("You may start chatting");
+            } else {
+                System.out.println("Peering was unsuccessful. Please make sure such a user exist and available");
+            }
+        } else {
+            session.sendMessage(text);
+        }
+    }
 
-        availableUsers.removeIf(user -> RMIExceptionsUtil.getUserNameCheckException(user).equalsIgnoreCase(username));
-        busyUsers.removeIf(user -> RMIExceptionsUtil.getUserNameCheckException(user).equalsIgnoreCase(username));
+    /**
+     * Lists available and busy users in the chat room from the local roster, without calling the server. Large
+     * lists are cut short, the rest can be searched.
+     */
+    private void listAllUsers() {
+        List<String> availableUsers = session.getUsers(PresenceStatus.AVAILABLE);
+        List<String> busyUsers = session.getUsers(PresenceStatus.BUSY);
 
         if (availableUsers.size() > 0) {
             System.out.println("Available Users in the chat room:");
-            availableUsers.stream().map(RMIExceptionsUtil::getUserNameCheckException).forEach(System.out::println);
+            printFirstUsers(availableUsers);
         }
 
         if (busyUsers.size() > 0) {
             System.out.println("---------------------------------------------------->");
             System.out.println("Busy users at this moment:");
-            busyUsers.stream().map(RMIExceptionsUtil::getUserNameCheckException).forEach(System.out::println);
+            printFirstUsers(busyUsers);
         }
 
         if (availableUsers.size() == 0 && busyUsers.size() == 0) {
@@ -263,7 +509,23 @@ public class RMIClient extends UnicastRemoteObject implements RMIClientInterface
 
     }
 
+    private static void printFirstUsers(List<String> usernames) {
+        usernames.stream().limit(USER_PAGE_SIZE).forEach(System.out::println);
+        if (usernames.size() > USER_PAGE_SIZE) {
+            System.out.println("... and " + (usernames.size() - USER_PAGE_SIZE) + " more. Type $users name to search.");
+        }
+    }
+
+    private String currentUserName() {
+        try {
+            return session.getUserName();
+        } catch (RemoteException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static void main(String[] args) throws NotBoundException, RemoteException {
+        ChatSocketFactory.applyTransportProperties(ChatConfig.getDefault());
         new RMIClient();
     }
 }
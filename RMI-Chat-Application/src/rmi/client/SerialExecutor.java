@@ -0,0 +1,48 @@
+package rmi.client;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time in submission order on top of a shared executor. Lets many sessions in one JVM have their
+ * own ordered event and command queues without a thread each.
+ */
+public class SerialExecutor implements Executor {
+    private final Executor executor;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean running = false;
+
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            tasks.addLast(task);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        executor.execute(this::runTasks);
+    }
+
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.pollFirst();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Task failed: " + e);
+            }
+        }
+    }
+}
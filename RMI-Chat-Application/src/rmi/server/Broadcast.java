@@ -0,0 +1,180 @@
+package rmi.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * One event sent to several clients. The event is enqueued to the outbox of every target and delivered by the
+ * delivery workers in parallel, at most maxConcurrency remote calls of the broadcast are in flight at a time. An
+ * outbox whose next event would exceed the limit parks until another call of the broadcast finishes, so a large
+ * broadcast leaves workers for other clients. The broadcast completes once every target has finished or the
+ * deadline has passed, whichever comes first.
+ * <p>
+ * Targets are added while the broadcast is open, {@link #finish()} closes it.
+ */
+public class Broadcast {
+    private final BroadcastEngine engine;
+    private final int maxConcurrency;
+    private final long startNanos = System.nanoTime();
+    private final Set<ClientOutbox> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final ArrayDeque<ClientOutbox> parked = new ArrayDeque<>();
+    private final List<String> failed = new ArrayList<>();
+    private final CompletableFuture<BroadcastSummary> completion = new CompletableFuture<>();
+    private int targets = 0;
+    private int delivered = 0;
+    private int inFlight = 0;
+    private boolean finished = false;
+    private boolean done = false;
+    private ScheduledFuture<?> deadline;
+
+    Broadcast(BroadcastEngine engine, int maxConcurrency) {
+        this.engine = engine;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Adds the outbox of a target, before its event is offered
+     *
+     * @param outbox
+     */
+    public synchronized void add(ClientOutbox outbox) {
+        if (finished) {
+            throw new IllegalStateException("Broadcast has been finished");
+        }
+        if (pending.add(outbox)) {
+            targets++;
+        }
+    }
+
+    /**
+     * Takes a slot for a remote call of the broadcast
+     *
+     * @param outbox that is about to deliver the broadcast's event
+     * @return false if the limit has been reached, the outbox is resumed when a slot becomes free
+     */
+    synchronized boolean tryStart(ClientOutbox outbox) {
+        if (done || inFlight < maxConcurrency) {
+            inFlight++;
+            return true;
+        }
+        parked.addLast(outbox);
+        return false;
+    }
+
+    /**
+     * Records the outcome of a target's delivery
+     *
+     * @param outbox
+     * @param started   true if the call has taken a slot with {@link #tryStart}
+     * @param succeeded false if the delivery has failed or the event has been dropped
+     */
+    void complete(ClientOutbox outbox, boolean started, boolean succeeded) {
+        ClientOutbox next = null;
+        List<ClientOutbox> unparked = null;
+        BroadcastSummary summary = null;
+        synchronized (this) {
+            if (started) {
+                inFlight--;
+                next = parked.pollFirst();
+            } else if (parked.remove(outbox)) {
+                // The event has been dropped or discarded while the outbox waited for a slot. The outbox would never
+                // claim the slot handed to it, it only has to go on with the rest of its queue.
+                next = outbox;
+            }
+            if (pending.remove(outbox)) {
+                if (succeeded) {
+                    delivered++;
+                } else {
+                    failed.add(outbox.getUserName());
+                }
+                if (finished && pending.isEmpty()) {
+                    summary = summarize();
+                    unparked = unpark();
+                }
+            }
+        }
+        if (next != null) {
+            next.resume();
+        }
+        if (unparked != null) {
+            unparked.forEach(ClientOutbox::resume);
+        }
+        if (summary != null) {
+            completeWith(summary);
+        }
+    }
+
+    /**
+     * Closes the broadcast for new targets and starts the deadline
+     *
+     * @return completes with the summary once every target has finished or the deadline has passed
+     */
+    public CompletableFuture<BroadcastSummary> finish() {
+        BroadcastSummary summary = null;
+        synchronized (this) {
+            finished = true;
+            if (pending.isEmpty()) {
+                summary = summarize();
+            } else {
+                long remaining = engine.getDeadlineNanos() - (System.nanoTime() - startNanos);
+                deadline = engine.schedule(this::expire, remaining);
+            }
+        }
+        if (summary != null) {
+            completeWith(summary);
+        }
+        return completion;
+    }
+
+    /**
+     * Completes with the targets that have not finished as timed out. Their events stay queued and the parked
+     * outboxes are resumed without a limit.
+     */
+    private void expire() {
+        List<ClientOutbox> unparked;
+        BroadcastSummary summary;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            summary = summarize();
+            unparked = unpark();
+        }
+        unparked.forEach(ClientOutbox::resume);
+        completeWith(summary);
+    }
+
+    /**
+     * Called with the lock held
+     */
+    private BroadcastSummary summarize() {
+        done = true;
+        List<String> timedOut = new ArrayList<>(pending.size());
+        pending.forEach(outbox -> timedOut.add(outbox.getUserName()));
+        pending.clear();
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+        return new BroadcastSummary(targets, delivered, timedOut, failed, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Called with the lock held. Once the broadcast is done, the outboxes still waiting for a slot go on without one.
+     */
+    private List<ClientOutbox> unpark() {
+        List<ClientOutbox> unparked = new ArrayList<>(parked);
+        parked.clear();
+        return unparked;
+    }
+
+    private void completeWith(BroadcastSummary summary) {
+        engine.record(summary);
+        completion.complete(summary);
+    }
+}
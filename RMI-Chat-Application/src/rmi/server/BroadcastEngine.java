@@ -0,0 +1,77 @@
+package rmi.server;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts broadcasts with the server's concurrency limit and deadline, and records their summaries in the metrics.
+ * The events themselves are delivered by the {@link DeliveryEngine}'s workers, so the completion time of a broadcast
+ * is bounded by its slowest target rather than by the sum of all of them.
+ */
+public class BroadcastEngine {
+    public static final int DEFAULT_MAX_CONCURRENCY = 64;
+    public static final long DEFAULT_DEADLINE_MILLIS = 5_000;
+
+    private final int maxConcurrency;
+    private final long deadlineNanos;
+    private final ServerMetrics metrics;
+    private final ScheduledThreadPoolExecutor deadlines;
+
+    /**
+     * @param maxConcurrency remote calls of one broadcast that may be in flight at a time
+     * @param deadlineMillis time after which a broadcast completes without the targets that have not finished
+     * @param metrics
+     */
+    public BroadcastEngine(int maxConcurrency, long deadlineMillis, ServerMetrics metrics) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("Invalid broadcast concurrency " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        this.metrics = metrics;
+        this.deadlines = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "broadcast-deadline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most broadcasts complete long before their deadline
+        deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Starts a broadcast. Add the outbox of every target before offering its event, then call
+     * {@link Broadcast#finish()}.
+     *
+     * @return broadcast
+     */
+    public Broadcast start() {
+        return new Broadcast(this, maxConcurrency);
+    }
+
+    long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    /**
+     * @param task
+     * @param delayNanos
+     * @return scheduled task, null if the server is shutting down
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+        try {
+            return deadlines.schedule(task, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    void record(BroadcastSummary summary) {
+        metrics.recordBroadcast(summary);
+    }
+
+    public void shutdown() {
+        deadlines.shutdownNow();
+    }
+}
@@ -0,0 +1,68 @@
+package rmi.server;
+
+import java.util.List;
+
+/**
+ * Outcome of a broadcast: which targets have received the event by the deadline, which have not answered yet and
+ * which could not be reached. Events of timed out targets stay in their outboxes and may still be delivered later.
+ */
+public class BroadcastSummary {
+    private final int targets;
+    private final int delivered;
+    private final List<String> timedOut;
+    private final List<String> failed;
+    private final long elapsedNanos;
+
+    public BroadcastSummary(int targets, int delivered, List<String> timedOut, List<String> failed,
+                            long elapsedNanos) {
+        this.targets = targets;
+        this.delivered = delivered;
+        this.timedOut = List.copyOf(timedOut);
+        this.failed = List.copyOf(failed);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getTargets() {
+        return targets;
+    }
+
+    public int getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return usernames of the targets whose delivery has not finished by the deadline
+     */
+    public List<String> getTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return usernames of the targets whose delivery has failed or whose event has been dropped
+     */
+    public List<String> getFailed() {
+        return failed;
+    }
+
+    /**
+     * Time from the start of the broadcast until the last delivery finished or the deadline passed
+     *
+     * @return nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return true if every target has received the event
+     */
+    public boolean isComplete() {
+        return delivered == targets;
+    }
+
+    @Override
+    public String toString() {
+        return "BroadcastSummary{targets=" + targets + ", delivered=" + delivered + ", timedOut=" + timedOut
+                + ", failed=" + failed + ", elapsedMicros=" + elapsedNanos / 1000 + "}";
+    }
+}
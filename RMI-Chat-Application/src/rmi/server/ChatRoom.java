@@ -0,0 +1,46 @@
+package rmi.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A group conversation. Members are keyed by case-folded username, like in {@link UserRegistry}.
+ */
+public class ChatRoom {
+    private final String name;
+    private final ConcurrentMap<String, ConnectedUser> members = new ConcurrentHashMap<>();
+
+    public ChatRoom(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Name of the room exactly as its creator chose it
+     *
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+    boolean add(ConnectedUser user) {
+        return members.putIfAbsent(UserRegistry.key(user.getUserName()), user) == null;
+    }
+
+    boolean remove(String username) {
+        return members.remove(UserRegistry.key(username)) != null;
+    }
+
+    public boolean isMember(String username) {
+        return members.containsKey(UserRegistry.key(username));
+    }
+
+    public Collection<ConnectedUser> getMembers() {
+        return members.values();
+    }
+
+    public int size() {
+        return members.size();
+    }
+}
@@ -0,0 +1,306 @@
+package rmi.server;
+
+import rmi.shared.RMIClientInterface;
+import rmi.shared.RMIExceptionsUtil;
+
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Outbound queue of a single client. Events are delivered in the order they were enqueued by one worker at a time,
+ * so a slow client only delays its own events. A client that cannot be reached any more is handed to the eviction
+ * listener instead of failing the deliveries to other clients. An outbox created without a client holds its events
+ * until a client is attached, e.g. one that resumes its session after a restart of the server.
+ * <p>
+ * Events of a {@link Broadcast} report their outcome to it. An outbox whose next event would exceed the concurrency
+ * limit of its broadcast parks without holding a worker and is resumed by the broadcast.
+ */
+public class ClientOutbox {
+    private static final int MAX_EVENTS_PER_RUN = 64;
+
+    private final String userName;
+    private volatile RMIClientInterface clientInterface;
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final int maxConsecutiveFailures;
+    private final Consumer<ClientOutbox> evictionListener;
+
+    private final ArrayDeque<OutboundEvent> queue = new ArrayDeque<>();
+    private boolean scheduled = false;
+    private boolean closed = false;
+    private int consecutiveFailures = 0;
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private volatile long lastLatencyNanos = 0;
+
+    public ClientOutbox(String userName, RMIClientInterface clientInterface, Executor executor, int capacity,
+                        OverflowPolicy overflowPolicy, int maxConsecutiveFailures,
+                        Consumer<ClientOutbox> evictionListener) {
+        this.userName = userName;
+        this.clientInterface = clientInterface;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.maxConsecutiveFailures = maxConsecutiveFailures;
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Adds an event to the queue and schedules a worker if there is none running. Returns immediately.
+     *
+     * @param event
+     * @return false if the event has not been accepted
+     */
+    public boolean offer(OutboundEvent event) {
+        boolean schedule;
+        synchronized (this) {
+            if (closed) {
+                complete(event, false, false);
+                return false;
+            }
+            Overflow overflow = queue.size() >= capacity ? makeRoomFor(event) : Overflow.ROOM_MADE;
+            if (overflow == Overflow.SKIP) {
+                dropped.increment();
+                complete(event, false, false);
+                return false;
+            }
+            if (overflow == Overflow.FULL) {
+                System.err.println("Outbound queue of " + userName + " is full");
+                complete(event, false, false);
+                evict();
+                return false;
+            }
+            queue.addLast(event);
+            // Without a client the events are held until one is attached
+            schedule = !scheduled && clientInterface != null;
+            scheduled |= schedule;
+        }
+        if (schedule) {
+            executor.execute(this::drain);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the client the events are delivered to and delivers the events held so far
+     *
+     * @param client
+     */
+    public void attach(RMIClientInterface client) {
+        boolean schedule;
+        synchronized (this) {
+            clientInterface = client;
+            consecutiveFailures = 0;
+            schedule = !scheduled && !closed && !queue.isEmpty();
+            scheduled |= schedule;
+        }
+        if (schedule) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Applies the overflow policy. Called with the lock held and a full queue.
+     * <p>
+     * Coalescing only ever gives up events that have a coalesce key, a newer event of the same kind makes up for
+     * them. Other events, e.g. chat messages, are never dropped: if nothing else can go the incoming event is skipped
+     * if it has a key, otherwise the client is disconnected.
+     *
+     * @return what to do with the incoming event
+     */
+    private Overflow makeRoomFor(OutboundEvent event) {
+        switch (overflowPolicy) {
+            case DISCONNECT:
+                return Overflow.FULL;
+            case COALESCE:
+                OutboundEvent victim = null;
+                for (OutboundEvent queued : queue) {
+                    if (queued.getCoalesceKey() == null) {
+                        continue;
+                    }
+                    if (queued.getCoalesceKey().equals(event.getCoalesceKey())) {
+                        victim = queued;
+                        break;
+                    }
+                    if (victim == null) {
+                        // The oldest coalescable event, unless one of the same kind is found
+                        victim = queued;
+                    }
+                }
+                if (victim == null) {
+                    return event.getCoalesceKey() != null ? Overflow.SKIP : Overflow.FULL;
+                }
+                queue.remove(victim);
+                dropped.increment();
+                complete(victim, false, false);
+                return Overflow.ROOM_MADE;
+            case DROP_OLDEST:
+            default:
+                complete(queue.pollFirst(), false, false);
+                dropped.increment();
+                return Overflow.ROOM_MADE;
+        }
+    }
+
+    /**
+     * Delivers queued events. Runs on the delivery executor, never on the caller's RMI thread.
+     */
+    private void drain() {
+        for (int i = 0; i < MAX_EVENTS_PER_RUN; i++) {
+            OutboundEvent event;
+            synchronized (this) {
+                event = queue.peekFirst();
+                if (event == null) {
+                    scheduled = false;
+                    return;
+                }
+                if (event.getBroadcast() != null && !event.getBroadcast().tryStart(this)) {
+                    // Stays scheduled, the broadcast resumes the outbox once one of its calls has finished
+                    return;
+                }
+                queue.pollFirst();
+            }
+            deliver(event);
+        }
+        // Give other clients a chance before continuing with this one
+        executor.execute(this::drain);
+    }
+
+    /**
+     * Continues draining after the outbox has been parked by a broadcast
+     */
+    void resume() {
+        executor.execute(this::drain);
+    }
+
+    private void deliver(OutboundEvent event) {
+        try {
+            event.getCall().invoke(clientInterface);
+            delivered.increment();
+            synchronized (this) {
+                consecutiveFailures = 0;
+            }
+            complete(event, true, true);
+        } catch (Exception e) {
+            failed.increment();
+            RMIExceptionsUtil.recordFailure();
+            System.err.println("Could not deliver event to " + userName + ": " + e.getMessage());
+            complete(event, true, false);
+            onFailure(e);
+        }
+        long latency = System.nanoTime() - event.getEnqueuedAt();
+        lastLatencyNanos = latency;
+        totalLatencyNanos.add(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+    }
+
+    /**
+     * A client whose process is gone refuses connections, there is no point in retrying. Other failures may be
+     * temporary, the client is only given up after several of them in a row.
+     */
+    private synchronized void onFailure(Exception e) {
+        consecutiveFailures++;
+        boolean unreachable = e instanceof ConnectException || e instanceof NoSuchObjectException;
+        if (!closed && (unreachable || consecutiveFailures >= maxConsecutiveFailures)) {
+            evict();
+        }
+    }
+
+    /**
+     * Closes the outbox and lets the listener disconnect the client. Called with the lock held.
+     */
+    private void evict() {
+        closed = true;
+        discardQueue();
+        evictionListener.accept(this);
+    }
+
+    /**
+     * Stops accepting events and discards the pending ones
+     */
+    public synchronized void close() {
+        closed = true;
+        discardQueue();
+    }
+
+    /**
+     * Called with the lock held
+     */
+    private void discardQueue() {
+        for (OutboundEvent event : queue) {
+            complete(event, false, false);
+        }
+        queue.clear();
+    }
+
+    private void complete(OutboundEvent event, boolean started, boolean succeeded) {
+        if (event.getBroadcast() != null) {
+            event.getBroadcast().complete(this, started, succeeded);
+        }
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns true if no event is queued and none is being delivered
+     *
+     * @return
+     */
+    public synchronized boolean isIdle() {
+        return queue.isEmpty() && !scheduled;
+    }
+
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Average time between enqueueing an event and finishing its remote call
+     *
+     * @return latency in microseconds
+     */
+    public long getAverageLatencyMicros() {
+        long count = delivered.sum() + failed.sum();
+        return count == 0 ? 0 : totalLatencyNanos.sum() / count / 1000;
+    }
+
+    public long getLastLatencyMicros() {
+        return lastLatencyNanos / 1000;
+    }
+
+    public long getMaxLatencyMicros() {
+        return maxLatencyNanos.get() / 1000;
+    }
+
+    private enum Overflow {
+        ROOM_MADE,
+        // The incoming event is dropped, the queue stays as it is
+        SKIP,
+        // The client cannot keep up, it is disconnected
+        FULL
+    }
+}
@@ -0,0 +1,110 @@
+package rmi.server;
+
+import rmi.shared.ChatMessage;
+import rmi.shared.UserPresence;
+
+import java.rmi.AccessException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Remote interface between the nodes of a cluster. Every node binds it next to its server interface. Usernames are
+ * reserved at their owner node, which is chosen by hashing the name, so a name is unique across the cluster.
+ * <p>
+ * The registry is open to clients as well, so every call carries the secret shared by the nodes and is refused with
+ * an {@link AccessException} if it does not match. Node ids in the calls must be nodes of the cluster.
+ */
+public interface ClusterLink extends Remote {
+
+    /**
+     * Reserves a username for a user joining at the given node. Only called on the owner node of the name.
+     *
+     * @param secret
+     * @param username
+     * @param nodeId
+     * @return false if the name is taken
+     * @throws AccessException if the secret does not match
+     * @throws RemoteException
+     */
+    boolean claimUsername(String secret, String username, String nodeId) throws RemoteException;
+
+    /**
+     * Releases a username reserved by the given node
+     *
+     * @param secret
+     * @param username
+     * @param nodeId
+     * @throws AccessException if the secret does not match
+     * @throws RemoteException
+     */
+    void releaseUsername(String secret, String username, String nodeId) throws RemoteException;
+
+    /**
+     * A node has started. Forgets the reservations and users of its previous run, if any.
+     *
+     * @param secret
+     * @param nodeId
+     * @return statuses of the users connected to this node
+     * @throws AccessException if the secret does not match
+     * @throws RemoteException
+     */
+    List<UserPresence> nodeStarted(String secret, String nodeId) throws RemoteException;
+
+    /**
+     * Returns the statuses of the users connected to this node, e.g. for a node that has been unreachable
+     *
+     * @param secret
+     * @return
+     * @throws AccessException if the secret does not match
+     * @throws RemoteException
+     */
+    List<UserPresence> getLocalUsers(String secret) throws RemoteException;
+
+    /**
+     * Replicates status changes of the users connected to the given node
+     *
+     * @param secret
+     * @param nodeId
+     * @param changes
+     * @throws AccessException if the secret does not match
+     * @throws RemoteException
+     */
+    void presenceChanged(String secret, String nodeId, List<UserPresence> changes) throws RemoteException;
+
+    /**
+     * A user of another node wants to peer up with a user of this node
+     *
+     * @param secret
+     * @param from
+     * @param to
+     * @return false if the user is not here or not available
+     * @throws AccessException if the secret does not match
+     * @throws RemoteException
+     */
+    boolean acceptPeer(String secret, String from, String to) throws RemoteException;
+
+    /**
+     * The peer of a user of this node has returned to the home page or disconnected
+     *
+     * @param secret
+     * @param username user of the other node
+     * @param peerName user of this node
+     * @throws AccessException if the secret does not match
+     * @throws RemoteException
+     */
+    void releasePeer(String secret, String username, String peerName) throws RemoteException;
+
+    /**
+     * Delivers messages to a user of this node
+     *
+     * @param secret
+     * @param recipient
+     * @param messages
+     * @param mailbox   true for messages left with sendMessageToUser, false for messages of a peer chat
+     * @throws AccessException if the secret does not match
+     * @throws RemoteException
+     */
+    void deliverMessages(String secret, String recipient, List<ChatMessage> messages, boolean mailbox)
+            throws RemoteException;
+}
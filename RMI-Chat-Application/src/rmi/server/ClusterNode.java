@@ -0,0 +1,333 @@
+package rmi.server;
+
+import rmi.shared.ChatMessage;
+import rmi.shared.ChatSocketFactory;
+import rmi.shared.UserPresence;
+
+import java.nio.charset.StandardCharsets;
+import java.rmi.AccessException;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This server's member of the cluster. Knows the other nodes by their "host:port" ids, reserves usernames at their
+ * owner node and forwards events for users of other nodes. Replication and forwarding are asynchronous, calls to
+ * the same node keep their order. A single node cluster, the default, never makes a remote call.
+ * <p>
+ * The nodes share a secret, which is sent with every call. Calls with another secret or from an unknown node are
+ * refused, so clients that find the link in the registry cannot reserve names or inject events.
+ */
+public class ClusterNode extends UnicastRemoteObject implements ClusterLink {
+    public static final String BINDING_NAME = "ClusterLink";
+    public static final String STANDALONE_NODE_ID = "local";
+
+    private static final long serialVersionUID = 1L;
+
+    private final String nodeId;
+    private final List<String> nodeIds;
+    private final String secret;
+    private final RMIServer server;
+    private final Map<String, String> reservations = new ConcurrentHashMap<>();
+    private final Map<String, ClusterLink> links = new ConcurrentHashMap<>();
+    private final Map<String, ExecutorService> senders = new ConcurrentHashMap<>();
+    private final Set<String> lostNodes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param nodeId  id of this node, must be one of the node ids
+     * @param nodeIds all nodes of the cluster in the same order on every node
+     * @param secret  shared by all nodes, required if there is more than one node
+     * @param server  handles the calls of other nodes
+     * @param socketFactory
+     * @throws RemoteException
+     */
+    public ClusterNode(String nodeId, List<String> nodeIds, String secret, RMIServer server,
+                       ChatSocketFactory socketFactory) throws RemoteException {
+        super(0, socketFactory, socketFactory);
+        if (!nodeIds.contains(nodeId)) {
+            throw new IllegalArgumentException("Node " + nodeId + " is not part of the cluster " + nodeIds);
+        }
+        if (nodeIds.size() > 1 && (secret == null || secret.isEmpty())) {
+            throw new IllegalArgumentException("A cluster needs the rmi.chat.cluster.secret setting");
+        }
+        this.nodeId = nodeId;
+        this.nodeIds = Collections.unmodifiableList(new ArrayList<>(nodeIds));
+        this.secret = secret;
+        this.server = server;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public boolean isClustered() {
+        return nodeIds.size() > 1;
+    }
+
+    /**
+     * Announces this node to the nodes that are running already and fetches their users. Nodes that start later
+     * announce themselves.
+     */
+    public void start() {
+        for (String otherId : nodeIds) {
+            if (!otherId.equals(nodeId)) {
+                try {
+                    server.onRemotePresence(otherId, link(otherId).nodeStarted(secret, nodeId));
+                } catch (RemoteException | NotBoundException e) {
+                    links.remove(otherId);
+                    System.err.println("Node " + otherId + " is not reachable yet: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves a username at its owner node
+     *
+     * @param username
+     * @return false if the name is taken somewhere in the cluster
+     * @throws RemoteException if the owner node cannot be reached
+     */
+    public boolean claim(String username) throws RemoteException {
+        String owner = ownerOf(username);
+        if (owner.equals(nodeId)) {
+            return reserve(username, nodeId);
+        }
+        try {
+            return link(owner).claimUsername(secret, username, nodeId);
+        } catch (NotBoundException e) {
+            throw new RemoteException("Node " + owner + " is not running", e);
+        }
+    }
+
+    /**
+     * Releases a username reserved by this node. Waits for the owner, so a user who rejoins right away is not
+     * refused.
+     *
+     * @param username
+     */
+    public void release(String username) {
+        String owner = ownerOf(username);
+        if (owner.equals(nodeId)) {
+            unreserve(username, nodeId);
+            return;
+        }
+        try {
+            link(owner).releaseUsername(secret, username, nodeId);
+        } catch (RemoteException | NotBoundException e) {
+            System.err.println("Could not release " + username + " at node " + owner + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends status changes of local users to all other nodes
+     *
+     * @param changes
+     */
+    public void replicate(List<UserPresence> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        nodeIds.stream()
+                .filter(otherId -> !otherId.equals(nodeId))
+                .forEach(otherId -> send(otherId, link -> link.presenceChanged(secret, nodeId, changes)));
+    }
+
+    /**
+     * Asks the node of a user whether it accepts a peer. Synchronous, the caller needs the answer.
+     *
+     * @param otherId
+     * @param from
+     * @param to
+     * @return false if the user is not available or the node cannot be reached
+     */
+    public boolean requestPeer(String otherId, String from, String to) {
+        try {
+            return link(otherId).acceptPeer(secret, from, to);
+        } catch (RemoteException | NotBoundException e) {
+            onFailure(otherId, e);
+            return false;
+        }
+    }
+
+    public void forwardPeerReleased(String otherId, String username, String peerName) {
+        send(otherId, link -> link.releasePeer(secret, username, peerName));
+    }
+
+    /**
+     * Forwards messages to a user of another node. Mailbox messages that cannot be delivered go back to the mailbox
+     * of this node.
+     *
+     * @param otherId
+     * @param recipient
+     * @param messages
+     * @param mailbox
+     */
+    public void forwardMessages(String otherId, String recipient, List<ChatMessage> messages, boolean mailbox) {
+        send(otherId, link -> link.deliverMessages(secret, recipient, messages, mailbox),
+                () -> {
+                    if (mailbox) {
+                        server.onMailboxForwardFailed(recipient, messages);
+                    }
+                });
+    }
+
+    @FunctionalInterface
+    private interface LinkCall {
+        void invoke(ClusterLink link) throws RemoteException;
+    }
+
+    private void send(String otherId, LinkCall call) {
+        send(otherId, call, () -> {
+        });
+    }
+
+    private void send(String otherId, LinkCall call, Runnable onFailed) {
+        senders.computeIfAbsent(otherId, id -> Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-" + id);
+            thread.setDaemon(true);
+            return thread;
+        })).execute(() -> {
+            try {
+                ClusterLink link = link(otherId);
+                if (lostNodes.remove(otherId)) {
+                    // The node is back, its users have been forgotten meanwhile
+                    server.onRemotePresence(otherId, link.getLocalUsers(secret));
+                }
+                call.invoke(link);
+            } catch (RemoteException | NotBoundException e) {
+                onFailure(otherId, e);
+                onFailed.run();
+            }
+        });
+    }
+
+    /**
+     * A node that refuses connections is gone, its users are no longer shown. They come back with its next
+     * replication once it has been restarted.
+     */
+    private void onFailure(String otherId, Exception e) {
+        links.remove(otherId);
+        System.err.println("Call to node " + otherId + " failed: " + e.getMessage());
+        if (e instanceof ConnectException || e instanceof NoSuchObjectException || e instanceof NotBoundException) {
+            lostNodes.add(otherId);
+            server.onNodeLost(otherId);
+        }
+    }
+
+    private ClusterLink link(String otherId) throws RemoteException, NotBoundException {
+        ClusterLink link = links.get(otherId);
+        if (link == null) {
+            int separator = otherId.lastIndexOf(':');
+            link = (ClusterLink) LocateRegistry.getRegistry(otherId.substring(0, separator),
+                    Integer.parseInt(otherId.substring(separator + 1))).lookup(BINDING_NAME);
+            links.put(otherId, link);
+        }
+        return link;
+    }
+
+    private String ownerOf(String username) {
+        return nodeIds.get(Math.floorMod(UserRegistry.key(username).hashCode(), nodeIds.size()));
+    }
+
+    public void shutdown() {
+        senders.values().forEach(ExecutorService::shutdownNow);
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // Already unexported
+        }
+    }
+
+    private boolean reserve(String username, String claimingNode) {
+        return reservations.putIfAbsent(UserRegistry.key(username), claimingNode) == null;
+    }
+
+    private void unreserve(String username, String claimingNode) {
+        reservations.remove(UserRegistry.key(username), claimingNode);
+    }
+
+    /**
+     * Refuses a call that does not carry the secret of the cluster, compared in constant time
+     */
+    private void authenticate(String callerSecret) throws AccessException {
+        if (secret == null || callerSecret == null || !MessageDigest.isEqual(
+                secret.getBytes(StandardCharsets.UTF_8), callerSecret.getBytes(StandardCharsets.UTF_8))) {
+            throw new AccessException("Not a node of this cluster");
+        }
+    }
+
+    private void authenticate(String callerSecret, String otherId) throws AccessException {
+        authenticate(callerSecret);
+        if (!nodeIds.contains(otherId)) {
+            throw new AccessException("Node " + otherId + " is not part of the cluster");
+        }
+    }
+
+    @Override
+    public boolean claimUsername(String callerSecret, String username, String claimingNode) throws AccessException {
+        authenticate(callerSecret, claimingNode);
+        return reserve(username, claimingNode);
+    }
+
+    @Override
+    public void releaseUsername(String callerSecret, String username, String claimingNode) throws AccessException {
+        authenticate(callerSecret, claimingNode);
+        unreserve(username, claimingNode);
+    }
+
+    @Override
+    public List<UserPresence> nodeStarted(String callerSecret, String otherId) throws AccessException {
+        authenticate(callerSecret, otherId);
+        // Users of a crashed run of the node cannot rejoin while their names are still reserved
+        reservations.values().removeIf(otherId::equals);
+        links.remove(otherId);
+        lostNodes.remove(otherId);
+        server.onNodeLost(otherId);
+        return server.getLocalPresence();
+    }
+
+    @Override
+    public List<UserPresence> getLocalUsers(String callerSecret) throws AccessException {
+        authenticate(callerSecret);
+        return server.getLocalPresence();
+    }
+
+    @Override
+    public void presenceChanged(String callerSecret, String otherId, List<UserPresence> changes)
+            throws AccessException {
+        authenticate(callerSecret, otherId);
+        server.onRemotePresence(otherId, changes);
+    }
+
+    @Override
+    public boolean acceptPeer(String callerSecret, String from, String to) throws AccessException {
+        authenticate(callerSecret);
+        return server.onRemotePeerRequest(from, to);
+    }
+
+    @Override
+    public void releasePeer(String callerSecret, String username, String peerName) throws AccessException {
+        authenticate(callerSecret);
+        server.onRemotePeerReleased(username, peerName);
+    }
+
+    @Override
+    public void deliverMessages(String callerSecret, String recipient, List<ChatMessage> messages, boolean mailbox)
+            throws AccessException {
+        authenticate(callerSecret);
+        server.onRemoteMessages(recipient, messages, mailbox);
+    }
+}
@@ -0,0 +1,258 @@
+package rmi.server;
+
+import rmi.shared.InterestFilter;
+import rmi.shared.RMIClientInterface;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server-side record of a connected client. Keeps the remote instance together with its canonical username and the
+ * last known status, so the server never has to ask the client for them.
+ */
+public class ConnectedUser {
+    private final String userName;
+    private static final SecureRandom TOKENS = new SecureRandom();
+
+    private final String resumeToken;
+    private volatile RMIClientInterface clientInterface;
+    private final ClientOutbox outbox;
+    private volatile boolean isBusy = false;
+    private volatile long leaseRenewedAt = System.nanoTime();
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    private volatile InterestFilter interest = InterestFilter.everyone();
+    // Presence version the client has been brought to, only used by the presence tracker while holding its lock
+    private long presenceVersion;
+    private boolean presenceStale;
+
+    public ConnectedUser(String userName, RMIClientInterface clientInterface, ClientOutbox outbox) {
+        this(userName, clientInterface, outbox, 0);
+    }
+
+    /**
+     * @param userName
+     * @param clientInterface
+     * @param outbox
+     * @param presenceVersion presence version when the user joined, the client loads a snapshot of it or later
+     */
+    public ConnectedUser(String userName, RMIClientInterface clientInterface, ClientOutbox outbox,
+                         long presenceVersion) {
+        this(userName, clientInterface, outbox, presenceVersion, newResumeToken());
+    }
+
+    /**
+     * @param userName
+     * @param clientInterface null for a user restored after a restart, until its client resumes the session
+     * @param outbox
+     * @param presenceVersion
+     * @param resumeToken     secret the client resumes its session with
+     */
+    public ConnectedUser(String userName, RMIClientInterface clientInterface, ClientOutbox outbox,
+                         long presenceVersion, String resumeToken) {
+        this.userName = userName;
+        this.clientInterface = clientInterface;
+        this.outbox = outbox;
+        this.presenceVersion = presenceVersion;
+        this.resumeToken = resumeToken;
+    }
+
+    private static String newResumeToken() {
+        byte[] bytes = new byte[16];
+        TOKENS.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Username exactly as the client chose it while joining
+     *
+     * @return username
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Shared instance of the client which is used for callbacks
+     *
+     * @return client interface
+     */
+    public RMIClientInterface getClientInterface() {
+        return clientInterface;
+    }
+
+    /**
+     * Secret the client resumes its session with after the server has been restarted
+     *
+     * @return token
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * Whether the token matches, compared in constant time
+     *
+     * @param token
+     * @return
+     */
+    public boolean isResumeToken(String token) {
+        return token != null && MessageDigest.isEqual(resumeToken.getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Connects a client to the session, events held in the meantime are delivered to it
+     *
+     * @param client
+     */
+    public void attach(RMIClientInterface client) {
+        clientInterface = client;
+        renewLease();
+        outbox.attach(client);
+    }
+
+    /**
+     * True for a user restored after a restart whose client has not resumed the session yet
+     *
+     * @return
+     */
+    public boolean isDetached() {
+        return clientInterface == null;
+    }
+
+    /**
+     * Outbound queue of the client. All callbacks to the client should go through it.
+     *
+     * @return outbox
+     */
+    public ClientOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Enqueues a callback for the client without waiting for it to be delivered
+     *
+     * @param call
+     */
+    public void send(OutboundEvent.RemoteCall call) {
+        outbox.offer(OutboundEvent.of(call));
+    }
+
+    /**
+     * Enqueues a callback for the client as one target of a broadcast
+     *
+     * @param call
+     * @param broadcast
+     */
+    public void send(OutboundEvent.RemoteCall call, Broadcast broadcast) {
+        offer(OutboundEvent.of(call), broadcast);
+    }
+
+    /**
+     * Enqueues a lobby notification which may be coalesced with older ones if the client falls behind
+     *
+     * @param call
+     * @param broadcast
+     */
+    public void sendLobbyEvent(OutboundEvent.RemoteCall call, Broadcast broadcast) {
+        offer(OutboundEvent.coalescing("lobby", call), broadcast);
+    }
+
+    /**
+     * Enqueues a presence delta. A dropped delta leaves a gap in the versions, which makes the client fetch a new
+     * snapshot.
+     *
+     * @param call
+     * @param broadcast
+     */
+    public void sendPresenceEvent(OutboundEvent.RemoteCall call, Broadcast broadcast) {
+        offer(OutboundEvent.coalescing("presence", call), broadcast);
+    }
+
+    private void offer(OutboundEvent event, Broadcast broadcast) {
+        broadcast.add(outbox);
+        outbox.offer(event.within(broadcast));
+    }
+
+    /**
+     * Cached status of the client. True if the client is peered up with some other client
+     *
+     * @return boolean
+     */
+    public boolean getIsBusy() {
+        return isBusy;
+    }
+
+    public void setIsBusy(boolean isBusy) {
+        this.isBusy = isBusy;
+    }
+
+    /**
+     * Marks the client as alive
+     */
+    public void renewLease() {
+        leaseRenewedAt = System.nanoTime();
+    }
+
+    /**
+     * Time of the last lease renewal, in {@link System#nanoTime()} units
+     *
+     * @return time
+     */
+    public long getLeaseRenewedAt() {
+        return leaseRenewedAt;
+    }
+
+    /**
+     * Names of the chat rooms the user is a member of, used to leave them when the user disconnects
+     *
+     * @return room names
+     */
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    public InterestFilter getInterest() {
+        return interest;
+    }
+
+    public void setInterest(InterestFilter interest) {
+        this.interest = interest;
+    }
+
+    /**
+     * Whether the client wants the lobby events and presence changes of the given user. The client's own events are
+     * always of interest.
+     *
+     * @param username
+     * @return
+     */
+    public boolean isInterestedIn(String username) {
+        return interest.matches(username) || userName.equalsIgnoreCase(username);
+    }
+
+    long getPresenceVersion() {
+        return presenceVersion;
+    }
+
+    void setPresenceVersion(long presenceVersion) {
+        this.presenceVersion = presenceVersion;
+    }
+
+    /**
+     * True if the client has missed changes of interest, e.g. while it was busy, and needs a new snapshot
+     *
+     * @return
+     */
+    boolean isPresenceStale() {
+        return presenceStale;
+    }
+
+    void setPresenceStale(boolean presenceStale) {
+        this.presenceStale = presenceStale;
+    }
+}
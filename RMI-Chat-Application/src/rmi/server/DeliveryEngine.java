@@ -0,0 +1,86 @@
+package rmi.server;
+
+import rmi.shared.RMIClientInterface;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Creates outbound queues for connected clients and owns the worker threads that drain them. Callbacks to clients
+ * are made by these workers, so RMI methods of the server only enqueue events and return. A worker is blocked for
+ * the round trip of its client, so the number of workers bounds how many clients are called at the same time. Workers
+ * are started on demand and stop after a minute without work.
+ */
+public class DeliveryEngine {
+    public static final int DEFAULT_THREADS = Math.max(128, Runtime.getRuntime().availableProcessors() * 8);
+    private static final long IDLE_WORKER_SECONDS = 60;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.COALESCE;
+    public static final int DEFAULT_MAX_CONSECUTIVE_FAILURES = 3;
+
+    private final ExecutorService workers;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final int maxConsecutiveFailures;
+    private final Consumer<ClientOutbox> evictionListener;
+
+    /**
+     * @param threads          maximum number of worker threads shared by all outboxes
+     * @param queueCapacity    maximum number of pending events per client
+     * @param overflowPolicy   what to do when a client's queue is full
+     * @param maxConsecutiveFailures number of failed deliveries in a row after which a client is given up
+     * @param evictionListener called with the outbox when a client has to be disconnected, either because its
+     *                         queue overflowed or because it cannot be reached
+     */
+    public DeliveryEngine(int threads, int queueCapacity, OverflowPolicy overflowPolicy, int maxConsecutiveFailures,
+                          Consumer<ClientOutbox> evictionListener) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, IDLE_WORKER_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new DeliveryThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        this.workers = pool;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.maxConsecutiveFailures = maxConsecutiveFailures;
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Creates the outbound queue of a newly joined client
+     *
+     * @param userName
+     * @param clientInterface null to hold the events until a client is attached
+     * @return outbox
+     */
+    public ClientOutbox createOutbox(String userName, RMIClientInterface clientInterface) {
+        return new ClientOutbox(userName, clientInterface, workers, queueCapacity, overflowPolicy,
+                maxConsecutiveFailures, outbox -> workers.execute(() -> evictionListener.accept(outbox)));
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private static class DeliveryThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "delivery-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
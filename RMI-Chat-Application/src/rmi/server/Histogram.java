@@ -0,0 +1,94 @@
+package rmi.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, e.g. latencies in nanoseconds. Values are counted in buckets whose
+ * width grows with the value, every power of two is split into 8 buckets, so percentiles are accurate to 12.5% over
+ * the whole range. Recording a value does not allocate.
+ */
+public class Histogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value negative values are recorded as 0
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(v));
+        count.increment();
+        sum.add(v);
+        if (v > max.get()) {
+            max.accumulateAndGet(v, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below which the given share of the recorded values falls
+     *
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return upper bound of the bucket the quantile falls into, never more than the maximum
+     */
+    public long getPercentile(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + subBucket * width + width - 1;
+    }
+}
@@ -0,0 +1,66 @@
+package rmi.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Background task that evicts clients whose lease has expired. Clients renew their lease periodically, a client
+ * which has not done so for a whole lease duration is considered dead.
+ */
+public class LeaseSweeper {
+    public static final long DEFAULT_LEASE_DURATION_MILLIS = 30_000;
+
+    private final UserRegistry registry;
+    private final long leaseDurationMillis;
+    private final Consumer<ConnectedUser> evictionListener;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lease-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param registry
+     * @param leaseDurationMillis how long a lease is valid after it has been renewed
+     * @param evictionListener    called for every user whose lease has expired
+     */
+    public LeaseSweeper(UserRegistry registry, long leaseDurationMillis, Consumer<ConnectedUser> evictionListener) {
+        this.registry = registry;
+        this.leaseDurationMillis = leaseDurationMillis;
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Starts sweeping. Leases are checked several times per lease duration, so an expired client is evicted soon
+     * after its lease ends.
+     */
+    public void start() {
+        long period = Math.max(1, leaseDurationMillis / 4);
+        scheduler.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public long getLeaseDurationMillis() {
+        return leaseDurationMillis;
+    }
+
+    private void sweep() {
+        long expiredBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(leaseDurationMillis);
+        registry.getAll()
+                .stream()
+                .filter(user -> user.getLeaseRenewedAt() - expiredBefore < 0)
+                .forEach(user -> {
+                    try {
+                        evictionListener.accept(user);
+                    } catch (RuntimeException e) {
+                        // Keep sweeping, one failed eviction must not stop the others
+                        System.err.println("Could not evict " + user.getUserName() + ": " + e.getMessage());
+                    }
+                });
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,133 @@
+package rmi.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed size file of the message log, mapped into memory. Records are appended one after another, each one is
+ * prefixed with its length and checksum. The unused rest of the file is zero, so a length of 0 marks the end.
+ */
+class LogSegment {
+    static final int HEADER_SIZE = 8;
+
+    private final int id;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int writePosition = 0;
+    private volatile boolean dirty = false;
+
+    private LogSegment(int id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Opens or creates a segment file and maps it
+     *
+     * @param id
+     * @param path
+     * @param size size of the file in bytes, ignored for existing files
+     * @return segment
+     * @throws IOException
+     */
+    static LogSegment open(int id, Path path, int size) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long length = channel.size() > 0 ? channel.size() : size;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        return new LogSegment(id, path, channel, buffer);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Appends a record. Only one thread may append at a time.
+     *
+     * @param record
+     * @return offset of the record in the segment, -1 if it does not fit
+     */
+    int append(ByteBuffer record) {
+        int length = record.remaining();
+        if (writePosition + HEADER_SIZE + length > buffer.capacity()) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+
+        int offset = writePosition;
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset + HEADER_SIZE);
+        target.put(record);
+        target.putInt(offset + 4, (int) crc.getValue());
+        // Written last, a record whose length is visible is complete
+        target.putInt(offset, length);
+        writePosition = offset + HEADER_SIZE + length;
+        dirty = true;
+        return offset;
+    }
+
+    /**
+     * Returns the body of the record at the given offset, without copying it
+     *
+     * @param offset
+     * @return record, null if there is no valid record at the offset
+     */
+    ByteBuffer read(int offset) {
+        if (offset < 0 || offset + HEADER_SIZE > buffer.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + HEADER_SIZE + length > buffer.capacity()) {
+            return null;
+        }
+        ByteBuffer record = buffer.slice(offset + HEADER_SIZE, length);
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+        return (int) crc.getValue() == buffer.getInt(offset + 4) ? record : null;
+    }
+
+    /**
+     * Offset right after the record at the given offset
+     */
+    int next(int offset) {
+        return offset + HEADER_SIZE + buffer.getInt(offset);
+    }
+
+    /**
+     * Continues appending after the last valid record, e.g. after reopening the segment
+     *
+     * @param position
+     */
+    void setWritePosition(int position) {
+        writePosition = position;
+    }
+
+    /**
+     * Writes the appended records to the disk if there are any since the last call
+     */
+    void force() {
+        if (dirty) {
+            dirty = false;
+            buffer.force();
+        }
+    }
+
+    void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
@@ -0,0 +1,182 @@
+package rmi.server;
+
+import rmi.shared.ChatMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages waiting for a user who is not connected. The latest messages are kept in memory, once they take up too
+ * many bytes they are appended to the mailbox file together. Messages in the file are always older than the ones in
+ * memory, so reading the file first keeps the order. The bytes held in memory are also added to a counter shared
+ * by all mailboxes of the store.
+ */
+class Mailbox {
+    /**
+     * Estimated heap taken by a message besides its strings
+     */
+    private static final int MESSAGE_OVERHEAD_BYTES = 64;
+
+    private final Path file;
+    private final AtomicLong storeMemoryBytes;
+    private final ArrayDeque<ChatMessage> memory = new ArrayDeque<>();
+    private long memoryBytes;
+    private int spilledCount;
+    private long latestTimestamp;
+
+    private Mailbox(Path file, AtomicLong storeMemoryBytes, int spilledCount, long latestTimestamp) {
+        this.file = file;
+        this.storeMemoryBytes = storeMemoryBytes;
+        this.spilledCount = spilledCount;
+        this.latestTimestamp = latestTimestamp;
+    }
+
+    /**
+     * @param file
+     * @param storeMemoryBytes bytes held in memory by all mailboxes of the store
+     * @return empty mailbox
+     */
+    static Mailbox create(Path file, AtomicLong storeMemoryBytes) {
+        return new Mailbox(file, storeMemoryBytes, 0, 0);
+    }
+
+    /**
+     * Opens a mailbox whose messages have been written to the given file before
+     *
+     * @param file
+     * @param storeMemoryBytes bytes held in memory by all mailboxes of the store
+     * @return mailbox
+     * @throws IOException
+     */
+    static Mailbox recover(Path file, AtomicLong storeMemoryBytes) throws IOException {
+        List<ChatMessage> messages = read(file);
+        long latest = messages.isEmpty() ? 0 : messages.get(messages.size() - 1).getTimestamp();
+        return new Mailbox(file, storeMemoryBytes, messages.size(), latest);
+    }
+
+    /**
+     * Adds a message. The messages in memory are moved to the file once they exceed the mailbox's budget or all
+     * mailboxes together exceed the store's, so the store never holds more than its budget.
+     *
+     * @param message
+     * @param maxMessages    maximum number of messages in the mailbox
+     * @param maxMemoryBytes bytes of messages this mailbox keeps in memory
+     * @param maxStoreBytes  bytes of messages all mailboxes keep in memory
+     * @return false if the mailbox is full
+     * @throws IOException
+     */
+    synchronized boolean add(ChatMessage message, int maxMessages, long maxMemoryBytes, long maxStoreBytes)
+            throws IOException {
+        if (size() >= maxMessages) {
+            return false;
+        }
+        long bytes = sizeOf(message);
+        memory.addLast(message);
+        memoryBytes += bytes;
+        latestTimestamp = message.getTimestamp();
+        if (storeMemoryBytes.addAndGet(bytes) > maxStoreBytes || memoryBytes > maxMemoryBytes) {
+            spill();
+        }
+        return true;
+    }
+
+    private static long sizeOf(ChatMessage message) {
+        return MESSAGE_OVERHEAD_BYTES + 2L * (message.getText().length() + message.getSender().length());
+    }
+
+    /**
+     * Appends the messages in memory to the file
+     *
+     * @throws IOException
+     */
+    synchronized void spill() throws IOException {
+        if (memory.isEmpty()) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            for (ChatMessage message : memory) {
+                byte[] text = message.getText().getBytes(StandardCharsets.UTF_8);
+                out.writeLong(message.getTimestamp());
+                out.writeLong(message.getSequence());
+                out.writeUTF(message.getSender());
+                out.writeInt(text.length);
+                out.write(text);
+            }
+        }
+        spilledCount += memory.size();
+        clearMemory();
+    }
+
+    private void clearMemory() {
+        memory.clear();
+        storeMemoryBytes.addAndGet(-memoryBytes);
+        memoryBytes = 0;
+    }
+
+    /**
+     * Returns all messages that have been sent after the given time, oldest first, and deletes the mailbox file
+     *
+     * @param sentAfter epoch milliseconds
+     * @return messages
+     * @throws IOException
+     */
+    synchronized List<ChatMessage> drain(long sentAfter) throws IOException {
+        List<ChatMessage> messages = spilledCount > 0 ? read(file) : new ArrayList<>();
+        messages.addAll(memory);
+        messages.removeIf(message -> message.getTimestamp() <= sentAfter);
+        delete();
+        return messages;
+    }
+
+    synchronized void delete() throws IOException {
+        clearMemory();
+        spilledCount = 0;
+        Files.deleteIfExists(file);
+    }
+
+    synchronized int size() {
+        return spilledCount + memory.size();
+    }
+
+    synchronized long getLatestTimestamp() {
+        return latestTimestamp;
+    }
+
+    private static List<ChatMessage> read(Path file) throws IOException {
+        List<ChatMessage> messages = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return messages;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                long timestamp;
+                try {
+                    timestamp = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                long sequence = in.readLong();
+                String sender = in.readUTF();
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                messages.add(new ChatMessage(sender, timestamp, sequence, new String(text, StandardCharsets.UTF_8)));
+            }
+        } catch (EOFException e) {
+            // The last message was only partly written, keep the complete ones
+        }
+        return messages;
+    }
+}
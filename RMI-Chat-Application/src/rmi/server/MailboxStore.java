@@ -0,0 +1,202 @@
+package rmi.server;
+
+import rmi.shared.ChatMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Mailboxes of users who are not connected. Messages are kept until the user joins again or their time to live has
+ * passed. Each mailbox holds its latest messages in memory up to a number of bytes and moves them to its file
+ * beyond that. A mailbox whose message takes all mailboxes together over the store's budget is moved to its file as
+ * well, so the memory used by mailboxes stays bounded however many users and messages are waiting.
+ */
+public class MailboxStore {
+    public static final int DEFAULT_MAX_MESSAGES = 1000;
+    public static final long DEFAULT_MAILBOX_MEMORY_BYTES = 64 * 1024;
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 16 * 1024 * 1024;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final int DEFAULT_MAX_MAILBOXES = 10_000;
+
+    private static final String FILE_SUFFIX = ".mbox";
+
+    private final Path directory;
+    private final int maxMessages;
+    private final long mailboxMemoryBytes;
+    private final long maxMemoryBytes;
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final long ttlMillis;
+    private final int maxMailboxes;
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mailbox-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private MailboxStore(Path directory, int maxMessages, long mailboxMemoryBytes, long maxMemoryBytes,
+                         long ttlMillis, int maxMailboxes) {
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.mailboxMemoryBytes = mailboxMemoryBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.ttlMillis = ttlMillis;
+        this.maxMailboxes = maxMailboxes;
+    }
+
+    /**
+     * Opens the mailboxes in the given directory, creating it if needed
+     *
+     * @param directory
+     * @param maxMessages        maximum number of messages waiting for one user
+     * @param mailboxMemoryBytes bytes of messages a mailbox keeps in memory before they are written to its file
+     * @param maxMemoryBytes     bytes of messages all mailboxes together keep in memory
+     * @param ttlMillis          how long a message waits before it is discarded
+     * @param maxMailboxes       maximum number of users messages may wait for
+     * @return store
+     * @throws IOException
+     */
+    public static MailboxStore open(Path directory, int maxMessages, long mailboxMemoryBytes, long maxMemoryBytes,
+                                    long ttlMillis, int maxMailboxes) throws IOException {
+        Files.createDirectories(directory);
+        MailboxStore store = new MailboxStore(directory, maxMessages, mailboxMemoryBytes, maxMemoryBytes, ttlMillis,
+                maxMailboxes);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(FILE_SUFFIX)) {
+                    store.mailboxes.put(name.substring(0, name.length() - FILE_SUFFIX.length()),
+                            Mailbox.recover(file, store.memoryBytes));
+                }
+            }
+        }
+        long period = Math.max(1, Math.min(ttlMillis, TimeUnit.HOURS.toMillis(1)) / 4);
+        store.sweeper.scheduleWithFixedDelay(store::sweep, period, period, TimeUnit.MILLISECONDS);
+        return store;
+    }
+
+    /**
+     * Leaves a message for a user
+     *
+     * @param recipient
+     * @param message
+     * @return false if the recipient's mailbox is full, there are too many mailboxes already or the message could not
+     * be stored
+     */
+    public boolean deposit(String recipient, ChatMessage message) {
+        boolean[] added = {false};
+        // Computing under the key's lock keeps a message from being added to a mailbox that is just being drained
+        mailboxes.compute(fileName(recipient), (key, mailbox) -> {
+            if (mailbox == null && mailboxes.size() >= maxMailboxes) {
+                System.err.println("Too many mailboxes, no message is kept for " + recipient);
+                return null;
+            }
+            Mailbox target = mailbox != null ? mailbox
+                    : Mailbox.create(directory.resolve(key + FILE_SUFFIX), memoryBytes);
+            try {
+                added[0] = target.add(message, maxMessages, mailboxMemoryBytes, maxMemoryBytes);
+            } catch (IOException e) {
+                System.err.println("Could not store message for " + recipient + ": " + e.getMessage());
+            }
+            return target;
+        });
+        return added[0];
+    }
+
+    /**
+     * Removes the mailbox of a user and returns its messages that have not expired, oldest first
+     *
+     * @param recipient
+     * @return messages
+     */
+    public List<ChatMessage> drain(String recipient) {
+        List<ChatMessage> messages = new ArrayList<>();
+        // The file is read and deleted under the key's lock, a message deposited meanwhile goes to a new file
+        mailboxes.computeIfPresent(fileName(recipient), (key, mailbox) -> {
+            try {
+                messages.addAll(mailbox.drain(System.currentTimeMillis() - ttlMillis));
+                return null;
+            } catch (IOException e) {
+                System.err.println("Could not read messages for " + recipient + ": " + e.getMessage());
+                return mailbox;
+            }
+        });
+        return messages;
+    }
+
+    /**
+     * Number of messages waiting for a user
+     *
+     * @param recipient
+     * @return message count
+     */
+    public int size(String recipient) {
+        Mailbox mailbox = mailboxes.get(fileName(recipient));
+        return mailbox == null ? 0 : mailbox.size();
+    }
+
+    /**
+     * Estimated bytes of the messages all mailboxes hold in memory
+     *
+     * @return bytes
+     */
+    public long getMemoryBytes() {
+        return memoryBytes.get();
+    }
+
+    /**
+     * Discards mailboxes whose latest message has expired. Older messages of other mailboxes are skipped when they
+     * are drained.
+     */
+    private void sweep() {
+        long expiredBefore = System.currentTimeMillis() - ttlMillis;
+        mailboxes.keySet().forEach(key -> mailboxes.computeIfPresent(key, (k, mailbox) -> {
+            if (mailbox.getLatestTimestamp() > expiredBefore) {
+                return mailbox;
+            }
+            try {
+                mailbox.delete();
+            } catch (IOException e) {
+                System.err.println("Could not delete mailbox " + key + ": " + e.getMessage());
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Writes the messages held in memory to the mailbox files, so they survive a restart
+     */
+    public void close() {
+        sweeper.shutdownNow();
+        mailboxes.forEach((key, mailbox) -> {
+            try {
+                mailbox.spill();
+            } catch (IOException e) {
+                System.err.println("Could not save mailbox " + key + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Usernames may contain characters that are not allowed in file names, the file is named after the hex encoded
+     * key of the user instead
+     */
+    private static String fileName(String username) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : UserRegistry.key(username).getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,331 @@
+package rmi.server;
+
+import rmi.shared.HistoryEntry;
+import rmi.shared.HistoryPage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Append-only store of the chat messages. Messages are written to memory mapped segment files, a background task
+ * writes them to the disk every few milliseconds, so a message costs a memory copy instead of a disk write. Only the
+ * location of each message is kept in memory, indexed by conversation and sequence number, the messages themselves
+ * are read from the segments when a page of history is requested. The index is rebuilt from the segments on start.
+ */
+public class MessageLog {
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10;
+    public static final int MAX_PAGE_SIZE = 500;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Conversation ids and senders are written with an unsigned short length
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Map<Integer, LogSegment> segments = new ConcurrentHashMap<>();
+    private final Map<String, ConversationIndex> conversations = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "message-log-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private LogSegment current;
+
+    private MessageLog(Path directory, int segmentBytes, FileChannel lockChannel, FileLock lock) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens the log in the given directory, creating it if needed, and recovers the messages written before
+     *
+     * @param directory
+     * @param segmentBytes        size of a segment file
+     * @param flushIntervalMillis how often appended messages are written to the disk
+     * @return log
+     * @throws IOException if the directory cannot be used, e.g. because another server has opened it
+     */
+    public static MessageLog open(Path directory, int segmentBytes, long flushIntervalMillis) throws IOException {
+        Files.createDirectories(directory);
+        FileChannel lockChannel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Message log " + directory + " is used by another server");
+        }
+
+        MessageLog log = new MessageLog(directory, segmentBytes, lockChannel, lock);
+        try {
+            log.recover();
+        } catch (IOException e) {
+            log.close();
+            throw e;
+        }
+        log.flusher.scheduleWithFixedDelay(log::flush, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        return log;
+    }
+
+    /**
+     * Maps the existing segments in order and indexes their records. Appending continues after the last valid record,
+     * a record that was only partly written before a crash is overwritten. Files that are named like segments but
+     * carry no segment id are left alone.
+     */
+    private void recover() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> {
+                        int id = segmentId(name);
+                        if (id >= 0) {
+                            ids.add(id);
+                        } else {
+                            System.err.println("Ignoring " + name + " in the message log, it is not a segment");
+                        }
+                    });
+        }
+        Collections.sort(ids);
+
+        for (int id : ids) {
+            LogSegment segment = LogSegment.open(id, segmentPath(id), segmentBytes);
+            segments.put(id, segment);
+            int offset = 0;
+            ByteBuffer record;
+            while ((record = segment.read(offset)) != null) {
+                record.getLong();
+                record.getLong();
+                String conversation = readString(record);
+                conversations.computeIfAbsent(conversation, key -> new ConversationIndex()).add(location(id, offset));
+                offset = segment.next(offset);
+            }
+            segment.setWritePosition(offset);
+            current = segment;
+        }
+        if (current == null) {
+            current = LogSegment.open(0, segmentPath(0), segmentBytes);
+            segments.put(0, current);
+        }
+    }
+
+    /**
+     * Appends a message to its conversation
+     *
+     * @param conversation
+     * @param sender
+     * @param timestamp    epoch milliseconds
+     * @param message
+     * @return sequence number of the message in the conversation, -1 if it could not be stored, e.g. because it is
+     * larger than a segment
+     */
+    public long append(String conversation, String sender, long timestamp, String message) {
+        byte[] conversationBytes = conversation.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 8 + 2 + conversationBytes.length + 2 + senderBytes.length + 4 + messageBytes.length;
+        if (conversationBytes.length > MAX_STRING_BYTES || senderBytes.length > MAX_STRING_BYTES
+                || length > segmentBytes - LogSegment.HEADER_SIZE) {
+            System.err.println("Message of " + sender + " does not fit into a log segment");
+            return -1;
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        ConversationIndex index = conversations.computeIfAbsent(conversation, key -> new ConversationIndex());
+
+        synchronized (this) {
+            long sequence = index.getLastSequence() + 1;
+            record.putLong(sequence)
+                    .putLong(timestamp)
+                    .putShort((short) conversationBytes.length).put(conversationBytes)
+                    .putShort((short) senderBytes.length).put(senderBytes)
+                    .putInt(messageBytes.length).put(messageBytes)
+                    .flip();
+            try {
+                int offset = current.append(record);
+                if (offset < 0) {
+                    // The record fits into an empty segment, checked above
+                    roll();
+                    offset = current.append(record);
+                }
+                if (offset < 0) {
+                    return -1;
+                }
+                index.add(location(current.getId(), offset));
+                return sequence;
+            } catch (IOException e) {
+                System.err.println("Could not store message of " + sender + ": " + e.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Continues with a new segment. Called with the lock held.
+     */
+    private void roll() throws IOException {
+        LogSegment full = current;
+        int id = full.getId() + 1;
+        current = LogSegment.open(id, segmentPath(id), segmentBytes);
+        segments.put(id, current);
+        full.force();
+    }
+
+    /**
+     * Returns stored messages of a conversation in the order they were sent
+     *
+     * @param conversation
+     * @param fromSequence sequence number of the first message, 0 or less for the latest messages
+     * @param limit        maximum number of messages, at most {@link #MAX_PAGE_SIZE}
+     * @return page
+     */
+    public HistoryPage getHistory(String conversation, long fromSequence, int limit) {
+        int pageSize = Math.max(0, Math.min(limit, MAX_PAGE_SIZE));
+        ConversationIndex index = conversations.get(conversation);
+        if (index == null) {
+            return new HistoryPage(conversation, Collections.emptyList(), 1, 0);
+        }
+
+        long lastSequence = index.getLastSequence();
+        long first = fromSequence > 0 ? fromSequence : Math.max(1, lastSequence - pageSize + 1);
+        long[] locations = index.getLocations(first, pageSize);
+        List<HistoryEntry> entries = new ArrayList<>(locations.length);
+        for (long location : locations) {
+            LogSegment segment = segments.get((int) (location >>> 32));
+            ByteBuffer record = segment == null ? null : segment.read((int) location);
+            if (record == null) {
+                break;
+            }
+            long sequence = record.getLong();
+            long timestamp = record.getLong();
+            readString(record);
+            String sender = readString(record);
+            byte[] message = new byte[record.getInt()];
+            record.get(message);
+            entries.add(new HistoryEntry(sequence, timestamp, sender, new String(message, StandardCharsets.UTF_8)));
+        }
+        return new HistoryPage(conversation, entries, first + entries.size(), lastSequence);
+    }
+
+    /**
+     * Writes the appended messages to the disk. Appends are not blocked meanwhile, all messages appended since the
+     * previous flush are written together.
+     */
+    public void flush() {
+        LogSegment segment;
+        synchronized (this) {
+            segment = current;
+        }
+        try {
+            segment.force();
+        } catch (RuntimeException e) {
+            System.err.println("Could not flush message log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Flushes the log and releases its files
+     */
+    public void close() {
+        flusher.shutdownNow();
+        synchronized (this) {
+            for (LogSegment segment : segments.values()) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    System.err.println("Could not close " + segment.getPath() + ": " + e.getMessage());
+                }
+            }
+            try {
+                lock.release();
+                lockChannel.close();
+            } catch (IOException e) {
+                System.err.println("Could not release message log lock: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return id of the segment file with the given name, -1 if the name does not contain one
+     */
+    private static int segmentId(String name) {
+        String id = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+        if (id.isEmpty() || !id.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            // Too large
+            return -1;
+        }
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Locations of the messages of one conversation. The message with sequence number n is at index n - 1.
+     */
+    private static class ConversationIndex {
+        private long[] locations = new long[16];
+        private int count = 0;
+
+        synchronized void add(long location) {
+            if (count == locations.length) {
+                locations = Arrays.copyOf(locations, count * 2);
+            }
+            locations[count++] = location;
+        }
+
+        synchronized long getLastSequence() {
+            return count;
+        }
+
+        synchronized long[] getLocations(long fromSequence, int limit) {
+            if (fromSequence < 1 || fromSequence > count) {
+                return new long[0];
+            }
+            int from = (int) (fromSequence - 1);
+            return Arrays.copyOfRange(locations, from, Math.min(count, from + limit));
+        }
+    }
+}
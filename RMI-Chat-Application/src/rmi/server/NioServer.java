@@ -0,0 +1,588 @@
+package rmi.server;
+
+import rmi.shared.FrameCodec;
+import rmi.shared.RMIClientInterface;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Alternative to RMI for clients: one persistent connection per client, served by a single selector thread, with the
+ * frames of {@link FrameCodec}. Calls of a connection are run one at a time, in order, on a shared worker pool.
+ * Events for the client are pushed on the same connection; they are only queued, so a delivery worker never waits
+ * for the network. A client that does not read its events is cut off once too many bytes are waiting for it, a
+ * client whose calls pile up is no longer read from until the workers have caught up.
+ * <p>
+ * Compression and username ids are used if the client asks for them in its first frame and they are enabled here.
+ */
+public class NioServer {
+    public static final int DEFAULT_WORKER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    public static final int DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_QUEUED_CALLS = 64;
+
+    private final RMIServer server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final int maxPendingBytes;
+    private final int receiveBufferBytes;
+    private final int sendBufferBytes;
+    private final int features;
+    private final int compressionThreshold;
+    private final Queue<Connection> writeRequests = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> readRequests = new ConcurrentLinkedQueue<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final Thread selectorThread;
+    private volatile boolean closed;
+
+    private NioServer(RMIServer server, ServerSocketChannel serverChannel, Selector selector, int workerThreads,
+                      int maxPendingBytes, int sendBufferBytes, int receiveBufferBytes, int features,
+                      int compressionThreshold) {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.selector = selector;
+        this.workers = Executors.newFixedThreadPool(workerThreads, new WorkerThreadFactory());
+        this.maxPendingBytes = maxPendingBytes;
+        this.sendBufferBytes = sendBufferBytes;
+        this.receiveBufferBytes = receiveBufferBytes;
+        this.features = features;
+        this.compressionThreshold = compressionThreshold;
+        this.selectorThread = new Thread(this::run, "nio-selector");
+        this.selectorThread.setDaemon(true);
+    }
+
+    /**
+     * Starts listening for clients
+     *
+     * @param server
+     * @param port
+     * @param workerThreads        threads running the calls of all connections
+     * @param maxPendingBytes      bytes that may wait to be sent to a client before it is disconnected
+     * @param sendBufferBytes      0 for the system default
+     * @param receiveBufferBytes   0 for the system default
+     * @param features             features of {@link FrameCodec} clients may use
+     * @param compressionThreshold frames of fewer bytes are not compressed
+     * @return running transport
+     * @throws IOException
+     */
+    public static NioServer open(RMIServer server, int port, int workerThreads, int maxPendingBytes,
+                                 int sendBufferBytes, int receiveBufferBytes, int features,
+                                 int compressionThreshold) throws IOException {
+        Selector selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            if (receiveBufferBytes > 0) {
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferBytes);
+            }
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        NioServer nioServer = new NioServer(server, serverChannel, selector, workerThreads, maxPendingBytes,
+                sendBufferBytes, receiveBufferBytes, features, compressionThreshold);
+        nioServer.selectorThread.start();
+        return nioServer;
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connections.forEach(Connection::close);
+        workers.shutdownNow();
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Could not close NIO transport: " + e.getMessage());
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select();
+                Connection connection;
+                while ((connection = writeRequests.poll()) != null) {
+                    connection.enableWrites();
+                }
+                while ((connection = readRequests.poll()) != null) {
+                    connection.resumeReads();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection selected = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                selected.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                selected.onWritable();
+                            }
+                        }
+                    } catch (CancelledKeyException e) {
+                        // The connection has been closed by another thread
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("NIO selector failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (sendBufferBytes > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferBytes);
+        }
+        if (receiveBufferBytes > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferBytes);
+        }
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+    }
+
+    /**
+     * A client's connection. Reads happen on the selector thread, writes on whichever thread sends a frame, or on
+     * the selector thread if the socket buffer was full.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final RMIClientInterface client;
+        private final Set<String> usernames = ConcurrentHashMap.newKeySet();
+        // Bodies of the frames waiting for a worker
+        private final ArrayDeque<ByteBuffer> calls = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        // Held while a frame is encoded and queued, so frames are sent in the order the codec has encoded them
+        private final Object encoding = new Object();
+        private volatile FrameCodec codec = new FrameCodec();
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        private boolean running;
+        private long queuedBytes;
+        private boolean readsPaused;
+        private long pendingBytes;
+        private boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.client = (RMIClientInterface) Proxy.newProxyInstance(RMIClientInterface.class.getClassLoader(),
+                    new Class<?>[]{RMIClientInterface.class}, (proxy, method, args) -> push(method, args));
+        }
+
+        private Object push(Method method, Object[] args) throws RemoteException {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return client == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(this);
+                    default:
+                        return "NioClient" + usernames;
+                }
+            }
+            if (method.getReturnType() != void.class) {
+                throw new RemoteException(method.getName() + " cannot be called over the NIO transport");
+            }
+            synchronized (encoding) {
+                ByteBuffer frame;
+                try {
+                    frame = codec.push(method, args);
+                } catch (IOException e) {
+                    throw new RemoteException("Could not encode " + method.getName(), e);
+                }
+                sendEncoded(frame);
+            }
+            return null;
+        }
+
+        void onReadable() {
+            try {
+                if (channel.read(readBuffer) < 0) {
+                    close();
+                    return;
+                }
+                readFrames();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void readFrames() throws IOException {
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 4 && !pauseReadsIfBusy()) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length <= 0 || length > FrameCodec.MAX_FRAME_BYTES) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (readBuffer.remaining() < 4 + length) {
+                    if (readBuffer.capacity() < 4 + length) {
+                        ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                        larger.put(readBuffer);
+                        readBuffer = larger;
+                        return;
+                    }
+                    break;
+                }
+                readBuffer.position(readBuffer.position() + 4);
+                byte[] body = new byte[length];
+                readBuffer.get(body);
+                submit(ByteBuffer.wrap(body));
+            }
+            if (readBuffer.capacity() > READ_BUFFER_BYTES && readBuffer.remaining() <= READ_BUFFER_BYTES) {
+                // A large frame has been handed over, don't keep its buffer
+                ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_BYTES);
+                smaller.put(readBuffer);
+                readBuffer = smaller;
+            } else {
+                readBuffer.compact();
+            }
+        }
+
+        /**
+         * Stops reading from the client while too many of its calls or bytes wait for a worker
+         *
+         * @return true if reads are paused
+         */
+        private boolean pauseReadsIfBusy() {
+            synchronized (calls) {
+                if (!readsPaused && (calls.size() >= MAX_QUEUED_CALLS || queuedBytes >= maxPendingBytes)) {
+                    readsPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                return readsPaused;
+            }
+        }
+
+        /**
+         * Reads again once the workers have caught up, starting with the frames that are buffered already
+         */
+        void resumeReads() {
+            synchronized (calls) {
+                if (!key.isValid()) {
+                    return;
+                }
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            try {
+                readFrames();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        /**
+         * Runs the calls of this connection one at a time in arrival order
+         */
+        private void submit(ByteBuffer body) {
+            synchronized (calls) {
+                calls.addLast(body);
+                queuedBytes += body.remaining();
+                if (running) {
+                    return;
+                }
+                running = true;
+            }
+            workers.execute(this::runCalls);
+        }
+
+        private void runCalls() {
+            boolean drained = false;
+            try {
+                while (true) {
+                    ByteBuffer body;
+                    boolean resume = false;
+                    synchronized (calls) {
+                        body = calls.pollFirst();
+                        if (body == null) {
+                            running = false;
+                            drained = true;
+                            return;
+                        }
+                        queuedBytes -= body.remaining();
+                        if (readsPaused && calls.size() < MAX_QUEUED_CALLS / 2 && queuedBytes < maxPendingBytes / 2) {
+                            readsPaused = false;
+                            resume = true;
+                        }
+                    }
+                    if (resume) {
+                        readRequests.add(this);
+                        selector.wakeup();
+                    }
+                    handle(body);
+                }
+            } finally {
+                if (!drained) {
+                    // A call has failed unexpectedly, the connection cannot be trusted anymore
+                    synchronized (calls) {
+                        running = false;
+                    }
+                    close();
+                }
+            }
+        }
+
+        private void handle(ByteBuffer body) {
+            FrameCodec.Frame frame;
+            try {
+                frame = codec.decode(body);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Dropping malformed frame: " + e.getMessage());
+                close();
+                return;
+            }
+            if (frame.getType() == FrameCodec.HELLO) {
+                negotiate(frame);
+                return;
+            }
+            if (frame.getType() != FrameCodec.CALL) {
+                return;
+            }
+            Method method = frame.getMethod();
+            Object[] args = frame.getArguments();
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            for (int i = 0; i < args.length && i < parameterTypes.length; i++) {
+                if (parameterTypes[i] == RMIClientInterface.class) {
+                    // The client is reached through this connection instead of a callback stub
+                    args[i] = client;
+                }
+            }
+            Object result = null;
+            Throwable error = null;
+            try {
+                result = method.invoke(server, args);
+                if (startsSession(method, result)) {
+                    usernames.add((String) args[0]);
+                }
+            } catch (InvocationTargetException e) {
+                error = e.getCause();
+            } catch (IllegalAccessException | IllegalArgumentException e) {
+                error = new RemoteException("Invalid call of " + method.getName(), e);
+            }
+            synchronized (encoding) {
+                try {
+                    sendEncoded(error == null ? encodeReply(frame.getId(), result) : encodeError(frame.getId(), error));
+                } catch (RemoteException e) {
+                    // The client has gone, close() cleans up
+                }
+            }
+        }
+
+        /**
+         * Answers the client's HELLO with the features both sides support and uses them from now on
+         */
+        private void negotiate(FrameCodec.Frame hello) {
+            int accepted = FrameCodec.negotiate(hello, features);
+            synchronized (encoding) {
+                codec = new FrameCodec(accepted, compressionThreshold);
+                try {
+                    send(FrameCodec.hello(accepted));
+                } catch (RemoteException e) {
+                    // The client has gone, close() cleans up
+                }
+            }
+        }
+
+        /**
+         * Sends a frame of the connection's codec. A frame that cannot be sent may have given out username ids the
+         * client will never learn, so the connection is closed.
+         */
+        private void sendEncoded(ByteBuffer frame) throws RemoteException {
+            try {
+                send(frame);
+            } catch (RemoteException e) {
+                if (codec.isStateful()) {
+                    closeLater();
+                }
+                throw e;
+            }
+        }
+
+        private boolean startsSession(Method method, Object result) {
+            switch (method.getName()) {
+                case "joinToChatServer":
+                case "resumeSession":
+                    return Boolean.TRUE.equals(result);
+                case "openSession":
+                    return result != null;
+                default:
+                    return false;
+            }
+        }
+
+        private ByteBuffer encodeReply(long id, Object result) {
+            try {
+                return codec.reply(id, result);
+            } catch (IOException e) {
+                return encodeError(id, new RemoteException("Result cannot be sent over the NIO transport", e));
+            }
+        }
+
+        private ByteBuffer encodeError(long id, Throwable error) {
+            try {
+                return codec.error(id, error);
+            } catch (IOException e) {
+                try {
+                    return codec.error(id, new RemoteException(String.valueOf(error)));
+                } catch (IOException unexpected) {
+                    throw new IllegalStateException(unexpected);
+                }
+            }
+        }
+
+        /**
+         * Writes the frame right away if nothing is waiting, otherwise queues it for the selector thread
+         */
+        void send(ByteBuffer frame) throws RemoteException {
+            synchronized (this) {
+                if (closed) {
+                    throw new ConnectException("Connection is closed");
+                }
+                if (pendingBytes + frame.remaining() > maxPendingBytes) {
+                    throw new RemoteException("Client does not read, " + pendingBytes + " bytes are waiting");
+                }
+                if (outbound.isEmpty()) {
+                    try {
+                        channel.write(frame);
+                    } catch (IOException e) {
+                        closeLater();
+                        throw new ConnectException("Could not write to client", e);
+                    }
+                    if (!frame.hasRemaining()) {
+                        return;
+                    }
+                }
+                boolean wasEmpty = outbound.isEmpty();
+                outbound.addLast(frame);
+                pendingBytes += frame.remaining();
+                if (!wasEmpty) {
+                    return;
+                }
+            }
+            writeRequests.add(this);
+            selector.wakeup();
+        }
+
+        void enableWrites() {
+            synchronized (this) {
+                if (!closed && key.isValid() && !outbound.isEmpty()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        void onWritable() {
+            synchronized (this) {
+                try {
+                    while (!outbound.isEmpty()) {
+                        ByteBuffer frame = outbound.peekFirst();
+                        int written = channel.write(frame);
+                        pendingBytes -= written;
+                        if (frame.hasRemaining()) {
+                            return;
+                        }
+                        outbound.pollFirst();
+                    }
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                } catch (IOException e) {
+                    closeLater();
+                }
+            }
+        }
+
+        private void closeLater() {
+            workers.execute(this::close);
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                outbound.clear();
+                pendingBytes = 0;
+            }
+            connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            if (!usernames.isEmpty() && !NioServer.this.closed) {
+                // Disconnecting may call other nodes, keep it off the selector thread
+                workers.execute(() -> usernames.forEach(username -> server.disconnectClient(username, client)));
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "nio-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package rmi.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call count and latencies of one remote method
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+    private final ServerOperation operation;
+    private final Histogram latencyNanos = new Histogram();
+    private final LongAdder rejected = new LongAdder();
+
+    public OperationMetrics(ServerOperation operation) {
+        this.operation = operation;
+    }
+
+    public ServerOperation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Records a finished call
+     *
+     * @param startNanos {@link System#nanoTime()} when the call started
+     */
+    public void record(long startNanos) {
+        latencyNanos.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a call rejected by the rate limiter
+     */
+    public void recordRejected() {
+        rejected.increment();
+    }
+
+    @Override
+    public long getCalls() {
+        return latencyNanos.getCount();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latencyNanos.getMean() / 1000;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return latencyNanos.getPercentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getP99Micros() {
+        return latencyNanos.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getP999Micros() {
+        return latencyNanos.getPercentile(0.999) / 1000;
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return latencyNanos.getMax() / 1000;
+    }
+
+    @Override
+    public long getRejectedCalls() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,26 @@
+package rmi.server;
+
+/**
+ * JMX view of the calls of one remote method
+ */
+public interface OperationMetricsMBean {
+
+    long getCalls();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    long getMaxMicros();
+
+    /**
+     * Calls rejected by the rate limiter, they are not counted as calls
+     *
+     * @return
+     */
+    long getRejectedCalls();
+}
@@ -0,0 +1,80 @@
+package rmi.server;
+
+import rmi.shared.RMIClientInterface;
+
+import java.rmi.RemoteException;
+
+/**
+ * A single callback waiting in a client's outbound queue
+ */
+public class OutboundEvent {
+
+    /**
+     * Remote call to be made on the client when the event is delivered
+     */
+    @FunctionalInterface
+    public interface RemoteCall {
+        void invoke(RMIClientInterface client) throws RemoteException;
+    }
+
+    private final RemoteCall call;
+    private final String coalesceKey;
+    private final Broadcast broadcast;
+    private final long enqueuedAt = System.nanoTime();
+
+    private OutboundEvent(RemoteCall call, String coalesceKey, Broadcast broadcast) {
+        this.call = call;
+        this.coalesceKey = coalesceKey;
+        this.broadcast = broadcast;
+    }
+
+    /**
+     * Creates an event that must be delivered as it is, e.g. a chat message
+     *
+     * @param call
+     * @return event
+     */
+    public static OutboundEvent of(RemoteCall call) {
+        return new OutboundEvent(call, null, null);
+    }
+
+    /**
+     * Creates an event that may be replaced by a newer event with the same key when the queue overflows
+     *
+     * @param coalesceKey
+     * @param call
+     * @return event
+     */
+    public static OutboundEvent coalescing(String coalesceKey, RemoteCall call) {
+        return new OutboundEvent(call, coalesceKey, null);
+    }
+
+    /**
+     * Returns a copy of the event whose outcome is reported to the given broadcast
+     *
+     * @param broadcast
+     * @return event
+     */
+    public OutboundEvent within(Broadcast broadcast) {
+        return new OutboundEvent(call, coalesceKey, broadcast);
+    }
+
+    public RemoteCall getCall() {
+        return call;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    /**
+     * @return broadcast the event belongs to, null for an event to a single client
+     */
+    public Broadcast getBroadcast() {
+        return broadcast;
+    }
+
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+}
@@ -0,0 +1,21 @@
+package rmi.server;
+
+/**
+ * Decides what happens when a client's outbound queue is full
+ */
+public enum OverflowPolicy {
+    /**
+     * Discard the oldest queued event to make room for the new one
+     */
+    DROP_OLDEST,
+    /**
+     * Replace a queued event of the same kind (e.g. an older lobby notification) with the new one. Falls back to
+     * dropping the oldest event that has a kind, or the new event if it has one. Events without a kind, e.g. chat
+     * messages, are never dropped; the client is disconnected if only those are queued.
+     */
+    COALESCE,
+    /**
+     * Give up on the client and disconnect it from the chat room
+     */
+    DISCONNECT
+}
@@ -0,0 +1,57 @@
+package rmi.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pairings of users who are chatting with each other. Both directions are stored under case-folded keys, so finding
+ * the peer of either side is a single map lookup. Callers are expected to hold the locks of both users while pairing
+ * or unpairing them.
+ */
+public class PeerIndex {
+    private final ConcurrentMap<String, String> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Pairs two users
+     *
+     * @param first
+     * @param second
+     */
+    public void pair(String first, String second) {
+        peers.put(UserRegistry.key(first), second);
+        peers.put(UserRegistry.key(second), first);
+    }
+
+    /**
+     * Removes the pairing of a user from both directions
+     *
+     * @param username
+     * @return canonical name of the former peer or null if the user was not paired
+     */
+    public String unpair(String username) {
+        String peer = peers.remove(UserRegistry.key(username));
+        if (peer != null) {
+            // The reverse entry holds the canonical name, which may differ in case from the one the caller used
+            peers.computeIfPresent(UserRegistry.key(peer),
+                    (key, value) -> value.equalsIgnoreCase(username) ? null : value);
+        }
+        return peer;
+    }
+
+    /**
+     * Finds the peer of a user
+     *
+     * @param username
+     * @return canonical name of the peer or null if the user is not paired
+     */
+    public String findPeer(String username) {
+        if (username == null) {
+            return null;
+        }
+        return peers.get(UserRegistry.key(username));
+    }
+
+    public int size() {
+        return peers.size() / 2;
+    }
+}
@@ -0,0 +1,215 @@
+package rmi.server;
+
+import rmi.shared.PresenceDelta;
+import rmi.shared.PresenceSnapshot;
+import rmi.shared.PresenceStatus;
+import rmi.shared.UserPresence;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Versions the presence of the users and pushes changes to the clients as small deltas. Statuses are read from the
+ * registry when a delta is built, so the latest delta of a user always carries its current status even if two
+ * transitions of the same user are published in a different order than they happened.
+ * <p>
+ * Changes can be collected into periodic digests, so a busy lobby costs each client one delta per interval instead
+ * of one per change. Each client only gets the changes its interest filter matches, clients in a chat get none and
+ * fetch a snapshot once they are back in the lobby.
+ */
+public class PresenceTracker {
+    public static final long DEFAULT_DIGEST_INTERVAL_MILLIS = 100;
+
+    private final UserRegistry registry;
+    private final RemoteUsers remoteUsers;
+    private final ServerMetrics metrics;
+    private final BroadcastEngine broadcasts;
+    private final UserDirectory directory = new UserDirectory();
+    private final Map<String, UserPresence> pending = new LinkedHashMap<>();
+    private final ScheduledExecutorService digester;
+    private long version = 0;
+
+    /**
+     * Creates a tracker that sends every change right away
+     *
+     * @param registry
+     * @param remoteUsers
+     * @param metrics
+     * @param broadcasts
+     */
+    public PresenceTracker(UserRegistry registry, RemoteUsers remoteUsers, ServerMetrics metrics,
+                           BroadcastEngine broadcasts) {
+        this(registry, remoteUsers, metrics, broadcasts, 0);
+    }
+
+    /**
+     * @param registry
+     * @param remoteUsers
+     * @param metrics
+     * @param broadcasts
+     * @param digestIntervalMillis interval of the digests, 0 to send every change right away
+     */
+    public PresenceTracker(UserRegistry registry, RemoteUsers remoteUsers, ServerMetrics metrics,
+                           BroadcastEngine broadcasts, long digestIntervalMillis) {
+        this.registry = registry;
+        this.remoteUsers = remoteUsers;
+        this.metrics = metrics;
+        this.broadcasts = broadcasts;
+        if (digestIntervalMillis > 0) {
+            digester = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "presence-digest");
+                thread.setDaemon(true);
+                return thread;
+            });
+            digester.scheduleWithFixedDelay(this::flush, digestIntervalMillis, digestIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            digester = null;
+        }
+    }
+
+    /**
+     * Publishes the current status of the given users to the connected clients, with the next digest or right away.
+     * Users of other nodes are published with their last replicated status. The directory is updated right away.
+     *
+     * @param usernames
+     * @return the published statuses
+     */
+    public synchronized List<UserPresence> publish(String... usernames) {
+        List<UserPresence> changes = new ArrayList<>(usernames.length);
+        for (String username : usernames) {
+            ConnectedUser user = registry.find(username);
+            UserPresence remote = user == null ? remoteUsers.find(username) : null;
+            if (user != null) {
+                changes.add(toPresence(user));
+            } else {
+                changes.add(remote != null ? remote : new UserPresence(username, PresenceStatus.OFFLINE));
+            }
+        }
+        for (UserPresence change : changes) {
+            directory.update(change);
+            pending.put(UserRegistry.key(change.getUserName()), change);
+        }
+        if (digester == null) {
+            flush();
+        }
+        return changes;
+    }
+
+    /**
+     * Sends the pending changes as the next version
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<UserPresence> changes = new ArrayList<>(pending.values());
+        pending.clear();
+        long previous = version++;
+        OutboundEvent.RemoteCall shared = null;
+        int targets = 0;
+        // Enqueue while holding the lock, so every client receives the deltas in version order
+        long start = System.nanoTime();
+        Broadcast broadcast = broadcasts.start();
+        for (ConnectedUser client : registry.getAll()) {
+            List<UserPresence> interesting = client.getInterest().isEveryone() ? changes : filter(changes, client);
+            if (interesting.isEmpty()) {
+                continue;
+            }
+            if (client.getIsBusy()) {
+                client.setPresenceStale(true);
+                continue;
+            }
+            OutboundEvent.RemoteCall call;
+            if (interesting == changes && !client.isPresenceStale() && client.getPresenceVersion() == previous) {
+                if (shared == null) {
+                    PresenceDelta delta = new PresenceDelta(previous, version, changes);
+                    shared = user -> user.applyPresenceDelta(delta);
+                }
+                call = shared;
+            } else {
+                PresenceDelta delta = new PresenceDelta(
+                        client.isPresenceStale() ? PresenceDelta.UNKNOWN_BASE : client.getPresenceVersion(),
+                        version, interesting);
+                call = user -> user.applyPresenceDelta(delta);
+            }
+            client.sendPresenceEvent(call, broadcast);
+            client.setPresenceVersion(version);
+            client.setPresenceStale(false);
+            targets++;
+        }
+        broadcast.finish();
+        metrics.recordFanOut(targets, start);
+    }
+
+    private static List<UserPresence> filter(List<UserPresence> changes, ConnectedUser client) {
+        List<UserPresence> interesting = new ArrayList<>();
+        for (UserPresence change : changes) {
+            if (client.isInterestedIn(change.getUserName())) {
+                interesting.add(change);
+            }
+        }
+        return interesting;
+    }
+
+    /**
+     * Brings a client up to the current version, it loads a snapshot next, e.g. after resuming its session
+     *
+     * @param user
+     */
+    public synchronized void resync(ConnectedUser user) {
+        user.setPresenceVersion(version);
+        user.setPresenceStale(false);
+    }
+
+    /**
+     * Returns the statuses of all users at the current version, including the users of other nodes
+     *
+     * @return snapshot
+     */
+    public synchronized PresenceSnapshot snapshot() {
+        List<UserPresence> users = getLocalPresence();
+        users.addAll(remoteUsers.getAll());
+        return new PresenceSnapshot(version, users);
+    }
+
+    /**
+     * Returns the statuses of the users connected to this node
+     *
+     * @return statuses
+     */
+    public List<UserPresence> getLocalPresence() {
+        List<UserPresence> users = new ArrayList<>();
+        registry.getAll().forEach(user -> users.add(toPresence(user)));
+        return users;
+    }
+
+    /**
+     * Directory of the published users
+     *
+     * @return
+     */
+    public UserDirectory getDirectory() {
+        return directory;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public void close() {
+        if (digester != null) {
+            digester.shutdownNow();
+        }
+    }
+
+    private static UserPresence toPresence(ConnectedUser user) {
+        return new UserPresence(user.getUserName(),
+                user.getIsBusy() ? PresenceStatus.BUSY : PresenceStatus.AVAILABLE);
+    }
+}
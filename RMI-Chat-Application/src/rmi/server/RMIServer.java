@@ -1,30 +1,339 @@
 package rmi.server;
 
+import rmi.shared.ChatConfig;
+import rmi.shared.ChatMessage;
+import rmi.shared.ChatSocketFactory;
+import rmi.shared.FileChunk;
+import rmi.shared.FrameCodec;
+import rmi.shared.HistoryPage;
+import rmi.shared.InterestFilter;
+import rmi.shared.NameMatch;
+import rmi.shared.PresenceSnapshot;
+import rmi.shared.PresenceStatus;
 import rmi.shared.RMIClientInterface;
-import rmi.shared.RMIExceptionsUtil;
 import rmi.shared.RMIServerInterface;
+import rmi.shared.RateLimitedException;
+import rmi.shared.TransferOffer;
+import rmi.shared.Transport;
+import rmi.shared.UserPage;
+import rmi.shared.UserPresence;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.AlreadyBoundException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
-import static rmi.shared.RMIExceptionsUtil.*;
-import static rmi.shared.RMIOperationsUtil.findPeerUsername;
-import static rmi.shared.RMIOperationsUtil.findUserFromName;
+import static rmi.shared.RMIOperationsUtil.directConversation;
+import static rmi.shared.RMIOperationsUtil.isValidName;
+import static rmi.shared.RMIOperationsUtil.roomConversation;
 
 public class RMIServer extends UnicastRemoteObject implements RMIServerInterface {
-    private List<RMIClientInterface> connectedClients = new ArrayList<>();
-    private HashMap<String, String> peers = new HashMap<>();
+    private static final long serialVersionUID = 1L;
 
-    public RMIServer() throws RemoteException, AlreadyBoundException {
-        // Create a registry, bind server interface
-        LocateRegistry.createRegistry(2222);
-        Registry registry = LocateRegistry.getRegistry("127.0.0.1", 2222);
+    public static final int DEFAULT_WINDOW_CHUNKS = 8;
+    public static final int DEFAULT_MAX_CHUNK_BYTES = 256 * 1024;
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 64 * 1024;
+    public static final long DEFAULT_METRICS_DUMP_INTERVAL_MILLIS = 60_000;
+
+    private final ChatConfig config = ChatConfig.getDefault();
+    private UserRegistry connectedClients = new UserRegistry();
+    private PeerIndex peers = new PeerIndex();
+    private final RoomRegistry rooms = new RoomRegistry();
+    private final RemoteUsers remoteUsers = new RemoteUsers();
+    private final ServerMetrics metrics = new ServerMetrics(connectedClients);
+    private final BroadcastEngine broadcasts = new BroadcastEngine(
+            config.getInt("rmi.chat.broadcast.maxConcurrency", BroadcastEngine.DEFAULT_MAX_CONCURRENCY),
+            config.getLong("rmi.chat.broadcast.deadlineMillis", BroadcastEngine.DEFAULT_DEADLINE_MILLIS), metrics);
+    private final PresenceTracker presence = new PresenceTracker(connectedClients, remoteUsers, metrics, broadcasts,
+            config.getLong("rmi.chat.presence.digestIntervalMillis", PresenceTracker.DEFAULT_DIGEST_INTERVAL_MILLIS));
+    private final RateLimiter limiter = new RateLimiter(config);
+    private final StripedLocks locks = new StripedLocks(config.getInt("rmi.chat.lockStripes", 64));
+    private final DeliveryEngine deliveryEngine = new DeliveryEngine(
+            config.getInt("rmi.chat.delivery.threads", DeliveryEngine.DEFAULT_THREADS),
+            config.getInt("rmi.chat.delivery.queueCapacity", DeliveryEngine.DEFAULT_QUEUE_CAPACITY),
+            config.getEnum("rmi.chat.delivery.overflowPolicy", OverflowPolicy.class,
+                    DeliveryEngine.DEFAULT_OVERFLOW_POLICY),
+            config.getInt("rmi.chat.delivery.maxConsecutiveFailures",
+                    DeliveryEngine.DEFAULT_MAX_CONSECUTIVE_FAILURES),
+            this::evictUnreachableClient);
+    private final LeaseSweeper leaseSweeper = new LeaseSweeper(connectedClients,
+            config.getLong("rmi.chat.lease.durationMillis", LeaseSweeper.DEFAULT_LEASE_DURATION_MILLIS),
+            this::evictExpiredClient);
+    private final TransferRegistry transfers = new TransferRegistry(
+            config.getInt("rmi.chat.transfer.maxPerUser", TransferRegistry.DEFAULT_MAX_PER_USER));
+    private final int transferWindowChunks = config.getInt("rmi.chat.transfer.windowChunks", DEFAULT_WINDOW_CHUNKS);
+    private final int maxChunkBytes = config.getInt("rmi.chat.transfer.maxChunkBytes", DEFAULT_MAX_CHUNK_BYTES);
+    private final int maxMessageLength = config.getInt("rmi.chat.maxMessageLength", DEFAULT_MAX_MESSAGE_LENGTH);
+    private final MessageLog messageLog;
+    private final MailboxStore mailboxes;
+    private final SessionStore sessions;
+    private final ClusterNode cluster;
+    private volatile NioServer nioServer;
+
+    /**
+     * Creates and exports the server without binding it to a registry, e.g. to use it in-process from benchmarks.
+     * Use {@link #bind(int)} to make it reachable for clients. Messages are stored in the directory given by the
+     * rmi.chat.log.dir setting.
+     *
+     * @throws RemoteException
+     */
+    public RMIServer() throws RemoteException {
+        this(Paths.get(ChatConfig.getDefault().getString("rmi.chat.log.dir", "chat-log")));
+    }
+
+    /**
+     * Creates and exports the server, storing messages and the mailboxes of offline users in the given directory.
+     * The server joins the cluster given by the rmi.chat.cluster.nodes and rmi.chat.cluster.self settings, if any.
+     * A cluster also needs the rmi.chat.cluster.secret setting.
+     *
+     * @param logDirectory
+     * @throws RemoteException if the message log cannot be opened
+     */
+    public RMIServer(Path logDirectory) throws RemoteException {
+        this(logDirectory, ChatConfig.getDefault().getString("rmi.chat.cluster.self", ClusterNode.STANDALONE_NODE_ID),
+                clusterNodes(ChatConfig.getDefault().get("rmi.chat.cluster.nodes")));
+    }
+
+    /**
+     * Creates and exports a node of a cluster. The node shares presence and usernames with the other nodes once it
+     * has been bound with {@link #bind(int)}. The nodes authenticate each other with the rmi.chat.cluster.secret
+     * setting.
+     *
+     * @param logDirectory
+     * @param nodeId       "host:port" of this node, one of the nodes
+     * @param nodeIds      "host:port" of all nodes, in the same order on every node
+     * @throws RemoteException if the message log cannot be opened
+     */
+    public RMIServer(Path logDirectory, String nodeId, List<String> nodeIds) throws RemoteException {
+        this(logDirectory, nodeId, nodeIds, ChatSocketFactory.fromConfig(ChatConfig.getDefault()));
+    }
+
+    private RMIServer(Path logDirectory, String nodeId, List<String> nodeIds, ChatSocketFactory socketFactory)
+            throws RemoteException {
+        super(0, socketFactory, socketFactory);
+        cluster = new ClusterNode(nodeId, nodeIds, config.get("rmi.chat.cluster.secret"), this, socketFactory);
+        MessageLog openedLog = null;
+        MailboxStore openedMailboxes = null;
+        String opening = "message log";
+        try {
+            openedLog = MessageLog.open(logDirectory,
+                    config.getInt("rmi.chat.log.segmentBytes", MessageLog.DEFAULT_SEGMENT_BYTES),
+                    config.getLong("rmi.chat.log.flushIntervalMillis", MessageLog.DEFAULT_FLUSH_INTERVAL_MILLIS));
+            opening = "mailboxes";
+            openedMailboxes = MailboxStore.open(logDirectory.resolve("mailboxes"),
+                    config.getInt("rmi.chat.mailbox.maxMessages", MailboxStore.DEFAULT_MAX_MESSAGES),
+                    config.getLong("rmi.chat.mailbox.memoryBytes", MailboxStore.DEFAULT_MAILBOX_MEMORY_BYTES),
+                    config.getLong("rmi.chat.mailbox.maxMemoryBytes", MailboxStore.DEFAULT_MAX_MEMORY_BYTES),
+                    config.getLong("rmi.chat.mailbox.ttlMillis", MailboxStore.DEFAULT_TTL_MILLIS),
+                    config.getInt("rmi.chat.mailbox.maxMailboxes", MailboxStore.DEFAULT_MAX_MAILBOXES));
+            opening = "sessions";
+            sessions = SessionStore.open(logDirectory.resolve("sessions"));
+        } catch (IOException e) {
+            abortStart(openedLog, openedMailboxes);
+            throw new RemoteException("Could not open " + opening, e);
+        }
+        messageLog = openedLog;
+        mailboxes = openedMailboxes;
+        restoreSessions(sessions.getRestored());
+        if (!cluster.isClustered()) {
+            claimRestoredSessions();
+        }
+        sessions.start(this::getSessionRecords,
+                config.getLong("rmi.chat.session.snapshotIntervalMillis", SessionStore.DEFAULT_INTERVAL_MILLIS));
+        metrics.register();
+        long dumpInterval = config.getLong("rmi.chat.metrics.dumpIntervalMillis", 0);
+        if (dumpInterval > 0) {
+            metrics.startReporting(dumpInterval, System.out);
+        }
+        leaseSweeper.start();
+    }
+
+    /**
+     * Releases what the constructor has started so far, after one of the stores could not be opened
+     *
+     * @param openedLog       null if it has not been opened
+     * @param openedMailboxes null if they have not been opened
+     */
+    private void abortStart(MessageLog openedLog, MailboxStore openedMailboxes) throws NoSuchObjectException {
+        UnicastRemoteObject.unexportObject(this, true);
+        cluster.shutdown();
+        deliveryEngine.shutdown();
+        broadcasts.shutdown();
+        if (openedLog != null) {
+            openedLog.close();
+        }
+        if (openedMailboxes != null) {
+            openedMailboxes.close();
+        }
+    }
+
+    private static List<String> clusterNodes(String setting) {
+        if (setting == null) {
+            return List.of(ClusterNode.STANDALONE_NODE_ID);
+        }
+        List<String> nodes = new ArrayList<>();
+        for (String node : setting.split(",")) {
+            nodes.add(node.trim());
+        }
+        return nodes;
+    }
+
+    /**
+     * Creates a registry on the given port and binds the server interface to it. A cluster node also binds its link
+     * to the other nodes and fetches their users.
+     *
+     * @param port
+     * @throws RemoteException
+     * @throws AlreadyBoundException
+     */
+    public void bind(int port) throws RemoteException, AlreadyBoundException {
+        Registry registry = LocateRegistry.createRegistry(port);
         registry.bind("ServerInterface", this);
+        if (cluster.isClustered()) {
+            registry.bind(ClusterNode.BINDING_NAME, cluster);
+            cluster.start();
+            // The other nodes have just dropped the reservations this node made before it was restarted
+            claimRestoredSessions();
+        }
+    }
+
+    /**
+     * Brings back the sessions of the users who were connected before the restart. The users are detached until
+     * their clients resume, events for them are held meanwhile. Sessions that are not resumed within the lease
+     * duration expire like any other.
+     *
+     * @param records
+     */
+    private void restoreSessions(List<SessionRecord> records) {
+        Map<String, SessionRecord> restored = new HashMap<>();
+        for (SessionRecord record : records) {
+            String username = record.getUserName();
+            ConnectedUser user = new ConnectedUser(username, null, deliveryEngine.createOutbox(username, null), 0,
+                    record.getResumeToken());
+            if (record.getFriends() != null) {
+                user.setInterest(InterestFilter.friendsOnly(record.getFriends()));
+            }
+            if (connectedClients.add(user)) {
+                restored.put(UserRegistry.key(username), record);
+            }
+        }
+        for (SessionRecord record : restored.values()) {
+            ConnectedUser user = connectedClients.find(record.getUserName());
+            String peerName = record.getPeerName();
+            SessionRecord peer = peerName == null ? null : restored.get(UserRegistry.key(peerName));
+            // Chats with users of other nodes are not restored, those nodes have ended them
+            if (peer != null && user.getUserName().equalsIgnoreCase(peer.getPeerName())) {
+                peers.pair(user.getUserName(), peer.getUserName());
+                user.setIsBusy(true);
+            }
+            for (String roomName : record.getRooms()) {
+                if (rooms.create(roomName, user) || rooms.join(roomName, user) != null) {
+                    user.getRooms().add(UserRegistry.key(roomName));
+                }
+            }
+        }
+        if (!restored.isEmpty()) {
+            System.out.println("Restored " + restored.size() + " sessions");
+            presence.publish(restored.values().stream().map(SessionRecord::getUserName).toArray(String[]::new));
+        }
+    }
+
+    /**
+     * Reserves the names of the restored users that have not been resumed yet. A user whose name has been taken in
+     * the meantime loses its session.
+     */
+    private void claimRestoredSessions() {
+        for (ConnectedUser user : connectedClients.getAll()) {
+            if (!user.isDetached()) {
+                continue;
+            }
+            boolean claimed;
+            try {
+                claimed = cluster.claim(user.getUserName());
+            } catch (RemoteException e) {
+                System.err.println("Could not reserve " + user.getUserName() + ": " + e.getMessage());
+                claimed = false;
+            }
+            if (!claimed) {
+                disconnect(user.getUserName(), user);
+            }
+        }
+    }
+
+    /**
+     * Sessions of the connected users as they are written to the session snapshot
+     *
+     * @return records
+     */
+    private Collection<SessionRecord> getSessionRecords() {
+        List<SessionRecord> records = new ArrayList<>();
+        for (ConnectedUser user : connectedClients.getAll()) {
+            List<String> roomNames = new ArrayList<>();
+            for (String key : user.getRooms()) {
+                ChatRoom room = rooms.find(key);
+                if (room != null) {
+                    roomNames.add(room.getName());
+                }
+            }
+            Collections.sort(roomNames);
+            InterestFilter interest = user.getInterest();
+            List<String> friends = null;
+            if (!interest.isEveryone()) {
+                friends = new ArrayList<>(interest.getFriends());
+                Collections.sort(friends);
+            }
+            records.add(new SessionRecord(user.getUserName(), user.getResumeToken(),
+                    peers.findPeer(user.getUserName()), roomNames, friends));
+        }
+        return records;
+    }
+
+    /**
+     * Accepts clients of the NIO transport on the given port, in addition to the RMI clients
+     *
+     * @param port
+     * @throws IOException
+     */
+    public void listen(int port) throws IOException {
+        nioServer = NioServer.open(this, port,
+                config.getInt("rmi.chat.nio.workerThreads", NioServer.DEFAULT_WORKER_THREADS),
+                config.getInt("rmi.chat.nio.maxPendingBytes", NioServer.DEFAULT_MAX_PENDING_BYTES),
+                config.getInt("rmi.chat.transport.sendBufferBytes", 0),
+                config.getInt("rmi.chat.transport.receiveBufferBytes", 0),
+                FrameCodec.supportedFeatures(config),
+                config.getInt("rmi.chat.nio.compressionThreshold", FrameCodec.DEFAULT_COMPRESSION_THRESHOLD));
+    }
+
+    /**
+     * Stops delivering events and unexports the server
+     */
+    public void shutdown() {
+        // Written first, while the users are still connected, so they can resume after a restart
+        sessions.close();
+        if (nioServer != null) {
+            nioServer.close();
+        }
+        leaseSweeper.shutdown();
+        presence.close();
+        deliveryEngine.shutdown();
+        broadcasts.shutdown();
+        mailboxes.close();
+        messageLog.close();
+        metrics.close();
+        cluster.shutdown();
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // Already unexported
+        }
     }
 
     /**
@@ -38,22 +347,176 @@ public class RMIServer extends UnicastRemoteObject implements RMIServerInterface
      */
     @Override
     public boolean joinToChatServer(String username, RMIClientInterface clientInterface) throws RemoteException {
-        Optional<RMIClientInterface> optional = connectedClients
-                .stream()
-                .filter(client -> RMIExceptionsUtil.getUserNameCheckException(client).equalsIgnoreCase(username))
-                .findAny();
+        admit(ServerOperation.JOIN_TO_CHAT_SERVER, username);
+        long start = System.nanoTime();
+        try {
+            return join(username, clientInterface) != null;
+        } finally {
+            metrics.record(ServerOperation.JOIN_TO_CHAT_SERVER, start);
+        }
+    }
+
+    /**
+     * A user joins the chat room and gets a token to resume its session with
+     *
+     * @param username
+     * @param clientInterface
+     * @return resume token, or null if the username has been taken already
+     * @throws RemoteException
+     */
+    @Override
+    public String openSession(String username, RMIClientInterface clientInterface) throws RemoteException {
+        admit(ServerOperation.OPEN_SESSION, username);
+        long start = System.nanoTime();
+        try {
+            ConnectedUser user = join(username, clientInterface);
+            return user == null ? null : user.getResumeToken();
+        } finally {
+            metrics.record(ServerOperation.OPEN_SESSION, start);
+        }
+    }
+
+    private ConnectedUser join(String username, RMIClientInterface clientInterface) throws RemoteException {
+        if (!isValidName(username) || !cluster.claim(username)) {
+            return null;
+        }
+        ConnectedUser newUser = new ConnectedUser(username, clientInterface,
+                deliveryEngine.createOutbox(username, clientInterface), presence.getVersion());
+        boolean joined = connectedClients.add(newUser);
+
+        if (!joined) {
+            newUser.getOutbox().close();
+            cluster.release(username);
+            return null;
+        }
+        publishPresence(username);
+        broadcastLobbyEvent(user -> user.notifyNewUserJoined(username), List.of(username), username);
+        deliverMailbox(newUser);
+        return newUser;
+    }
+
+    /**
+     * A client reattaches to its session, e.g. after the server has been restarted. Nobody is notified, the user's
+     * status has not changed.
+     *
+     * @param username
+     * @param resumeToken
+     * @param clientInterface
+     * @return false if there is no such session or the token does not match
+     * @throws RemoteException
+     */
+    @Override
+    public boolean resumeSession(String username, String resumeToken, RMIClientInterface clientInterface)
+            throws RemoteException {
+        admit(ServerOperation.RESUME_SESSION, username);
+        long start = System.nanoTime();
+        try {
+            ConnectedUser user = connectedClients.find(username);
+            if (user == null || clientInterface == null || !user.isResumeToken(resumeToken)) {
+                return false;
+            }
+            presence.resync(user);
+            user.attach(clientInterface);
+            return true;
+        } finally {
+            metrics.record(ServerOperation.RESUME_SESSION, start);
+        }
+    }
+
+    /**
+     * A user leaves a message for another user. It is delivered right away if the recipient is connected, otherwise
+     * it waits in the recipient's mailbox until the recipient joins again.
+     *
+     * @param username
+     * @param recipientName
+     * @param message
+     * @return
+     * @throws RemoteException
+     */
+    @Override
+    public boolean sendMessageToUser(String username, String recipientName, String message) throws RemoteException {
+        admit(ServerOperation.SEND_MESSAGE_TO_USER, username);
+        long start = System.nanoTime();
+        try {
+            checkMessage(message);
+            ConnectedUser sender = connectedClients.find(username);
+            if (sender == null || !isValidName(recipientName)) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            long sequence = stored(messageLog.append(directConversation(username, recipientName),
+                    sender.getUserName(), now, message));
+            if (!mailboxes.deposit(recipientName, new ChatMessage(sender.getUserName(), now, sequence, message))) {
+                return false;
+            }
+            ConnectedUser recipient = connectedClients.find(recipientName);
+            String recipientNode = recipient == null ? remoteUsers.findNode(recipientName) : null;
+            if (recipient != null) {
+                // Also covers a recipient that joined while the message was being deposited
+                deliverMailbox(recipient);
+            } else if (recipientNode != null) {
+                forwardMailbox(recipientName, recipientNode);
+            }
+            return true;
+        } finally {
+            metrics.record(ServerOperation.SEND_MESSAGE_TO_USER, start);
+        }
+    }
+
+    /**
+     * Rejects a message before anything is stored or delivered
+     *
+     * @param message
+     * @throws RemoteException if the message is too long
+     */
+    private void checkMessage(String message) throws RemoteException {
+        if (message == null || message.length() > maxMessageLength) {
+            throw new RemoteException("A message may have at most " + maxMessageLength + " characters");
+        }
+    }
+
+    /**
+     * A message is only delivered once it has been stored, so its sequence number is valid for the history
+     *
+     * @param sequence
+     * @return sequence
+     * @throws RemoteException if the message could not be stored
+     */
+    private static long stored(long sequence) throws RemoteException {
+        if (sequence < 0) {
+            throw new RemoteException("The message could not be stored");
+        }
+        return sequence;
+    }
+
+    /**
+     * Sends all waiting messages of a user in a single call
+     *
+     * @param user
+     */
+    private void deliverMailbox(ConnectedUser user) {
+        List<ChatMessage> messages = mailboxes.drain(user.getUserName());
+        if (!messages.isEmpty()) {
+            user.send(client -> client.getMailboxMessages(messages));
+        }
+    }
 
-        if (optional.isEmpty()) {
-            ArrayList<RMIClientInterface> temp = new ArrayList<>(connectedClients);
-            connectedClients.add(clientInterface);
-            temp.forEach(client ->
-                    RMIExceptionsUtil.notifyNewUserCheckException(client, RMIExceptionsUtil.getUserNameCheckException(clientInterface)));
+    /**
+     * Hands the mailbox of a user connected to another node over to that node
+     *
+     * @param username
+     * @param nodeId
+     */
+    private void forwardMailbox(String username, String nodeId) {
+        List<ChatMessage> messages = mailboxes.drain(username);
+        if (!messages.isEmpty()) {
+            cluster.forwardMessages(nodeId, username, messages, true);
         }
-        return optional.isEmpty();
     }
 
     /**
-     * A user wants to send a mesage to peer.
+     * A user wants to send a mesage to peer. The message is encoded once and the same envelope is delivered to both
+     * parties.
      *
      * @param peerUserName
      * @param message
@@ -61,17 +524,73 @@ public class RMIServer extends UnicastRemoteObject implements RMIServerInterface
      */
     @Override
     public void sendMessageToPeer(String peerUserName, String message) throws RemoteException {
-        String other = findPeerUsername(peerUserName, peers);
-        if (other != null) {
-            String appendedMessage = new Date() + " - " + other + ": " + message;
-            RMIClientInterface firstUser = findUserFromName(peerUserName, connectedClients);
-            RMIClientInterface secondUser = findUserFromName(other, connectedClients);
-            if (firstUser != null && secondUser != null) {
-                firstUser.getMessageFromPeer(appendedMessage);
-                secondUser.getMessageFromPeer(appendedMessage);
+        admit(ServerOperation.SEND_MESSAGE_TO_PEER, peerUserName);
+        long start = System.nanoTime();
+        try {
+            checkMessage(message);
+            String other = peers.findPeer(peerUserName);
+            if (other != null) {
+                long now = System.currentTimeMillis();
+                long sequence = stored(messageLog.append(directConversation(peerUserName, other), other, now, message));
+                ChatMessage chatMessage = new ChatMessage(other, now, sequence, message);
+                deliverToPair(peerUserName, other, List.of(chatMessage));
+            }
+        } finally {
+            metrics.record(ServerOperation.SEND_MESSAGE_TO_PEER, start);
+        }
+    }
+
+    /**
+     * A user sends several messages to its peer at once. Both parties receive the whole batch in a single call.
+     *
+     * @param peerUserName
+     * @param messages
+     * @throws RemoteException
+     */
+    @Override
+    public void sendMessagesToPeer(String peerUserName, List<String> messages) throws RemoteException {
+        admit(ServerOperation.SEND_MESSAGES_TO_PEER, peerUserName);
+        long start = System.nanoTime();
+        try {
+            for (String message : messages) {
+                checkMessage(message);
+            }
+            String other = peers.findPeer(peerUserName);
+            if (other != null && !messages.isEmpty()) {
+                long now = System.currentTimeMillis();
+                String conversation = directConversation(peerUserName, other);
+                List<ChatMessage> chatMessages = new ArrayList<>(messages.size());
+                for (String message : messages) {
+                    long sequence = stored(messageLog.append(conversation, other, now, message));
+                    chatMessages.add(new ChatMessage(other, now, sequence, message));
+                }
+                deliverToPair(peerUserName, other, chatMessages);
             }
+        } finally {
+            metrics.record(ServerOperation.SEND_MESSAGES_TO_PEER, start);
         }
+    }
 
+    /**
+     * Delivers messages to both users of a chat. A user of another node gets them through its node.
+     *
+     * @param first
+     * @param second
+     * @param messages
+     */
+    private void deliverToPair(String first, String second, List<ChatMessage> messages) {
+        OutboundEvent.RemoteCall call = messages.size() == 1
+                ? user -> user.getMessageFromPeer(messages.get(0))
+                : user -> user.getMessagesFromPeer(messages);
+        for (String username : new String[]{first, second}) {
+            ConnectedUser user = connectedClients.find(username);
+            String node = user == null ? remoteUsers.findNode(username) : null;
+            if (user != null) {
+                user.send(call);
+            } else if (node != null) {
+                cluster.forwardMessages(node, username, messages, false);
+            }
+        }
     }
 
     /**
@@ -82,15 +601,64 @@ public class RMIServer extends UnicastRemoteObject implements RMIServerInterface
      */
     @Override
     public void disconnectFromChatServer(String name) throws RemoteException {
-        connectedClients.removeIf(user -> RMIExceptionsUtil.getUserNameCheckException(user).equalsIgnoreCase(name));
-        String peerName = findPeerUsername(name, peers);
-        if (peerName != null) {
-            RMIClientInterface client = findUserFromName(peerName, connectedClients);
-            if (client != null) {
-                setStatusCheckException(client, false);
+        admit(ServerOperation.DISCONNECT_FROM_CHAT_SERVER, name);
+        long start = System.nanoTime();
+        try {
+            disconnect(name, null);
+        } finally {
+            metrics.record(ServerOperation.DISCONNECT_FROM_CHAT_SERVER, start);
+        }
+    }
+
+    /**
+     * Removes a user, releases its peer and notifies the others.
+     *
+     * @param name
+     * @param expected if not null, the user is only removed if it is still this instance
+     */
+    private void disconnect(String name, ConnectedUser expected) {
+        Optional<ConnectedUser> removed;
+        String peerName;
+        do {
+            String expectedPeer = peers.findPeer(name);
+            peerName = expectedPeer;
+            removed = locks.withLocks(name, expectedPeer, () -> {
+                // The pairing may have changed while waiting for the locks, try again with the new peer
+                if (!Objects.equals(expectedPeer, peers.findPeer(name))) {
+                    return null;
+                }
+                ConnectedUser user = expected == null
+                        ? connectedClients.remove(name)
+                        : connectedClients.remove(expected) ? expected : null;
+                if (user == null) {
+                    return Optional.empty();
+                }
+                user.getOutbox().close();
+                if (expectedPeer != null) {
+                    peers.unpair(user.getUserName());
+                    ConnectedUser client = connectedClients.find(expectedPeer);
+                    if (client != null) {
+                        client.setIsBusy(false);
+                        client.send(peer -> peer.setIsBusy(false));
+                    }
+                }
+                return Optional.of(user);
+            });
+        } while (removed == null);
+
+        if (removed.isPresent()) {
+            ConnectedUser leftUser = removed.get();
+            cluster.release(leftUser.getUserName());
+            leftUser.getRooms().forEach(roomName -> leaveRoom(leftUser, roomName));
+            if (peerName != null) {
+                releaseRemotePeer(leftUser.getUserName(), peerName);
+                publishPresence(leftUser.getUserName(), peerName);
+            } else {
+                publishPresence(leftUser.getUserName());
             }
+            cancelTransfers(leftUser.getUserName(), leftUser.getUserName() + " has left the chat room");
+            broadcastLobbyEvent(user -> user.notifyUserLeft(name), List.of(name));
         }
-        connectedClients.forEach(user -> RMIExceptionsUtil.notifyDisconnectionCheckException(user, name));
     }
 
     /**
@@ -101,21 +669,38 @@ public class RMIServer extends UnicastRemoteObject implements RMIServerInterface
      */
     @Override
     public void returnToHomePage(String username) throws RemoteException {
-        String peerUsername = findPeerUsername(username, peers);
+        admit(ServerOperation.RETURN_TO_HOME_PAGE, username);
+        long start = System.nanoTime();
+        try {
+            String peerUsername = peers.findPeer(username);
+            if (peerUsername == null) {
+                return;
+            }
 
-        if (peerUsername != null) {
-            connectedClients
-                    .stream()
-                    .filter(user -> getUserNameCheckException(user).equalsIgnoreCase(username) ||
-                            getUserNameCheckException(user).equalsIgnoreCase(peerUsername))
-                    .forEach(user -> setStatusCheckException(user, false));
-            connectedClients.forEach(user -> notifyPeerReturnedHomePageCheckException(user, username, peerUsername));
-        }
+            boolean returned = locks.withLocks(username, peerUsername, () -> {
+                // The pairing may have changed while waiting for the locks
+                if (!peerUsername.equals(peers.findPeer(username))) {
+                    return false;
+                }
+                peers.unpair(username);
+                Stream.of(connectedClients.find(username), connectedClients.find(peerUsername))
+                        .filter(Objects::nonNull)
+                        .forEach(client -> {
+                            client.setIsBusy(false);
+                            client.send(user -> user.setIsBusy(false));
+                        });
+                return true;
+            });
 
-        if (peers.containsKey(username)) {
-            peers.remove(username);
-        } else {
-            peers.remove(peerUsername);
+            if (returned) {
+                cancelTransfers(username, "The chat has ended");
+                releaseRemotePeer(username, peerUsername);
+                publishPresence(username, peerUsername);
+                broadcastLobbyEvent(user -> user.peerReturnedHomePage(username, peerUsername),
+                        List.of(username, peerUsername));
+            }
+        } finally {
+            metrics.record(ServerOperation.RETURN_TO_HOME_PAGE, start);
         }
     }
 
@@ -129,59 +714,903 @@ public class RMIServer extends UnicastRemoteObject implements RMIServerInterface
      */
     @Override
     public boolean peerUpWith(String from, String to) throws RemoteException {
-        RMIClientInterface fromUser = findUserFromName(from, connectedClients);
-        RMIClientInterface toUser = findUserFromName(to, connectedClients);
-
-        if (toUser != null) {
-            if (toUser.getIsBusy()) {
-                return false;
-            } else {
-                peers.put(from, to);
-                toUser.notifyPeeredUp(from);
-                if (fromUser != null) {
-                    fromUser.setIsBusy(true);
+        admit(ServerOperation.PEER_UP_WITH, from);
+        long start = System.nanoTime();
+        try {
+            String toNode = connectedClients.find(to) == null ? remoteUsers.findNode(to) : null;
+            if (toNode != null) {
+                return peerUpWithRemote(from, to, toNode);
+            }
+            // Check and update statuses of both users atomically, two users cannot peer up with the same user
+            boolean peered = locks.withLocks(from, to, () -> {
+                ConnectedUser fromUser = connectedClients.find(from);
+                ConnectedUser toUser = connectedClients.find(to);
+                if (fromUser == null || toUser == null || fromUser == toUser
+                        || fromUser.getIsBusy() || toUser.getIsBusy()) {
+                    return false;
                 }
-                connectedClients
-                        .stream()
-                        .filter(user -> !getUserNameCheckException(user).equalsIgnoreCase(from)
-                                && !getUserNameCheckException(user).equalsIgnoreCase(to))
-                        .forEach(user -> notifyStatusChangedCheckException(user, from, to));
+                peers.pair(fromUser.getUserName(), toUser.getUserName());
+                toUser.setIsBusy(true);
+                toUser.send(user -> user.notifyPeeredUp(from));
+                fromUser.setIsBusy(true);
+                fromUser.send(user -> user.setIsBusy(true));
                 return true;
+            });
+
+            if (peered) {
+                publishPresence(from, to);
+                broadcastLobbyEvent(user -> user.notifyStatusChanged(from, to), List.of(from, to), from, to);
+            }
+            return peered;
+        } finally {
+            metrics.record(ServerOperation.PEER_UP_WITH, start);
+        }
+    }
+
+    /**
+     * Peers up with a user of another node. The local user is reserved as busy while the other node is asked, no
+     * lock is held during the remote call, so two nodes asking each other at the same time cannot deadlock.
+     *
+     * @param from
+     * @param to
+     * @param toNode
+     * @return
+     */
+    private boolean peerUpWithRemote(String from, String to, String toNode) {
+        ConnectedUser fromUser = locks.withLock(from, () -> {
+            ConnectedUser user = connectedClients.find(from);
+            if (user == null || user.getIsBusy()) {
+                return null;
             }
+            user.setIsBusy(true);
+            return user;
+        });
+        if (fromUser == null) {
+            return false;
+        }
 
+        boolean accepted = cluster.requestPeer(toNode, fromUser.getUserName(), to);
+        boolean peered = locks.withLock(from, () -> {
+            if (!accepted || connectedClients.find(from) != fromUser) {
+                fromUser.setIsBusy(false);
+                return false;
+            }
+            peers.pair(fromUser.getUserName(), to);
+            fromUser.send(user -> user.setIsBusy(true));
+            return true;
+        });
+        if (accepted && !peered) {
+            // The user has left while waiting for the answer
+            cluster.forwardPeerReleased(toNode, fromUser.getUserName(), to);
         }
-        return false;
+        if (peered) {
+            publishPresence(from);
+            broadcastLobbyEvent(user -> user.notifyStatusChanged(from, to), List.of(from, to), from);
+        }
+        return peered;
     }
 
     /**
-     * Returns all available users in the chat room.
+     * Publishes status changes to the local clients and replicates the ones of local users to the other nodes
+     *
+     * @param usernames
+     */
+    private void publishPresence(String... usernames) {
+        List<UserPresence> changes = presence.publish(usernames);
+        if (cluster.isClustered()) {
+            changes.removeIf(change -> remoteUsers.findNode(change.getUserName()) != null);
+            cluster.replicate(changes);
+        }
+    }
+
+    /**
+     * Lets the node of a remote peer know that the chat is over
+     *
+     * @param username local user
+     * @param peerName
+     */
+    private void releaseRemotePeer(String username, String peerName) {
+        String peerNode = connectedClients.find(peerName) == null ? remoteUsers.findNode(peerName) : null;
+        if (peerNode != null) {
+            cluster.forwardPeerReleased(peerNode, username, peerName);
+        }
+    }
+
+    /**
+     * Statuses of the users of this node, for other nodes
      *
      * @return
-     * @throws RemoteException
      */
-    @Override
-    public List<RMIClientInterface> getAllAvailableUsers() throws RemoteException {
-        return connectedClients
-                .stream()
-                .filter(client -> !getStatusCheckException(client))
-                .collect(Collectors.toList());
+    List<UserPresence> getLocalPresence() {
+        return presence.getLocalPresence();
     }
 
     /**
-     * Returns all users that are already in a chat with someone.
+     * Another node has replicated status changes of its users
+     *
+     * @param nodeId
+     * @param changes
+     */
+    void onRemotePresence(String nodeId, List<UserPresence> changes) {
+        List<String> usernames = new ArrayList<>();
+        for (UserPresence change : changes) {
+            if (connectedClients.find(change.getUserName()) != null) {
+                // A stale update of a user who has moved to this node
+                continue;
+            }
+            boolean isNew = remoteUsers.update(nodeId, change);
+            usernames.add(change.getUserName());
+            if (change.getStatus() != PresenceStatus.OFFLINE && mailboxes.size(change.getUserName()) > 0) {
+                // Messages left on this node for a user who has joined another one
+                forwardMailbox(change.getUserName(), nodeId);
+            }
+            if (isNew) {
+                broadcastLobbyEvent(user -> user.notifyNewUserJoined(change.getUserName()),
+                        List.of(change.getUserName()));
+            } else if (change.getStatus() == PresenceStatus.OFFLINE) {
+                broadcastLobbyEvent(user -> user.notifyUserLeft(change.getUserName()), List.of(change.getUserName()));
+            }
+        }
+        if (!usernames.isEmpty()) {
+            presence.publish(usernames.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * Mailbox messages could not be forwarded to the node of their recipient. They wait here again until the
+     * recipient shows up at a node that can be reached or joins this one.
+     *
+     * @param recipient
+     * @param messages
+     */
+    void onMailboxForwardFailed(String recipient, List<ChatMessage> messages) {
+        for (ChatMessage message : messages) {
+            if (!mailboxes.deposit(recipient, message)) {
+                System.err.println("Could not keep a message for " + recipient + " after forwarding it failed");
+            }
+        }
+    }
+
+    /**
+     * Another node cannot be reached, its users are shown as offline and chats with them are ended
+     *
+     * @param nodeId
+     */
+    void onNodeLost(String nodeId) {
+        List<String> lost = remoteUsers.removeNode(nodeId);
+        for (String username : lost) {
+            String peerName = peers.findPeer(username);
+            if (peerName != null) {
+                onRemotePeerReleased(username, peerName);
+            }
+            broadcastLobbyEvent(user -> user.notifyUserLeft(username), List.of(username));
+        }
+        if (!lost.isEmpty()) {
+            presence.publish(lost.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * A user of another node wants to peer up with a user of this node
      *
+     * @param from
+     * @param to
      * @return
-     * @throws RemoteException
      */
-    @Override
-    public List<RMIClientInterface> getAllBusyUsers() throws RemoteException {
-        return connectedClients
-                .stream()
-                .filter(RMIExceptionsUtil::getStatusCheckException)
-                .collect(Collectors.toList());
+    boolean onRemotePeerRequest(String from, String to) {
+        boolean peered = locks.withLock(to, () -> {
+            ConnectedUser toUser = connectedClients.find(to);
+            if (toUser == null || toUser.getIsBusy()) {
+                return false;
+            }
+            peers.pair(toUser.getUserName(), from);
+            toUser.setIsBusy(true);
+            toUser.send(user -> user.notifyPeeredUp(from));
+            return true;
+        });
+        if (peered) {
+            publishPresence(to);
+            broadcastLobbyEvent(user -> user.notifyStatusChanged(from, to), List.of(from, to), to);
+        }
+        return peered;
     }
 
-    public static void main(String[] args) throws AlreadyBoundException, RemoteException {
-        new RMIServer();
+    /**
+     * The peer of a user of this node, connected to another node, has left the chat
+     *
+     * @param username user of the other node
+     * @param peerName user of this node
+     */
+    void onRemotePeerReleased(String username, String peerName) {
+        boolean released = locks.withLock(peerName, () -> {
+            if (!username.equalsIgnoreCase(peers.findPeer(peerName))) {
+                return false;
+            }
+            peers.unpair(peerName);
+            ConnectedUser user = connectedClients.find(peerName);
+            if (user != null) {
+                user.setIsBusy(false);
+                user.send(client -> client.setIsBusy(false));
+            }
+            return true;
+        });
+        if (released) {
+            publishPresence(peerName);
+            broadcastLobbyEvent(user -> user.peerReturnedHomePage(username, peerName), List.of(username, peerName));
+        }
+    }
+
+    /**
+     * Another node forwards messages to a user of this node
+     *
+     * @param recipient
+     * @param messages
+     * @param mailbox
+     */
+    void onRemoteMessages(String recipient, List<ChatMessage> messages, boolean mailbox) {
+        ConnectedUser user = connectedClients.find(recipient);
+        if (user == null) {
+            if (mailbox) {
+                messages.forEach(message -> mailboxes.deposit(recipient, message));
+            }
+            return;
+        }
+        // Keep the whole conversation in the log of this node as well. The sending node has stored and numbered the
+        // messages already, so they are delivered even if this copy cannot be stored.
+        messages.forEach(message -> messageLog.append(directConversation(recipient, message.getSender()),
+                message.getSender(), message.getTimestamp(), message.getText()));
+        if (mailbox) {
+            user.send(client -> client.getMailboxMessages(messages));
+        } else if (messages.size() == 1) {
+            user.send(client -> client.getMessageFromPeer(messages.get(0)));
+        } else {
+            user.send(client -> client.getMessagesFromPeer(messages));
+        }
+    }
+
+    /**
+     * A user wants to create a chat room.
+     *
+     * @param username
+     * @param roomName
+     * @return
+     * @throws RemoteException
+     */
+    @Override
+    public boolean createRoom(String username, String roomName) throws RemoteException {
+        admit(ServerOperation.CREATE_ROOM, username);
+        long start = System.nanoTime();
+        try {
+            if (username == null || !isValidName(roomName)) {
+                return false;
+            }
+            // Under the user's lock, so a disconnect either happens before and the user is gone, or after and it
+            // sees the room among the user's rooms
+            return locks.withLock(username, () -> {
+                ConnectedUser user = connectedClients.find(username);
+                if (user == null || !rooms.create(roomName, user)) {
+                    return false;
+                }
+                user.getRooms().add(UserRegistry.key(roomName));
+                return true;
+            });
+        } finally {
+            metrics.record(ServerOperation.CREATE_ROOM, start);
+        }
+    }
+
+    /**
+     * A user wants to join a chat room. Let the other members know it.
+     *
+     * @param username
+     * @param roomName
+     * @return
+     * @throws RemoteException
+     */
+    @Override
+    public boolean joinRoom(String username, String roomName) throws RemoteException {
+        admit(ServerOperation.JOIN_ROOM, username);
+        long start = System.nanoTime();
+        try {
+            if (username == null) {
+                return false;
+            }
+            ConnectedUser[] joined = new ConnectedUser[1];
+            // Re-checked under the user's lock like in createRoom, a disconnected user must not stay a member
+            ChatRoom room = locks.withLock(username, () -> {
+                ConnectedUser user = connectedClients.find(username);
+                ChatRoom target = user == null ? null : rooms.join(roomName, user);
+                if (target != null) {
+                    user.getRooms().add(UserRegistry.key(roomName));
+                    joined[0] = user;
+                }
+                return target;
+            });
+            if (room == null) {
+                return false;
+            }
+            ConnectedUser user = joined[0];
+            sendToMembers(room, user, client -> client.notifyRoomMembershipChanged(room.getName(), user.getUserName(),
+                    true));
+            return true;
+        } finally {
+            metrics.record(ServerOperation.JOIN_ROOM, start);
+        }
+    }
+
+    /**
+     * A user wants to leave a chat room.
+     *
+     * @param username
+     * @param roomName
+     * @throws RemoteException
+     */
+    @Override
+    public void leaveRoom(String username, String roomName) throws RemoteException {
+        admit(ServerOperation.LEAVE_ROOM, username);
+        long start = System.nanoTime();
+        try {
+            ConnectedUser user = connectedClients.find(username);
+            if (user != null) {
+                leaveRoom(user, roomName);
+            }
+        } finally {
+            metrics.record(ServerOperation.LEAVE_ROOM, start);
+        }
+    }
+
+    private void leaveRoom(ConnectedUser user, String roomName) {
+        user.getRooms().remove(UserRegistry.key(roomName));
+        ChatRoom room = rooms.leave(roomName, user.getUserName());
+        if (room != null) {
+            sendToMembers(room, null, client -> client.notifyRoomMembershipChanged(room.getName(), user.getUserName(),
+                    false));
+        }
+    }
+
+    /**
+     * A user sends a message to a chat room. The message is built once and enqueued to every member, the outboxes
+     * of the members deliver it in parallel.
+     *
+     * @param username
+     * @param roomName
+     * @param message
+     * @return false if the room does not exist or the user is not a member
+     * @throws RemoteException
+     */
+    @Override
+    public boolean sendMessageToRoom(String username, String roomName, String message) throws RemoteException {
+        admit(ServerOperation.SEND_MESSAGE_TO_ROOM, username);
+        long start = System.nanoTime();
+        try {
+            checkMessage(message);
+            ChatRoom room = rooms.find(roomName);
+            if (room == null || !room.isMember(username)) {
+                return false;
+            }
+            ConnectedUser sender = connectedClients.find(username);
+            String senderName = sender == null ? username : sender.getUserName();
+            long now = System.currentTimeMillis();
+            long sequence = stored(messageLog.append(roomConversation(room.getName()), senderName, now, message));
+            ChatMessage chatMessage = new ChatMessage(senderName, now, sequence, message);
+            OutboundEvent.RemoteCall call = client -> client.getMessageFromRoom(room.getName(), chatMessage);
+            sendToMembers(room, null, call);
+            return true;
+        } finally {
+            metrics.record(ServerOperation.SEND_MESSAGE_TO_ROOM, start);
+        }
+    }
+
+    /**
+     * Returns names of all chat rooms.
+     *
+     * @return
+     * @throws RemoteException
+     */
+    @Override
+    public List<String> getRoomNames() throws RemoteException {
+        admit(ServerOperation.GET_ROOM_NAMES, null);
+        long start = System.nanoTime();
+        try {
+            return rooms.getRoomNames();
+        } finally {
+            metrics.record(ServerOperation.GET_ROOM_NAMES, start);
+        }
+    }
+
+    /**
+     * Returns stored messages of a conversation. Users may only read their own private conversations and the
+     * history of the rooms they are members of.
+     *
+     * @param username
+     * @param conversation
+     * @param fromSequence
+     * @param limit
+     * @return
+     * @throws RemoteException
+     */
+    @Override
+    public HistoryPage getHistory(String username, String conversation, long fromSequence, int limit)
+            throws RemoteException {
+        admit(ServerOperation.GET_HISTORY, username);
+        long start = System.nanoTime();
+        try {
+            if (!mayReadHistory(username, conversation)) {
+                return new HistoryPage(conversation, Collections.emptyList(), 1, 0);
+            }
+            return messageLog.getHistory(conversation, fromSequence, limit);
+        } finally {
+            metrics.record(ServerOperation.GET_HISTORY, start);
+        }
+    }
+
+    /**
+     * Offers a file to the peer of the user. Both users have to be connected to this node.
+     *
+     * @param username
+     * @param offer
+     * @return
+     * @throws RemoteException
+     */
+    @Override
+    public boolean offerTransfer(String username, TransferOffer offer) throws RemoteException {
+        admit(ServerOperation.OFFER_TRANSFER, username);
+        long start = System.nanoTime();
+        try {
+            String peerName = peers.findPeer(username);
+            ConnectedUser sender = connectedClients.find(username);
+            ConnectedUser receiver = peerName == null ? null : connectedClients.find(peerName);
+            if (sender == null || receiver == null || !isValid(offer, username)) {
+                return false;
+            }
+            Transfer transfer = new Transfer(offer.getTransferId(), sender.getUserName(), receiver.getUserName(),
+                    offer.getSize(), offer.getChunkSize(), offer.isDirect());
+            if (!transfers.add(transfer)) {
+                return false;
+            }
+            receiver.send(client -> client.transferOffered(offer));
+            return true;
+        } finally {
+            metrics.record(ServerOperation.OFFER_TRANSFER, start);
+        }
+    }
+
+    private boolean isValid(TransferOffer offer, String username) {
+        return offer != null && offer.isWellFormed()
+                && offer.getSender().equalsIgnoreCase(username)
+                && offer.getSize() >= 0
+                && offer.getChunkSize() > 0 && offer.getChunkSize() <= maxChunkBytes;
+    }
+
+    /**
+     * The receiver accepts or declines a file. A direct transfer is handed over to the peers, the server forgets it.
+     *
+     * @param username
+     * @param transferId
+     * @param offset
+     * @param directAddress
+     * @throws RemoteException
+     */
+    @Override
+    public void answerTransfer(String username, String transferId, long offset, String directAddress)
+            throws RemoteException {
+        admit(ServerOperation.ANSWER_TRANSFER, username);
+        long start = System.nanoTime();
+        try {
+            Transfer transfer = transfers.find(transferId);
+            if (transfer == null || !transfer.getReceiver().equalsIgnoreCase(username)) {
+                return;
+            }
+            ConnectedUser sender = connectedClients.find(transfer.getSender());
+            if (offset < 0 || offset > transfer.getSize() || sender == null) {
+                transfers.remove(transferId);
+                notifyTransferCancelled(transfer, username, transfer.getReceiver() + " has declined the file");
+                return;
+            }
+            if (transfer.isDirect() && directAddress != null) {
+                transfers.remove(transferId);
+            } else {
+                transfer.accept(offset);
+            }
+            String address = transfer.isDirect() ? directAddress : null;
+            sender.send(client -> client.transferAccepted(transferId, offset, transferWindowChunks, address));
+        } finally {
+            metrics.record(ServerOperation.ANSWER_TRANSFER, start);
+        }
+    }
+
+    /**
+     * Passes a chunk on to the receiver without keeping it. A chunk out of order or beyond the window cancels the
+     * transfer.
+     *
+     * @param username
+     * @param chunk
+     * @return
+     * @throws RemoteException
+     */
+    @Override
+    public boolean sendChunk(String username, FileChunk chunk) throws RemoteException {
+        admit(ServerOperation.SEND_CHUNK, username);
+        long start = System.nanoTime();
+        try {
+            Transfer transfer = transfers.find(chunk.getTransferId());
+            if (transfer == null || !transfer.getSender().equalsIgnoreCase(username)) {
+                return false;
+            }
+            ConnectedUser receiver = connectedClients.find(transfer.getReceiver());
+            if (receiver == null || !transfer.getReceiver().equalsIgnoreCase(peers.findPeer(username))
+                    || !transfer.advance(chunk.getOffset(), chunk.getData().length, transferWindowChunks)) {
+                transfers.remove(transfer.getTransferId());
+                notifyTransferCancelled(transfer, null, "The transfer has been stopped by the server");
+                return false;
+            }
+            receiver.send(client -> client.receiveChunk(chunk));
+            return true;
+        } finally {
+            metrics.record(ServerOperation.SEND_CHUNK, start);
+        }
+    }
+
+    @Override
+    public void acknowledgeChunks(String username, String transferId, long offset) throws RemoteException {
+        admit(ServerOperation.ACKNOWLEDGE_CHUNKS, username);
+        long start = System.nanoTime();
+        try {
+            Transfer transfer = transfers.find(transferId);
+            if (transfer == null || !transfer.getReceiver().equalsIgnoreCase(username)
+                    || !transfer.acknowledge(offset)) {
+                return;
+            }
+            if (transfer.isComplete()) {
+                transfers.remove(transferId);
+            }
+            ConnectedUser sender = connectedClients.find(transfer.getSender());
+            if (sender != null) {
+                sender.send(client -> client.chunksAcknowledged(transferId, offset));
+            }
+        } finally {
+            metrics.record(ServerOperation.ACKNOWLEDGE_CHUNKS, start);
+        }
+    }
+
+    @Override
+    public void cancelTransfer(String username, String transferId, String reason) throws RemoteException {
+        admit(ServerOperation.CANCEL_TRANSFER, username);
+        long start = System.nanoTime();
+        try {
+            Transfer transfer = transfers.find(transferId);
+            if (transfer != null && transfer.involves(username)) {
+                transfers.remove(transferId);
+                notifyTransferCancelled(transfer, username, reason);
+            }
+        } finally {
+            metrics.record(ServerOperation.CANCEL_TRANSFER, start);
+        }
+    }
+
+    /**
+     * Cancels the open transfers of a user whose chat has ended
+     *
+     * @param username
+     * @param reason
+     */
+    private void cancelTransfers(String username, String reason) {
+        transfers.removeAll(username).forEach(transfer -> notifyTransferCancelled(transfer, null, reason));
+    }
+
+    /**
+     * @param transfer
+     * @param cancelledBy user who has cancelled the transfer and does not need to be told, null to tell both users
+     * @param reason
+     */
+    private void notifyTransferCancelled(Transfer transfer, String cancelledBy, String reason) {
+        for (String username : new String[]{transfer.getSender(), transfer.getReceiver()}) {
+            ConnectedUser user = connectedClients.find(username);
+            if (user != null && !username.equalsIgnoreCase(cancelledBy)) {
+                user.send(client -> client.transferCancelled(transfer.getTransferId(), reason));
+            }
+        }
+    }
+
+    private boolean mayReadHistory(String username, String conversation) {
+        if (connectedClients.find(username) == null) {
+            return false;
+        }
+        if (conversation.startsWith("#")) {
+            ChatRoom room = rooms.find(conversation.substring(1));
+            return room != null && room.isMember(username);
+        }
+        String key = UserRegistry.key(username);
+        int separator = conversation.indexOf('|');
+        if (separator < 0 || conversation.indexOf('|', separator + 1) >= 0) {
+            return false;
+        }
+        return conversation.substring(0, separator).equals(key) || conversation.substring(separator + 1).equals(key);
+    }
+
+    /**
+     * A client tells that it is still alive. Cheap, only updates a timestamp.
+     *
+     * @param username
+     * @return
+     * @throws RemoteException
+     */
+    @Override
+    public long renewLease(String username) throws RemoteException {
+        admit(ServerOperation.RENEW_LEASE, username);
+        long start = System.nanoTime();
+        try {
+            ConnectedUser user = connectedClients.find(username);
+            if (user == null) {
+                return 0;
+            }
+            user.renewLease();
+            return leaseSweeper.getLeaseDurationMillis();
+        } finally {
+            metrics.record(ServerOperation.RENEW_LEASE, start);
+        }
+    }
+
+    /**
+     * Returns the statuses of all users. Unlike the user lists, it does not contain remote instances.
+     *
+     * @return
+     * @throws RemoteException
+     */
+    @Override
+    public PresenceSnapshot getPresenceSnapshot() throws RemoteException {
+        admit(ServerOperation.GET_PRESENCE_SNAPSHOT, null);
+        long start = System.nanoTime();
+        try {
+            return presence.snapshot();
+        } finally {
+            metrics.record(ServerOperation.GET_PRESENCE_SNAPSHOT, start);
+        }
+    }
+
+    /**
+     * Sets the interest filter of a connected user
+     *
+     * @param username
+     * @param filter   null for everyone
+     * @throws RemoteException
+     */
+    @Override
+    public void setInterestFilter(String username, InterestFilter filter) throws RemoteException {
+        admit(ServerOperation.SET_INTEREST_FILTER, username);
+        long start = System.nanoTime();
+        try {
+            ConnectedUser user = connectedClients.find(username);
+            if (user != null) {
+                user.setInterest(filter != null ? filter : InterestFilter.everyone());
+            }
+        } finally {
+            metrics.record(ServerOperation.SET_INTEREST_FILTER, start);
+        }
+    }
+
+    /**
+     * Returns all available users in the chat room.
+     *
+     * @return
+     * @throws RemoteException
+     * @deprecated returns every user at once, use {@link #findUsers} instead
+     */
+    @Deprecated
+    @Override
+    public List<RMIClientInterface> getAllAvailableUsers() throws RemoteException {
+        admit(ServerOperation.GET_ALL_AVAILABLE_USERS, null);
+        long start = System.nanoTime();
+        try {
+            return connectedClients.getClientInterfaces(false);
+        } finally {
+            metrics.record(ServerOperation.GET_ALL_AVAILABLE_USERS, start);
+        }
+    }
+
+    /**
+     * Returns all users that are already in a chat with someone.
+     *
+     * @return
+     * @throws RemoteException
+     * @deprecated returns every user at once, use {@link #findUsers} instead
+     */
+    @Deprecated
+    @Override
+    public List<RMIClientInterface> getAllBusyUsers() throws RemoteException {
+        admit(ServerOperation.GET_ALL_BUSY_USERS, null);
+        long start = System.nanoTime();
+        try {
+            return connectedClients.getClientInterfaces(true);
+        } finally {
+            metrics.record(ServerOperation.GET_ALL_BUSY_USERS, start);
+        }
+    }
+
+    /**
+     * Searches the directory of the users, including the users of other nodes
+     *
+     * @param text
+     * @param match
+     * @param status
+     * @param cursor
+     * @param limit
+     * @return
+     * @throws RemoteException
+     */
+    @Override
+    public UserPage findUsers(String text, NameMatch match, PresenceStatus status, String cursor, int limit)
+            throws RemoteException {
+        admit(ServerOperation.FIND_USERS, null);
+        long start = System.nanoTime();
+        try {
+            return presence.getDirectory().search(text, match != null ? match : NameMatch.PREFIX, status, cursor,
+                    limit);
+        } finally {
+            metrics.record(ServerOperation.FIND_USERS, start);
+        }
+    }
+
+    /**
+     * Rejects a call over its rate limit before any work is done for it
+     *
+     * @param operation
+     * @param username  user named by the call, null if it names none
+     * @throws RateLimitedException
+     */
+    private void admit(ServerOperation operation, String username) throws RateLimitedException {
+        long retryAfterMillis = limiter.tryAcquire(operation, username);
+        if (retryAfterMillis > 0) {
+            metrics.recordRejected(operation);
+            throw new RateLimitedException(operation.getMethodName(), retryAfterMillis);
+        }
+    }
+
+    /**
+     * Broadcasts a lobby event about the given users to the connected users, except the excluded ones. Users in a
+     * chat only get events about themselves, the others get the events their interest filter matches.
+     *
+     * @param call
+     * @param about    usernames the event is about
+     * @param excluded usernames
+     * @return summary of the deliveries
+     */
+    private CompletableFuture<BroadcastSummary> broadcastLobbyEvent(OutboundEvent.RemoteCall call, List<String> about,
+                                                                    String... excluded) {
+        long start = System.nanoTime();
+        int targets = 0;
+        Broadcast broadcast = broadcasts.start();
+        for (ConnectedUser client : connectedClients.getAll()) {
+            if (!contains(excluded, client.getUserName()) && isInterested(client, about)) {
+                client.sendLobbyEvent(call, broadcast);
+                targets++;
+            }
+        }
+        metrics.recordFanOut(targets, start);
+        return broadcast.finish();
+    }
+
+    private static boolean isInterested(ConnectedUser client, List<String> about) {
+        for (String username : about) {
+            if (client.getUserName().equalsIgnoreCase(username)) {
+                return true;
+            }
+        }
+        if (client.getIsBusy()) {
+            return false;
+        }
+        for (String username : about) {
+            if (client.isInterestedIn(username)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(String[] usernames, String username) {
+        for (String name : usernames) {
+            if (name.equalsIgnoreCase(username)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Broadcasts an event to every member of a room
+     *
+     * @param room
+     * @param excluded member to skip, may be null
+     * @param call
+     * @return summary of the deliveries
+     */
+    private CompletableFuture<BroadcastSummary> sendToMembers(ChatRoom room, ConnectedUser excluded,
+                                                              OutboundEvent.RemoteCall call) {
+        long start = System.nanoTime();
+        int targets = 0;
+        Broadcast broadcast = broadcasts.start();
+        for (ConnectedUser member : room.getMembers()) {
+            if (member != excluded) {
+                member.send(call, broadcast);
+                targets++;
+            }
+        }
+        metrics.recordFanOut(targets, start);
+        return broadcast.finish();
+    }
+
+    /**
+     * Returns the metrics of the server, e.g. to print them from a benchmark
+     *
+     * @return metrics
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the outbound queue of every connected client, e.g. to inspect queue depths and delivery latencies.
+     *
+     * @return outboxes
+     */
+    public List<ClientOutbox> getOutboxes() {
+        List<ClientOutbox> outboxes = new ArrayList<>();
+        connectedClients.getAll().forEach(user -> outboxes.add(user.getOutbox()));
+        return outboxes;
+    }
+
+    /**
+     * Called when a client cannot keep up with its events or cannot be reached any more.
+     *
+     * @param outbox
+     */
+    private void evictUnreachableClient(ClientOutbox outbox) {
+        ConnectedUser user = connectedClients.find(outbox.getUserName());
+        if (user != null && user.getOutbox() == outbox) {
+            System.err.println("Disconnecting " + user.getUserName() + ", events cannot be delivered");
+            disconnect(user.getUserName(), user);
+        }
+    }
+
+    /**
+     * Called by the NIO transport when the connection of a client has been closed
+     *
+     * @param username
+     * @param client   the user is only disconnected if it is still connected through this client
+     */
+    void disconnectClient(String username, RMIClientInterface client) {
+        ConnectedUser user = connectedClients.find(username);
+        if (user != null && user.getClientInterface() == client) {
+            disconnect(user.getUserName(), user);
+        }
+    }
+
+    /**
+     * Called by the lease sweeper when a client has not renewed its lease in time.
+     *
+     * @param user
+     */
+    private void evictExpiredClient(ConnectedUser user) {
+        System.err.println("Disconnecting " + user.getUserName() + ", lease has expired");
+        disconnect(user.getUserName(), user);
+    }
+
+    public static void main(String[] args) throws AlreadyBoundException, IOException {
+        ChatConfig config = ChatConfig.getDefault();
+        ChatSocketFactory.applyTransportProperties(config);
+        // Host name that clients use to reach the exported objects
+        String host = config.get("rmi.chat.host");
+        if (host != null && System.getProperty("java.rmi.server.hostname") == null) {
+            System.setProperty("java.rmi.server.hostname", host);
+        }
+        RMIServer server = new RMIServer();
+        // An embedded server prints its metrics only if asked to, a standalone one every minute by default
+        if (config.get("rmi.chat.metrics.dumpIntervalMillis") == null) {
+            server.metrics.startReporting(DEFAULT_METRICS_DUMP_INTERVAL_MILLIS, System.out);
+        }
+        server.bind(config.getPort());
+        if (config.getEnum("rmi.chat.transport", Transport.class, Transport.RMI) == Transport.NIO) {
+            server.listen(config.getInt("rmi.chat.nio.port", ChatConfig.DEFAULT_NIO_PORT));
+        }
     }
 }
@@ -0,0 +1,134 @@
+package rmi.server;
+
+import rmi.shared.ChatConfig;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control in front of the remote methods. Every user has a token bucket per method, methods that do not
+ * name a user share one bucket, and all calls together may draw from a global bucket. A call is checked before the
+ * server does any work for it, a rejected call costs a map lookup and a few atomic operations. Buckets outlive the
+ * session of a user, so leaving and joining again does not refill them.
+ * <p>
+ * Limits are read from the config when the limiter is created:
+ * <ul>
+ *     <li>rmi.chat.rateLimit.enabled: false turns all limits off</li>
+ *     <li>rmi.chat.rateLimit.&lt;methodName&gt;.perSecond and .burst: limit of a method, see
+ *     {@link ServerOperation} for the defaults, 0 for unlimited</li>
+ *     <li>rmi.chat.rateLimit.global.perSecond and .burst: limit of all calls together, also the only limit of the
+ *     users beyond maxTrackedUsers, 0 for unlimited</li>
+ *     <li>rmi.chat.rateLimit.maxTrackedUsers: users whose buckets are kept, idle ones are dropped beyond that</li>
+ * </ul>
+ */
+public class RateLimiter {
+    public static final int DEFAULT_MAX_TRACKED_USERS = 100_000;
+    public static final int DEFAULT_GLOBAL_PER_SECOND = 20_000;
+    public static final int DEFAULT_GLOBAL_BURST = 40_000;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final boolean enabled;
+    private final int[] perSecond = new int[ServerOperation.values().length];
+    private final int[] burst = new int[ServerOperation.values().length];
+    private final TokenBucket[] shared = new TokenBucket[ServerOperation.values().length];
+    private final TokenBucket global;
+    private final ConcurrentMap<String, TokenBucket[]> users = new ConcurrentHashMap<>();
+    private final int maxTrackedUsers;
+    private final AtomicLong nextSweepAt = new AtomicLong(System.nanoTime());
+
+    public RateLimiter(ChatConfig config) {
+        enabled = config.getBoolean("rmi.chat.rateLimit.enabled", true);
+        for (ServerOperation operation : ServerOperation.values()) {
+            String prefix = "rmi.chat.rateLimit." + operation.getMethodName();
+            int rate = config.getInt(prefix + ".perSecond", operation.getDefaultPerSecond());
+            perSecond[operation.ordinal()] = rate;
+            burst[operation.ordinal()] = Math.max(1, config.getInt(prefix + ".burst",
+                    Math.max(rate, operation.getDefaultBurst())));
+            if (rate > 0) {
+                shared[operation.ordinal()] = new TokenBucket(rate, burst[operation.ordinal()]);
+            }
+        }
+        int globalRate = config.getInt("rmi.chat.rateLimit.global.perSecond", DEFAULT_GLOBAL_PER_SECOND);
+        int globalBurst = config.getInt("rmi.chat.rateLimit.global.burst", Math.max(globalRate, DEFAULT_GLOBAL_BURST));
+        global = globalRate > 0 ? new TokenBucket(globalRate, Math.max(1, globalBurst)) : null;
+        maxTrackedUsers = config.getInt("rmi.chat.rateLimit.maxTrackedUsers", DEFAULT_MAX_TRACKED_USERS);
+    }
+
+    /**
+     * Admits a call if neither the user's nor the global limit is exceeded
+     *
+     * @param operation
+     * @param username user named by the call, null if it does not name one
+     * @return 0 if the call is admitted, otherwise milliseconds until it may be repeated
+     */
+    public long tryAcquire(ServerOperation operation, String username) {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        TokenBucket bucket = perSecond[operation.ordinal()] > 0 ? bucketOf(operation, username, now) : null;
+        long wait = bucket != null ? bucket.tryAcquire(now) : 0;
+        if (wait == 0 && global != null) {
+            wait = global.tryAcquire(now);
+            if (wait > 0 && bucket != null) {
+                bucket.release();
+            }
+        }
+        return wait == 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+    }
+
+    private TokenBucket bucketOf(ServerOperation operation, String username, long now) {
+        if (username == null) {
+            return shared[operation.ordinal()];
+        }
+        String key = UserRegistry.key(username);
+        TokenBucket[] buckets = users.get(key);
+        if (buckets == null) {
+            if (users.size() >= maxTrackedUsers && !sweep(now)) {
+                // Too many active users to track, only the global limit applies to new ones
+                return null;
+            }
+            buckets = users.computeIfAbsent(key, ignored -> new TokenBucket[perSecond.length]);
+        }
+        int index = operation.ordinal();
+        TokenBucket bucket = buckets[index];
+        if (bucket == null) {
+            // Racing threads may both create one, a lost bucket only gives a few extra calls once
+            bucket = new TokenBucket(perSecond[index], burst[index]);
+            buckets[index] = bucket;
+        }
+        return bucket;
+    }
+
+    /**
+     * Drops the buckets of users who have not called recently, at most once per second
+     *
+     * @param now
+     * @return true if there is room for another user
+     */
+    private boolean sweep(long now) {
+        long sweepAt = nextSweepAt.get();
+        if (now - sweepAt >= 0 && nextSweepAt.compareAndSet(sweepAt, now + SWEEP_INTERVAL_NANOS)) {
+            Iterator<Map.Entry<String, TokenBucket[]>> entries = users.entrySet().iterator();
+            while (entries.hasNext()) {
+                if (isIdle(entries.next().getValue(), now)) {
+                    entries.remove();
+                }
+            }
+        }
+        return users.size() < maxTrackedUsers;
+    }
+
+    private static boolean isIdle(TokenBucket[] buckets, long now) {
+        for (TokenBucket bucket : buckets) {
+            if (bucket != null && !bucket.isFull(now)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,82 @@
+package rmi.server;
+
+import rmi.shared.PresenceStatus;
+import rmi.shared.UserPresence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Users connected to other nodes of the cluster, as replicated by those nodes. Keyed like the {@link UserRegistry},
+ * so a username is either local, remote or unknown.
+ */
+public class RemoteUsers {
+
+    private static class RemoteUser {
+        private final String nodeId;
+        private final UserPresence presence;
+
+        RemoteUser(String nodeId, UserPresence presence) {
+            this.nodeId = nodeId;
+            this.presence = presence;
+        }
+    }
+
+    private final ConcurrentMap<String, RemoteUser> users = new ConcurrentHashMap<>();
+
+    /**
+     * Applies a status change replicated by a node. Offline users are removed.
+     *
+     * @param nodeId
+     * @param presence
+     * @return true if the user was not known before
+     */
+    public boolean update(String nodeId, UserPresence presence) {
+        String key = UserRegistry.key(presence.getUserName());
+        if (presence.getStatus() == PresenceStatus.OFFLINE) {
+            users.remove(key);
+            return false;
+        }
+        return users.put(key, new RemoteUser(nodeId, presence)) == null;
+    }
+
+    /**
+     * Node the user is connected to
+     *
+     * @param username
+     * @return node id or null if the user is not connected to another node
+     */
+    public String findNode(String username) {
+        RemoteUser user = users.get(UserRegistry.key(username));
+        return user == null ? null : user.nodeId;
+    }
+
+    public UserPresence find(String username) {
+        RemoteUser user = users.get(UserRegistry.key(username));
+        return user == null ? null : user.presence;
+    }
+
+    public List<UserPresence> getAll() {
+        List<UserPresence> result = new ArrayList<>();
+        users.values().forEach(user -> result.add(user.presence));
+        return result;
+    }
+
+    /**
+     * Forgets all users of a node, e.g. because it cannot be reached any more
+     *
+     * @param nodeId
+     * @return usernames of the removed users
+     */
+    public List<String> removeNode(String nodeId) {
+        List<String> removed = new ArrayList<>();
+        users.forEach((key, user) -> {
+            if (user.nodeId.equals(nodeId) && users.remove(key, user)) {
+                removed.add(user.presence.getUserName());
+            }
+        });
+        return removed;
+    }
+}
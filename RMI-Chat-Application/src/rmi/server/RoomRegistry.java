@@ -0,0 +1,74 @@
+package rmi.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chat rooms of the server, keyed by case-folded room name. A room exists as long as it has members, joining and
+ * leaving are atomic with creating and removing the room.
+ */
+public class RoomRegistry {
+    private final ConcurrentMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a room with the user as its first member
+     *
+     * @param roomName
+     * @param creator
+     * @return false if there is a room with that name already
+     */
+    public boolean create(String roomName, ConnectedUser creator) {
+        boolean[] created = {false};
+        rooms.computeIfAbsent(UserRegistry.key(roomName), key -> {
+            ChatRoom room = new ChatRoom(roomName);
+            room.add(creator);
+            created[0] = true;
+            return room;
+        });
+        return created[0];
+    }
+
+    /**
+     * Adds a user to an existing room
+     *
+     * @param roomName
+     * @param user
+     * @return the room, or null if there is no such room
+     */
+    public ChatRoom join(String roomName, ConnectedUser user) {
+        return rooms.computeIfPresent(UserRegistry.key(roomName), (key, room) -> {
+            room.add(user);
+            return room;
+        });
+    }
+
+    /**
+     * Removes a user from a room. The room is removed when its last member leaves.
+     *
+     * @param roomName
+     * @param username
+     * @return the room, or null if there is no such room
+     */
+    public ChatRoom leave(String roomName, String username) {
+        ChatRoom[] left = {null};
+        rooms.computeIfPresent(UserRegistry.key(roomName), (key, room) -> {
+            if (room.remove(username)) {
+                left[0] = room;
+            }
+            return room.size() == 0 ? null : room;
+        });
+        return left[0];
+    }
+
+    public ChatRoom find(String roomName) {
+        return rooms.get(UserRegistry.key(roomName));
+    }
+
+    public List<String> getRoomNames() {
+        List<String> names = new ArrayList<>();
+        rooms.values().forEach(room -> names.add(room.getName()));
+        return names;
+    }
+}
@@ -0,0 +1,278 @@
+package rmi.server;
+
+import rmi.shared.RMIExceptionsUtil;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation of the server. Remote methods and fan-outs record into lock-free histograms, which costs a few
+ * atomic increments and no allocation. Gauges like user counts and queue depths are only computed when they are
+ * read. Everything is exposed through JMX and can be printed periodically.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final String DOMAIN = "rmi.chat";
+
+    private final UserRegistry registry;
+    private final OperationMetrics[] operations = new OperationMetrics[ServerOperation.values().length];
+    private final Histogram fanOutSize = new Histogram();
+    private final Histogram fanOutNanos = new Histogram();
+    private final Histogram broadcastNanos = new Histogram();
+    private final LongAdder broadcastTimeouts = new LongAdder();
+    private final LongAdder broadcastFailures = new LongAdder();
+    private final List<ObjectName> registeredNames = new ArrayList<>();
+    private ScheduledExecutorService reporter;
+
+    public ServerMetrics(UserRegistry registry) {
+        this.registry = registry;
+        for (ServerOperation operation : ServerOperation.values()) {
+            operations[operation.ordinal()] = new OperationMetrics(operation);
+        }
+    }
+
+    /**
+     * Records a finished call of a remote method
+     *
+     * @param operation
+     * @param startNanos {@link System#nanoTime()} when the call started
+     */
+    public void record(ServerOperation operation, long startNanos) {
+        operations[operation.ordinal()].record(startNanos);
+    }
+
+    /**
+     * Records a call of a remote method rejected by the rate limiter
+     *
+     * @param operation
+     */
+    public void recordRejected(ServerOperation operation) {
+        operations[operation.ordinal()].recordRejected();
+    }
+
+    /**
+     * Records an event that has been enqueued to several clients
+     *
+     * @param targets    number of clients
+     * @param startNanos {@link System#nanoTime()} before the first client
+     */
+    public void recordFanOut(int targets, long startNanos) {
+        fanOutNanos.record(System.nanoTime() - startNanos);
+        fanOutSize.record(targets);
+    }
+
+    /**
+     * Records a completed broadcast
+     *
+     * @param summary
+     */
+    public void recordBroadcast(BroadcastSummary summary) {
+        if (summary.getTargets() == 0) {
+            return;
+        }
+        broadcastNanos.record(summary.getElapsedNanos());
+        broadcastTimeouts.add(summary.getTimedOut().size());
+        broadcastFailures.add(summary.getFailed().size());
+    }
+
+    public OperationMetrics getOperation(ServerOperation operation) {
+        return operations[operation.ordinal()];
+    }
+
+    @Override
+    public int getConnectedUsers() {
+        return registry.size();
+    }
+
+    @Override
+    public int getAvailableUsers() {
+        return (int) registry.getAll().stream().filter(user -> !user.getIsBusy()).count();
+    }
+
+    @Override
+    public int getBusyUsers() {
+        return (int) registry.getAll().stream().filter(ConnectedUser::getIsBusy).count();
+    }
+
+    @Override
+    public long getTotalQueueDepth() {
+        return registry.getAll().stream().mapToLong(user -> user.getOutbox().getQueueDepth()).sum();
+    }
+
+    @Override
+    public long getMaxQueueDepth() {
+        return registry.getAll().stream().mapToLong(user -> user.getOutbox().getQueueDepth()).max().orElse(0);
+    }
+
+    /**
+     * Events dropped by the overflow policy of the clients that are connected now
+     */
+    @Override
+    public long getDroppedEvents() {
+        return registry.getAll().stream().mapToLong(user -> user.getOutbox().getDroppedCount()).sum();
+    }
+
+    /**
+     * Failed deliveries to the clients that are connected now
+     */
+    @Override
+    public long getDeliveryFailures() {
+        return registry.getAll().stream().mapToLong(user -> user.getOutbox().getFailedCount()).sum();
+    }
+
+    /**
+     * All failed remote calls since the start, see {@link RMIExceptionsUtil#getFailureCount()}
+     */
+    @Override
+    public long getRemoteFailures() {
+        return RMIExceptionsUtil.getFailureCount();
+    }
+
+    @Override
+    public long getFanOuts() {
+        return fanOutSize.getCount();
+    }
+
+    @Override
+    public double getMeanFanOutSize() {
+        return fanOutSize.getMean();
+    }
+
+    @Override
+    public long getMaxFanOutSize() {
+        return fanOutSize.getMax();
+    }
+
+    @Override
+    public double getMeanFanOutMicros() {
+        return fanOutNanos.getMean() / 1000;
+    }
+
+    @Override
+    public long getP99FanOutMicros() {
+        return fanOutNanos.getPercentile(0.99) / 1000;
+    }
+
+    /**
+     * Mean time until every target of a broadcast has received the event, or the deadline has passed
+     */
+    @Override
+    public double getMeanBroadcastMicros() {
+        return broadcastNanos.getMean() / 1000;
+    }
+
+    @Override
+    public long getP99BroadcastMicros() {
+        return broadcastNanos.getPercentile(0.99) / 1000;
+    }
+
+    /**
+     * Targets of broadcasts that had not received the event by the deadline
+     */
+    @Override
+    public long getBroadcastTimeouts() {
+        return broadcastTimeouts.sum();
+    }
+
+    /**
+     * Targets of broadcasts whose delivery has failed or whose event has been dropped
+     */
+    @Override
+    public long getBroadcastFailures() {
+        return broadcastFailures.sum();
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("users connected=%d available=%d busy=%d%n",
+                getConnectedUsers(), getAvailableUsers(), getBusyUsers()));
+        text.append(String.format("queues total=%d max=%d dropped=%d deliveryFailures=%d remoteFailures=%d%n",
+                getTotalQueueDepth(), getMaxQueueDepth(), getDroppedEvents(), getDeliveryFailures(),
+                getRemoteFailures()));
+        text.append(String.format("fanOut count=%d meanSize=%.1f maxSize=%d meanUs=%.1f p99Us=%d%n",
+                getFanOuts(), getMeanFanOutSize(), getMaxFanOutSize(), getMeanFanOutMicros(), getP99FanOutMicros()));
+        text.append(String.format("broadcast count=%d meanUs=%.1f p99Us=%d timedOut=%d failed=%d%n",
+                broadcastNanos.getCount(), getMeanBroadcastMicros(), getP99BroadcastMicros(), getBroadcastTimeouts(),
+                getBroadcastFailures()));
+        for (OperationMetrics operation : operations) {
+            if (operation.getCalls() > 0 || operation.getRejectedCalls() > 0) {
+                text.append(String.format("%s calls=%d meanUs=%.1f p50Us=%d p99Us=%d p999Us=%d maxUs=%d rejected=%d%n",
+                        operation.getOperation().getMethodName(), operation.getCalls(), operation.getMeanMicros(),
+                        operation.getP50Micros(), operation.getP99Micros(), operation.getP999Micros(),
+                        operation.getMaxMicros(), operation.getRejectedCalls()));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. A second server in the same JVM keeps the metrics of
+     * the first one registered and only prints a warning.
+     */
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new ObjectName(DOMAIN + ":type=Server"), this);
+            for (OperationMetrics operation : operations) {
+                register(server, new ObjectName(DOMAIN + ":type=Operation,name="
+                        + operation.getOperation().getMethodName()), operation);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register metrics: " + e.getMessage());
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName name, Object mbean) throws JMException {
+        if (server.isRegistered(name)) {
+            System.err.println("Metrics " + name + " are registered already");
+            return;
+        }
+        server.registerMBean(mbean, name);
+        registeredNames.add(name);
+    }
+
+    /**
+     * Prints {@link #dump()} periodically
+     *
+     * @param intervalMillis
+     * @param out
+     */
+    public synchronized void startReporting(long intervalMillis, PrintStream out) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> out.print(dump()), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops reporting and unregisters the MBeans
+     */
+    public synchronized void close() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // Unregistered already
+            }
+        }
+        registeredNames.clear();
+    }
+}
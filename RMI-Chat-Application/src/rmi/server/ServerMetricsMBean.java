@@ -0,0 +1,49 @@
+package rmi.server;
+
+/**
+ * JMX view of the server's gauges and fan-outs. Calls of the single remote methods are exposed by
+ * {@link OperationMetricsMBean}s.
+ */
+public interface ServerMetricsMBean {
+
+    int getConnectedUsers();
+
+    int getAvailableUsers();
+
+    int getBusyUsers();
+
+    long getTotalQueueDepth();
+
+    long getMaxQueueDepth();
+
+    long getDroppedEvents();
+
+    long getDeliveryFailures();
+
+    long getRemoteFailures();
+
+    long getFanOuts();
+
+    double getMeanFanOutSize();
+
+    long getMaxFanOutSize();
+
+    double getMeanFanOutMicros();
+
+    long getP99FanOutMicros();
+
+    double getMeanBroadcastMicros();
+
+    long getP99BroadcastMicros();
+
+    long getBroadcastTimeouts();
+
+    long getBroadcastFailures();
+
+    /**
+     * All metrics as text, one line per metric or method
+     *
+     * @return text
+     */
+    String dump();
+}
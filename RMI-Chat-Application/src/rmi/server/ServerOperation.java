@@ -0,0 +1,73 @@
+package rmi.server;
+
+/**
+ * Remote methods of the server, each one has its own call counter, latency histogram and default rate limit. The
+ * limit applies per user to methods that name a user, and to all callers together for the others. 0 means unlimited,
+ * which is left only for leaving the server. The listing methods cost O(users) each, their shared limits leave room
+ * for many clients joining at once.
+ */
+public enum ServerOperation {
+    JOIN_TO_CHAT_SERVER("joinToChatServer", 1, 5),
+    OPEN_SESSION("openSession", 1, 5),
+    RESUME_SESSION("resumeSession", 1, 5),
+    DISCONNECT_FROM_CHAT_SERVER("disconnectFromChatServer", 0, 0),
+    RETURN_TO_HOME_PAGE("returnToHomePage", 5, 10),
+    PEER_UP_WITH("peerUpWith", 2, 5),
+    GET_ALL_AVAILABLE_USERS("getAllAvailableUsers", 10, 20),
+    GET_ALL_BUSY_USERS("getAllBusyUsers", 10, 20),
+    FIND_USERS("findUsers", 100, 200),
+    RENEW_LEASE("renewLease", 5, 10),
+    GET_PRESENCE_SNAPSHOT("getPresenceSnapshot", 100, 500),
+    SET_INTEREST_FILTER("setInterestFilter", 5, 10),
+    SEND_MESSAGE_TO_PEER("sendMessageToPeer", 20, 50),
+    SEND_MESSAGES_TO_PEER("sendMessagesToPeer", 20, 50),
+    SEND_MESSAGE_TO_USER("sendMessageToUser", 10, 20),
+    CREATE_ROOM("createRoom", 1, 5),
+    JOIN_ROOM("joinRoom", 5, 10),
+    LEAVE_ROOM("leaveRoom", 5, 10),
+    SEND_MESSAGE_TO_ROOM("sendMessageToRoom", 10, 20),
+    GET_ROOM_NAMES("getRoomNames", 50, 100),
+    GET_HISTORY("getHistory", 10, 20),
+    OFFER_TRANSFER("offerTransfer", 1, 5),
+    ANSWER_TRANSFER("answerTransfer", 5, 10),
+    SEND_CHUNK("sendChunk", 500, 500),
+    ACKNOWLEDGE_CHUNKS("acknowledgeChunks", 500, 500),
+    CANCEL_TRANSFER("cancelTransfer", 5, 10);
+
+    private final String methodName;
+    private final int defaultPerSecond;
+    private final int defaultBurst;
+
+    ServerOperation(String methodName, int defaultPerSecond, int defaultBurst) {
+        this.methodName = methodName;
+        this.defaultPerSecond = defaultPerSecond;
+        this.defaultBurst = defaultBurst;
+    }
+
+    /**
+     * Name of the method in {@link rmi.shared.RMIServerInterface}
+     *
+     * @return method name
+     */
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * Calls per second allowed unless rmi.chat.rateLimit.&lt;methodName&gt;.perSecond is set
+     *
+     * @return
+     */
+    public int getDefaultPerSecond() {
+        return defaultPerSecond;
+    }
+
+    /**
+     * Calls allowed at once unless rmi.chat.rateLimit.&lt;methodName&gt;.burst is set
+     *
+     * @return
+     */
+    public int getDefaultBurst() {
+        return defaultBurst;
+    }
+}
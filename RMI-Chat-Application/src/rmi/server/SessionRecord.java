@@ -0,0 +1,117 @@
+package rmi.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * State of a connected user that survives a restart of the server: the resume token, the peer and the rooms of the
+ * user and its interest filter
+ */
+public class SessionRecord {
+    private final String userName;
+    private final String resumeToken;
+    private final String peerName;
+    private final List<String> rooms;
+    private final List<String> friends;
+
+    /**
+     * @param userName
+     * @param resumeToken
+     * @param peerName    null if the user is not in a chat
+     * @param rooms       names of the rooms
+     * @param friends     null if the user follows everyone
+     */
+    public SessionRecord(String userName, String resumeToken, String peerName, List<String> rooms,
+                         List<String> friends) {
+        this.userName = userName;
+        this.resumeToken = resumeToken;
+        this.peerName = peerName;
+        this.rooms = rooms;
+        this.friends = friends;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    public String getPeerName() {
+        return peerName;
+    }
+
+    public List<String> getRooms() {
+        return rooms;
+    }
+
+    public List<String> getFriends() {
+        return friends;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(userName);
+        out.writeUTF(resumeToken);
+        out.writeBoolean(peerName != null);
+        if (peerName != null) {
+            out.writeUTF(peerName);
+        }
+        writeNames(out, rooms);
+        out.writeBoolean(friends != null);
+        if (friends != null) {
+            writeNames(out, friends);
+        }
+    }
+
+    static SessionRecord read(DataInput in) throws IOException {
+        String userName = in.readUTF();
+        String resumeToken = in.readUTF();
+        String peerName = in.readBoolean() ? in.readUTF() : null;
+        List<String> rooms = readNames(in);
+        List<String> friends = in.readBoolean() ? readNames(in) : null;
+        return new SessionRecord(userName, resumeToken, peerName, rooms, friends);
+    }
+
+    private static void writeNames(DataOutput out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static List<String> readNames(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Invalid number of names " + size);
+        }
+        List<String> names = new ArrayList<>(Math.min(size, 64));
+        for (int i = 0; i < size; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof SessionRecord)) {
+            return false;
+        }
+        SessionRecord record = (SessionRecord) other;
+        return userName.equals(record.userName) && resumeToken.equals(record.resumeToken)
+                && Objects.equals(peerName, record.peerName) && rooms.equals(record.rooms)
+                && Objects.equals(friends, record.friends);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(userName, resumeToken, peerName, rooms, friends);
+    }
+}
@@ -0,0 +1,283 @@
+package rmi.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Snapshots of the sessions of the connected users, so a restarted server can let its clients resume instead of
+ * joining again. A background thread compares the current sessions with the ones written before and appends only
+ * the changed and removed ones to a journal. Once the journal outgrows the snapshot, the snapshot is rewritten and
+ * the journal is started over. Both files carry a generation, a journal left over from an older snapshot is ignored.
+ * <pre>
+ * sessions.snapshot  [int magic][long generation][int count][records]
+ * sessions.journal   [int magic][long generation]([byte PUT][record] | [byte REMOVE][username])...
+ * </pre>
+ */
+public class SessionStore {
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+    private static final int SNAPSHOT_MAGIC = 0x524d5353;
+    private static final int JOURNAL_MAGIC = 0x524d534a;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int MIN_JOURNAL_ENTRIES = 1024;
+
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final Map<String, SessionRecord> written = new HashMap<>();
+    private final List<SessionRecord> restored = new ArrayList<>();
+    private ScheduledExecutorService writer;
+    private Supplier<Collection<SessionRecord>> source;
+    private long generation;
+    private FileOutputStream journalStream;
+    private DataOutputStream journal;
+    private int journalEntries;
+    private boolean closed;
+
+    private SessionStore(Path directory) {
+        this.snapshotFile = directory.resolve("sessions.snapshot");
+        this.journalFile = directory.resolve("sessions.journal");
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if needed, and reads the sessions written before
+     *
+     * @param directory
+     * @return store
+     * @throws IOException
+     */
+    public static SessionStore open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        SessionStore store = new SessionStore(directory);
+        store.recover();
+        return store;
+    }
+
+    private void recover() throws IOException {
+        Map<String, SessionRecord> sessions = new LinkedHashMap<>();
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a session snapshot: " + snapshotFile);
+                }
+                generation = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    SessionRecord record = SessionRecord.read(in);
+                    sessions.put(UserRegistry.key(record.getUserName()), record);
+                }
+            }
+        }
+        if (Files.exists(journalFile)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(journalFile)))) {
+                if (in.readInt() == JOURNAL_MAGIC && in.readLong() == generation) {
+                    readJournal(in, sessions);
+                }
+            } catch (EOFException e) {
+                // Crashed before the journal's header was complete
+            }
+        }
+        restored.addAll(sessions.values());
+        // Start from a clean snapshot, which also drops a torn journal entry
+        compact(sessions);
+    }
+
+    /**
+     * Applies the entries of the journal in order. The last entry may have been cut short by a crash or a failed
+     * write, so reading stops at the first entry that cannot be read and keeps the ones before it.
+     */
+    private static void readJournal(DataInputStream in, Map<String, SessionRecord> sessions) {
+        try {
+            while (true) {
+                byte type = in.readByte();
+                if (type == PUT) {
+                    SessionRecord record = SessionRecord.read(in);
+                    sessions.put(UserRegistry.key(record.getUserName()), record);
+                } else if (type == REMOVE) {
+                    sessions.remove(UserRegistry.key(in.readUTF()));
+                } else {
+                    throw new IOException("Invalid journal entry " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // End of the journal
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring the rest of the session journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sessions read when the store was opened
+     *
+     * @return records
+     */
+    public List<SessionRecord> getRestored() {
+        return restored;
+    }
+
+    /**
+     * Writes the changes of the sessions periodically on a background thread
+     *
+     * @param source         current sessions
+     * @param intervalMillis
+     */
+    public synchronized void start(Supplier<Collection<SessionRecord>> source, long intervalMillis) {
+        this.source = source;
+        writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::writeChanges, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends the sessions that have changed since the last call to the journal. After a failed write the journal
+     * may end in a torn entry, so the sessions are written as a new generation instead.
+     */
+    public synchronized void writeChanges() {
+        if (source == null || closed) {
+            return;
+        }
+        Map<String, SessionRecord> current = new HashMap<>();
+        for (SessionRecord record : source.get()) {
+            current.put(UserRegistry.key(record.getUserName()), record);
+        }
+        if (journal == null) {
+            compactAfterFailure(current);
+            return;
+        }
+        try {
+            int entries = 0;
+            for (Map.Entry<String, SessionRecord> entry : current.entrySet()) {
+                if (!entry.getValue().equals(written.get(entry.getKey()))) {
+                    journal.writeByte(PUT);
+                    entry.getValue().writeTo(journal);
+                    entries++;
+                }
+            }
+            for (Map.Entry<String, SessionRecord> entry : written.entrySet()) {
+                if (!current.containsKey(entry.getKey())) {
+                    journal.writeByte(REMOVE);
+                    journal.writeUTF(entry.getValue().getUserName());
+                    entries++;
+                }
+            }
+            if (entries == 0) {
+                return;
+            }
+            journal.flush();
+            journalStream.getChannel().force(false);
+            written.clear();
+            written.putAll(current);
+            journalEntries += entries;
+            if (journalEntries > Math.max(MIN_JOURNAL_ENTRIES, written.size())) {
+                compact(written);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write session snapshot: " + e.getMessage());
+            compactAfterFailure(current);
+        }
+    }
+
+    /**
+     * Starts a new generation from the given sessions. If that fails as well, the journal is closed and the next
+     * call of {@link #writeChanges()} tries again.
+     */
+    private void compactAfterFailure(Map<String, SessionRecord> current) {
+        try {
+            compact(current);
+        } catch (IOException e) {
+            System.err.println("Could not compact session snapshot: " + e.getMessage());
+            closeJournal();
+        }
+    }
+
+    /**
+     * Writes the given sessions as a new snapshot of the next generation and starts an empty journal for it
+     */
+    private void compact(Map<String, SessionRecord> sessions) throws IOException {
+        long next = generation + 1;
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(next);
+            out.writeInt(sessions.size());
+            for (SessionRecord record : sessions.values()) {
+                record.writeTo(out);
+            }
+            out.flush();
+            file.getChannel().force(false);
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        closeJournal();
+        journalStream = new FileOutputStream(journalFile.toFile());
+        journal = new DataOutputStream(new BufferedOutputStream(journalStream));
+        journal.writeInt(JOURNAL_MAGIC);
+        journal.writeLong(next);
+        journal.flush();
+        journalStream.getChannel().force(false);
+        generation = next;
+        journalEntries = 0;
+        if (sessions != written) {
+            written.clear();
+            written.putAll(sessions);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.err.println("Could not close session journal: " + e.getMessage());
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Writes the last changes and stops the background thread
+     */
+    public void close() {
+        ScheduledExecutorService current;
+        synchronized (this) {
+            current = writer;
+        }
+        if (current != null) {
+            // Not interrupted, that would close the files in the middle of a write
+            current.shutdown();
+            try {
+                current.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            writeChanges();
+            closeJournal();
+            closed = true;
+        }
+    }
+}
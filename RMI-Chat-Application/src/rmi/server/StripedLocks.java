@@ -0,0 +1,80 @@
+package rmi.server;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A fixed set of locks shared by usernames. State transitions only lock the stripes of the users they touch, so
+ * unrelated users can join, peer up and leave in parallel.
+ */
+public class StripedLocks {
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /**
+     * @param stripes number of locks, rounded up to the next power of two
+     */
+    public StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    private int indexOf(String username) {
+        int hash = UserRegistry.key(username).hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Runs the action while holding the lock of the given user
+     *
+     * @param username
+     * @param action
+     * @return result of the action
+     */
+    public <T> T withLock(String username, Supplier<T> action) {
+        ReentrantLock lock = locks[indexOf(username)];
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the action while holding the locks of both users. Locks are always taken in index order, so two
+     * transitions on the same pair of users cannot deadlock.
+     *
+     * @param first
+     * @param second
+     * @param action
+     * @return result of the action
+     */
+    public <T> T withLocks(String first, String second, Supplier<T> action) {
+        if (second == null) {
+            return withLock(first, action);
+        }
+        int firstIndex = indexOf(first);
+        int secondIndex = indexOf(second);
+        if (firstIndex == secondIndex) {
+            return withLock(first, action);
+        }
+        ReentrantLock lower = locks[Math.min(firstIndex, secondIndex)];
+        ReentrantLock upper = locks[Math.max(firstIndex, secondIndex)];
+        lower.lock();
+        try {
+            upper.lock();
+            try {
+                return action.get();
+            } finally {
+                upper.unlock();
+            }
+        } finally {
+            lower.unlock();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package rmi.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket. Instead of a token count it keeps the time at which the bucket would be full again
+ * (the generic cell rate algorithm), so taking a token is one compare-and-set of a single long and refilling needs
+ * no background work.
+ */
+public class TokenBucket {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param perSecond tokens added per second
+     * @param burst     tokens the bucket holds when it is full
+     */
+    public TokenBucket(int perSecond, int burst) {
+        if (perSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive: " + perSecond + ", " + burst);
+        }
+        this.intervalNanos = 1_000_000_000L / perSecond;
+        this.toleranceNanos = intervalNanos * burst;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token if there is one
+     *
+     * @param nowNanos {@link System#nanoTime()}
+     * @return 0 if a token has been taken, otherwise nanoseconds until the next token is available
+     */
+    public long tryAcquire(long nowNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, nowNanos) + intervalNanos;
+            long wait = next - nowNanos - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Gives back a token taken by {@link #tryAcquire(long)}, e.g. because another limit rejected the call
+     */
+    public void release() {
+        fullAt.addAndGet(-intervalNanos);
+    }
+
+    /**
+     * @param nowNanos
+     * @return true if the bucket is full, i.e. it has not been used recently
+     */
+    public boolean isFull(long nowNanos) {
+        return fullAt.get() <= nowNanos;
+    }
+}
@@ -0,0 +1,115 @@
+package rmi.server;
+
+/**
+ * A file transfer between the two users of a chat. The server keeps no data of the file, only how far the sender
+ * has sent it and how far the receiver has acknowledged it, which bounds the chunks waiting in the receiver's
+ * outbox to one window.
+ */
+public class Transfer {
+    private final String transferId;
+    private final String sender;
+    private final String receiver;
+    private final long size;
+    private final int chunkSize;
+    private final boolean direct;
+    private boolean accepted = false;
+    private long sentOffset;
+    private long acknowledgedOffset;
+
+    /**
+     * @param transferId
+     * @param sender     canonical username
+     * @param receiver   canonical username
+     * @param size
+     * @param chunkSize
+     * @param direct     true if the peers want to connect to each other
+     */
+    public Transfer(String transferId, String sender, String receiver, long size, int chunkSize, boolean direct) {
+        this.transferId = transferId;
+        this.sender = sender;
+        this.receiver = receiver;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.direct = direct;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getReceiver() {
+        return receiver;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @param username
+     * @return true if the user is the sender or the receiver
+     */
+    public boolean involves(String username) {
+        return sender.equalsIgnoreCase(username) || receiver.equalsIgnoreCase(username);
+    }
+
+    /**
+     * @param username
+     * @return the other user of the transfer
+     */
+    public String getOther(String username) {
+        return sender.equalsIgnoreCase(username) ? receiver : sender;
+    }
+
+    /**
+     * Starts relaying from the given offset
+     *
+     * @param offset bytes the receiver has already
+     */
+    public synchronized void accept(long offset) {
+        accepted = true;
+        sentOffset = offset;
+        acknowledgedOffset = offset;
+    }
+
+    /**
+     * Takes the next chunk if it follows the previous one and fits into the window
+     *
+     * @param offset
+     * @param length
+     * @param windowChunks
+     * @return false if the chunk is out of order, too large or beyond the window
+     */
+    public synchronized boolean advance(long offset, int length, int windowChunks) {
+        if (!accepted || offset != sentOffset || length <= 0 || length > chunkSize || offset + length > size
+                || offset + length - acknowledgedOffset > (long) windowChunks * chunkSize) {
+            return false;
+        }
+        sentOffset += length;
+        return true;
+    }
+
+    /**
+     * @param offset bytes the receiver has written
+     * @return false if the offset has not been sent yet
+     */
+    public synchronized boolean acknowledge(long offset) {
+        if (!accepted || offset > sentOffset) {
+            return false;
+        }
+        acknowledgedOffset = Math.max(acknowledgedOffset, offset);
+        return true;
+    }
+
+    public synchronized boolean isComplete() {
+        return accepted && acknowledgedOffset == size;
+    }
+}
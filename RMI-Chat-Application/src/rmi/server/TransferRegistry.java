@@ -0,0 +1,98 @@
+package rmi.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Open file transfers of the server, by id and by the users involved. Each user may take part in a limited number
+ * of transfers at a time.
+ */
+public class TransferRegistry {
+    public static final int DEFAULT_MAX_PER_USER = 4;
+
+    private final int maxPerUser;
+    private final Map<String, Transfer> transfers = new HashMap<>();
+    private final Map<String, Set<String>> byUser = new HashMap<>();
+
+    public TransferRegistry(int maxPerUser) {
+        this.maxPerUser = maxPerUser;
+    }
+
+    /**
+     * Adds a transfer. A transfer with the same id and the same users replaces the old one, e.g. to resume it.
+     *
+     * @param transfer
+     * @return false if the id is used by other users or one of the users has too many transfers
+     */
+    public synchronized boolean add(Transfer transfer) {
+        Transfer existing = transfers.get(transfer.getTransferId());
+        if (existing != null) {
+            if (!existing.getSender().equals(transfer.getSender())
+                    || !existing.getReceiver().equals(transfer.getReceiver())) {
+                return false;
+            }
+            transfers.put(transfer.getTransferId(), transfer);
+            return true;
+        }
+        if (count(transfer.getSender()) >= maxPerUser || count(transfer.getReceiver()) >= maxPerUser) {
+            return false;
+        }
+        transfers.put(transfer.getTransferId(), transfer);
+        index(transfer.getSender()).add(transfer.getTransferId());
+        index(transfer.getReceiver()).add(transfer.getTransferId());
+        return true;
+    }
+
+    public synchronized Transfer find(String transferId) {
+        return transfers.get(transferId);
+    }
+
+    /**
+     * @param transferId
+     * @return the removed transfer, null if there is none
+     */
+    public synchronized Transfer remove(String transferId) {
+        Transfer transfer = transfers.remove(transferId);
+        if (transfer != null) {
+            unindex(transfer.getSender(), transferId);
+            unindex(transfer.getReceiver(), transferId);
+        }
+        return transfer;
+    }
+
+    /**
+     * Removes every transfer of a user, e.g. when the user's chat ends
+     *
+     * @param username
+     * @return removed transfers
+     */
+    public synchronized List<Transfer> removeAll(String username) {
+        Set<String> ids = byUser.get(UserRegistry.key(username));
+        List<Transfer> removed = new ArrayList<>();
+        if (ids != null) {
+            new ArrayList<>(ids).forEach(id -> removed.add(remove(id)));
+        }
+        return removed;
+    }
+
+    private int count(String username) {
+        Set<String> ids = byUser.get(UserRegistry.key(username));
+        return ids == null ? 0 : ids.size();
+    }
+
+    private Set<String> index(String username) {
+        return byUser.computeIfAbsent(UserRegistry.key(username), key -> new LinkedHashSet<>());
+    }
+
+    private void unindex(String username, String transferId) {
+        String key = UserRegistry.key(username);
+        Set<String> ids = byUser.get(key);
+        if (ids != null && ids.remove(transferId) && ids.isEmpty()) {
+            byUser.remove(key);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package rmi.server;
+
+import rmi.shared.NameMatch;
+import rmi.shared.PresenceStatus;
+import rmi.shared.UserPage;
+import rmi.shared.UserPresence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sorted index of the users of the chat room with their current status, local and remote ones. Kept up to date by the
+ * {@link PresenceTracker}, so it changes together with the published presence. Prefix searches only visit the
+ * matching range of the index, substring searches and status filters walk it in order but stop after a bounded
+ * number of entries per page, so a page never costs more than that whatever the size of the chat room.
+ */
+public class UserDirectory {
+    public static final int MAX_PAGE_SIZE = 500;
+    public static final int MAX_SCANNED_PER_PAGE = 10_000;
+
+    private final NavigableMap<String, UserPresence> users = new ConcurrentSkipListMap<>();
+
+    /**
+     * Applies a published status, offline users are removed
+     *
+     * @param presence
+     */
+    public void update(UserPresence presence) {
+        String key = UserRegistry.key(presence.getUserName());
+        if (presence.getStatus() == PresenceStatus.OFFLINE) {
+            users.remove(key);
+        } else {
+            users.put(key, presence);
+        }
+    }
+
+    /**
+     * Returns the next page of the users matching a search. Pages continue where the previous one ended, so users
+     * joining or leaving in between neither shift nor repeat the following pages.
+     *
+     * @param text   search text, empty or null for all users
+     * @param match
+     * @param status only users with this status, null for any
+     * @param cursor cursor of the previous page, null for the first page
+     * @param limit  maximum number of users, at most {@link #MAX_PAGE_SIZE}
+     * @return page
+     */
+    public UserPage search(String text, NameMatch match, PresenceStatus status, String cursor, int limit) {
+        String query = text == null ? "" : text.toLowerCase(Locale.ROOT);
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        NavigableMap<String, UserPresence> range = users;
+        if (match == NameMatch.PREFIX && !query.isEmpty()) {
+            range = users.subMap(query, true, query + Character.MAX_VALUE, false);
+        }
+        if (cursor != null) {
+            range = range.tailMap(cursor, false);
+        }
+        List<UserPresence> page = new ArrayList<>(Math.min(pageSize, 64));
+        int scanned = 0;
+        String last = null;
+        for (Map.Entry<String, UserPresence> entry : range.entrySet()) {
+            if (page.size() == pageSize || scanned == MAX_SCANNED_PER_PAGE) {
+                return new UserPage(page, last);
+            }
+            last = entry.getKey();
+            scanned++;
+            UserPresence user = entry.getValue();
+            if ((status == null || user.getStatus() == status)
+                    && (match == NameMatch.PREFIX || entry.getKey().contains(query))) {
+                page.add(user);
+            }
+        }
+        return new UserPage(page, null);
+    }
+
+    public int size() {
+        return users.size();
+    }
+}
@@ -0,0 +1,95 @@
+package rmi.server;
+
+import rmi.shared.RMIClientInterface;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+/**
+ * Directory of the users connected to the server. Users are keyed by their case-folded username, so finding a user
+ * is a local map lookup instead of asking every client for its name. Safe to use from concurrent RMI threads.
+ */
+public class UserRegistry {
+    private final ConcurrentMap<String, ConnectedUser> users = new ConcurrentHashMap<>();
+
+    /**
+     * Usernames are case-insensitive throughout the application, registry keys are normalized with this method.
+     *
+     * @param username
+     * @return case-folded username
+     */
+    public static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Registers a new user if the username is not taken yet. Atomic, two users cannot join with the same name.
+     *
+     * @param user
+     * @return true if the user has been added
+     */
+    public boolean add(ConnectedUser user) {
+        return users.putIfAbsent(key(user.getUserName()), user) == null;
+    }
+
+    /**
+     * Finds a connected user by name, ignoring case
+     *
+     * @param username
+     * @return user or null if there is no such user
+     */
+    public ConnectedUser find(String username) {
+        if (username == null) {
+            return null;
+        }
+        return users.get(key(username));
+    }
+
+    /**
+     * Removes a user from the registry
+     *
+     * @param username
+     * @return removed user or null if there is no such user
+     */
+    public ConnectedUser remove(String username) {
+        return users.remove(key(username));
+    }
+
+    /**
+     * Removes the given user only if it is still the one registered under its name. Used when evicting a client,
+     * so a new client which joined with the same name in the meantime is kept.
+     *
+     * @param user
+     * @return true if the user has been removed
+     */
+    public boolean remove(ConnectedUser user) {
+        return users.remove(key(user.getUserName()), user);
+    }
+
+    public Collection<ConnectedUser> getAll() {
+        return new ArrayList<>(users.values());
+    }
+
+    /**
+     * Returns shared instances of the users whose cached status matches the given one
+     *
+     * @param isBusy
+     * @return list of client interfaces
+     */
+    public List<RMIClientInterface> getClientInterfaces(boolean isBusy) {
+        return users.values()
+                .stream()
+                .filter(user -> user.getIsBusy() == isBusy && !user.isDetached())
+                .map(ConnectedUser::getClientInterface)
+                .collect(Collectors.toList());
+    }
+
+    public int size() {
+        return users.size();
+    }
+}
@@ -0,0 +1,158 @@
+package rmi.shared;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Settings of the server and the client. Values are read from a properties file, a system property with the same
+ * key overrides the file, e.g. -Drmi.chat.port=2300. The file is given by the rmi.chat.config system property and
+ * defaults to chat.properties in the working directory, it does not have to exist.
+ */
+public class ChatConfig {
+    public static final String FILE_PROPERTY = "rmi.chat.config";
+    public static final String DEFAULT_FILE = "chat.properties";
+    public static final String DEFAULT_HOST = "127.0.0.1";
+    public static final int DEFAULT_PORT = 2222;
+    public static final int DEFAULT_NIO_PORT = 2223;
+
+    private static volatile ChatConfig defaultConfig;
+
+    private final Properties file;
+
+    /**
+     * @param file values that are used unless a system property overrides them
+     */
+    public ChatConfig(Properties file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the given properties file
+     *
+     * @param path
+     * @return config
+     * @throws IOException
+     */
+    public static ChatConfig load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+        }
+        return new ChatConfig(properties);
+    }
+
+    /**
+     * Returns the config of this process, reading the config file on first use. A file that cannot be read is
+     * reported and ignored, system properties still apply.
+     *
+     * @return config
+     */
+    public static ChatConfig getDefault() {
+        ChatConfig config = defaultConfig;
+        if (config == null) {
+            synchronized (ChatConfig.class) {
+                config = defaultConfig;
+                if (config == null) {
+                    config = loadDefault();
+                    defaultConfig = config;
+                }
+            }
+        }
+        return config;
+    }
+
+    private static ChatConfig loadDefault() {
+        String configured = System.getProperty(FILE_PROPERTY);
+        Path path = Paths.get(configured != null ? configured : DEFAULT_FILE);
+        if (configured == null && !Files.exists(path)) {
+            return new ChatConfig(new Properties());
+        }
+        try {
+            return load(path);
+        } catch (IOException e) {
+            System.err.println("Could not read config file " + path + ": " + e.getMessage());
+            return new ChatConfig(new Properties());
+        }
+    }
+
+    /**
+     * Host of the server. The server announces it to clients if it is set, clients connect to it.
+     *
+     * @return
+     */
+    public String getHost() {
+        return getString("rmi.chat.host", DEFAULT_HOST);
+    }
+
+    /**
+     * Port of the server's registry
+     *
+     * @return
+     */
+    public int getPort() {
+        return getInt("rmi.chat.port", DEFAULT_PORT);
+    }
+
+    /**
+     * @param key
+     * @return value of the key, null if it is not set
+     */
+    public String get(String key) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = file.getProperty(key);
+        }
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = get(key);
+        try {
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + key + ": " + value, e);
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = get(key);
+        try {
+            return value != null ? Long.parseLong(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + key + ": " + value, e);
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    /**
+     * @param key
+     * @param type
+     * @param defaultValue
+     * @return constant of the enum whose name is the value of the key, ignoring case
+     */
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        String value = get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        for (E constant : type.getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(value)) {
+                return constant;
+            }
+        }
+        throw new IllegalArgumentException("Invalid value of " + key + ": " + value);
+    }
+}
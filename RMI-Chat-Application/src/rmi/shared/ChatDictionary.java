@@ -0,0 +1,76 @@
+package rmi.shared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Preset dictionary of the frame compression. Deflate finds repeated strings only within what it has seen, a short
+ * frame has little to refer back to. With the dictionary, frames can refer to typical chat vocabulary, server
+ * notices and the class descriptors of serialized results from their first byte on.
+ * <p>
+ * Both sides build the same dictionary from the same classes; the id is exchanged when compression is negotiated,
+ * so differing versions fall back to uncompressed frames.
+ */
+final class ChatDictionary {
+    // Deflate prefers recent bytes, the most frequent strings come last
+    private static final String VOCABULARY = """
+            has declined the file has cancelled the transfer The transfer has been stopped by the server\
+             Chunks have been lost, send the file again to resume The chat has ended has left the chat room\
+             You are going too fast, please try again in ms. Server cannot be reached at the moment\
+             https://www. .com http:// www.youtube.com/watch?v= .png .jpg .pdf .zip\
+             I don't know what you mean, I think so too. Let me check and get back to you.\
+             Can you send me the file? Did you get my message? I'm not sure about that.\
+             What are you doing this weekend? See you tomorrow! Talk to you later. Sounds good to me.\
+             Thank you so much! Thanks! No problem. You're welcome. Sorry, I was away.\
+             Good morning! Good night! How was your day? What's up? Not much, you?\
+             Hello there, how are you doing? I'm fine, thanks, and you? Hi! Hey! Yes, sure. No, sorry.\
+             haha lol :) :( :D ;) ok okay yes no what when where why how who the and that this with you\
+            """;
+
+    private static final byte[] BYTES = build();
+    private static final int ID = checksum(BYTES);
+
+    private ChatDictionary() {
+    }
+
+    static byte[] bytes() {
+        return BYTES;
+    }
+
+    /**
+     * @return checksum of the dictionary, equal on both sides if they can exchange compressed frames
+     */
+    static int id() {
+        return ID;
+    }
+
+    private static byte[] build() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        // Results that are still sent as serialized objects
+        serialize(bytes, new HistoryPage("alice|bob", List.of(new HistoryEntry(1, 0, "alice", "")), 1, 1));
+        serialize(bytes, new UserPage(List.of(new UserPresence("alice", PresenceStatus.AVAILABLE)), "alice"));
+        serialize(bytes, new TransferOffer("", "alice", "", 0, 0, new byte[0], false));
+        bytes.writeBytes(VOCABULARY.getBytes(StandardCharsets.UTF_8));
+        return bytes.toByteArray();
+    }
+
+    private static void serialize(ByteArrayOutputStream bytes, Serializable value) {
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+        return (int) crc32.getValue();
+    }
+}
@@ -0,0 +1,168 @@
+package rmi.shared;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A chat message as it is delivered to clients. The server encodes it once into a compact binary form, every
+ * recipient gets the same bytes instead of a separately serialized object graph. Formatting it for display is left
+ * to the client.
+ */
+public class ChatMessage implements Externalizable {
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_SENDER_BYTES = 0xFFFF;
+
+    private String sender;
+    private long timestamp;
+    private long sequence;
+    private byte[] payload;
+    private transient volatile byte[] encoded;
+    private transient String text;
+
+    /**
+     * Only used by deserialization
+     */
+    public ChatMessage() {
+    }
+
+    /**
+     * @param sender
+     * @param timestamp epoch milliseconds
+     * @param sequence  position of the message in its conversation, -1 if it has not been stored
+     * @param text
+     * @throws IllegalArgumentException if the sender does not fit the encoding
+     */
+    public ChatMessage(String sender, long timestamp, long sequence, String text) {
+        if (sender.getBytes(StandardCharsets.UTF_8).length > MAX_SENDER_BYTES) {
+            throw new IllegalArgumentException("Sender name is too long");
+        }
+        this.sender = sender;
+        this.timestamp = timestamp;
+        this.sequence = sequence;
+        this.payload = text.getBytes(StandardCharsets.UTF_8);
+        this.text = text;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Time the server received the message
+     *
+     * @return epoch milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Position of the message in its conversation, see {@link RMIServerInterface#getHistory}
+     *
+     * @return sequence number, -1 if the message has not been stored
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Message text, decoded from the payload on first use
+     *
+     * @return text
+     */
+    public String getText() {
+        if (text == null) {
+            text = new String(payload, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    /**
+     * Encodes the message on first use and returns the same bytes afterwards
+     */
+    private byte[] encode() {
+        byte[] result = encoded;
+        if (result == null) {
+            byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+            result = ByteBuffer.allocate(2 + senderBytes.length + 8 + 8 + 4 + payload.length)
+                    .putShort((short) senderBytes.length).put(senderBytes)
+                    .putLong(timestamp)
+                    .putLong(sequence)
+                    .putInt(payload.length).put(payload)
+                    .array();
+            encoded = result;
+        }
+        return result;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeTo(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        readFrom(in);
+    }
+
+    /**
+     * Writes the encoded message, the same bytes as {@link #writeExternal(ObjectOutput)}
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        byte[] bytes = encode();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a message written by {@link #writeTo(DataOutput)}
+     *
+     * @param in
+     * @return message
+     * @throws IOException
+     */
+    public static ChatMessage read(DataInput in) throws IOException {
+        ChatMessage message = new ChatMessage();
+        message.readFrom(in);
+        return message;
+    }
+
+    private void readFrom(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 2 + 8 + 8 + 4 || length > FrameCodec.MAX_FRAME_BYTES) {
+            throw new IOException("Invalid message length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int senderLength = buffer.getShort() & 0xFFFF;
+        if (senderLength > buffer.remaining() - 8 - 8 - 4) {
+            throw new IOException("Invalid sender length " + senderLength);
+        }
+        byte[] senderBytes = new byte[senderLength];
+        buffer.get(senderBytes);
+        sender = new String(senderBytes, StandardCharsets.UTF_8);
+        timestamp = buffer.getLong();
+        sequence = buffer.getLong();
+        int payloadLength = buffer.getInt();
+        if (payloadLength != buffer.remaining()) {
+            throw new IOException("Invalid payload length " + payloadLength);
+        }
+        payload = new byte[payloadLength];
+        buffer.get(payload);
+    }
+
+    @Override
+    public String toString() {
+        return sender + ": " + getText();
+    }
+}
@@ -0,0 +1,154 @@
+package rmi.shared;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.util.Objects;
+
+/**
+ * Socket factory for the remote objects of the server and the client. Every socket it connects or accepts gets
+ * TCP_NODELAY, so small messages and callbacks are sent right away, and the configured buffer sizes. With
+ * compression, each connection is deflated and flushed at the end of every call, which saves bandwidth for text at
+ * the cost of some CPU.
+ * <p>
+ * The factory is sent to the other side within the stubs, so both ends of a connection always agree on compression.
+ */
+public class ChatSocketFactory implements RMIClientSocketFactory, RMIServerSocketFactory, Serializable {
+    public static final long DEFAULT_RESPONSE_TIMEOUT_MILLIS = 15_000;
+
+    private static final long serialVersionUID = 1L;
+
+    private final int sendBufferBytes;
+    private final int receiveBufferBytes;
+    private final boolean compression;
+
+    /**
+     * @param sendBufferBytes    0 for the system default
+     * @param receiveBufferBytes 0 for the system default
+     * @param compression
+     */
+    public ChatSocketFactory(int sendBufferBytes, int receiveBufferBytes, boolean compression) {
+        this.sendBufferBytes = sendBufferBytes;
+        this.receiveBufferBytes = receiveBufferBytes;
+        this.compression = compression;
+    }
+
+    /**
+     * Creates a factory with the rmi.chat.transport.* settings of the config
+     *
+     * @param config
+     * @return factory
+     */
+    public static ChatSocketFactory fromConfig(ChatConfig config) {
+        return new ChatSocketFactory(config.getInt("rmi.chat.transport.sendBufferBytes", 0),
+                config.getInt("rmi.chat.transport.receiveBufferBytes", 0),
+                config.getBoolean("rmi.chat.transport.compression", false));
+    }
+
+    /**
+     * Passes the timeouts of the config on to the RMI runtime. Has to be called before the first remote call or
+     * export, the runtime reads them only once. System properties of the runtime that are set explicitly win. A call
+     * waits at most {@link #DEFAULT_RESPONSE_TIMEOUT_MILLIS} for its reply unless configured otherwise.
+     *
+     * @param config
+     */
+    public static void applyTransportProperties(ChatConfig config) {
+        // How long an idle connection is kept for reuse by later calls
+        setIfAbsent("sun.rmi.transport.connectionTimeout", config.get("rmi.chat.transport.connectionReuseMillis"));
+        // Don't let a stalled peer hold a thread for the default TCP timeout
+        setIfAbsent("sun.rmi.transport.tcp.responseTimeout", String.valueOf(
+                config.getLong("rmi.chat.transport.responseTimeoutMillis", DEFAULT_RESPONSE_TIMEOUT_MILLIS)));
+        setIfAbsent("sun.rmi.transport.tcp.handshakeTimeout",
+                config.get("rmi.chat.transport.handshakeTimeoutMillis"));
+    }
+
+    private static void setIfAbsent(String property, String value) {
+        if (value != null && System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = compression ? new CompressedSocket() : new Socket();
+        try {
+            if (receiveBufferBytes > 0) {
+                // Before connecting, so that a large window can be negotiated
+                socket.setReceiveBufferSize(receiveBufferBytes);
+            }
+            configure(socket);
+            socket.connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        ServerSocket serverSocket = new ConfiguredServerSocket();
+        try {
+            if (receiveBufferBytes > 0) {
+                // Inherited by accepted sockets
+                serverSocket.setReceiveBufferSize(receiveBufferBytes);
+            }
+            serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        return serverSocket;
+    }
+
+    private void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        if (sendBufferBytes > 0) {
+            socket.setSendBufferSize(sendBufferBytes);
+        }
+    }
+
+    private class ConfiguredServerSocket extends ServerSocket {
+        ConfiguredServerSocket() throws IOException {
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            Socket socket = compression ? new CompressedSocket() : new Socket();
+            implAccept(socket);
+            try {
+                configure(socket);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ChatSocketFactory that = (ChatSocketFactory) o;
+        return sendBufferBytes == that.sendBufferBytes && receiveBufferBytes == that.receiveBufferBytes
+                && compression == that.compression;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sendBufferBytes, receiveBufferBytes, compression);
+    }
+}
@@ -0,0 +1,41 @@
+package rmi.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Socket whose streams are deflated. Flushing the output stream sends everything written so far, RMI flushes at the
+ * end of every call and reply, so no message waits for more data. The native memory of the deflater and the
+ * inflater is released once the socket has been garbage collected; ending them on close could race with a thread
+ * still reading.
+ */
+class CompressedSocket extends Socket {
+    private static final int BUFFER_BYTES = 8192;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private InputStream in;
+    private OutputStream out;
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (in == null) {
+            in = new InflaterInputStream(super.getInputStream(), inflater, BUFFER_BYTES);
+        }
+        return in;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (out == null) {
+            out = new DeflaterOutputStream(super.getOutputStream(), deflater, BUFFER_BYTES, true);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,118 @@
+package rmi.shared;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.zip.CRC32;
+
+/**
+ * A piece of a file that is relayed through the server. Each chunk carries the CRC-32 of its data, so the receiver
+ * can tell a damaged chunk from a good one before writing it.
+ */
+public class FileChunk implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    private String transferId;
+    private long offset;
+    private byte[] data;
+    private int crc;
+
+    /**
+     * Only used by deserialization
+     */
+    public FileChunk() {
+    }
+
+    /**
+     * @param transferId
+     * @param offset     position of the data in the file
+     * @param data
+     */
+    public FileChunk(String transferId, long offset, byte[] data) {
+        this.transferId = transferId;
+        this.offset = offset;
+        this.data = data;
+        this.crc = checksum(data);
+    }
+
+    /**
+     * @param data
+     * @return CRC-32 of the data
+     */
+    public static int checksum(byte[] data) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        return (int) crc32.getValue();
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return true if the data matches the checksum it was sent with
+     */
+    public boolean isIntact() {
+        return checksum(data) == crc;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeTo(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        readFrom(in);
+    }
+
+    /**
+     * Writes the chunk, the same bytes as {@link #writeExternal(ObjectOutput)}
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(transferId);
+        out.writeLong(offset);
+        out.writeInt(crc);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Reads a chunk written by {@link #writeTo(DataOutput)}
+     *
+     * @param in
+     * @return chunk
+     * @throws IOException
+     */
+    public static FileChunk read(DataInput in) throws IOException {
+        FileChunk chunk = new FileChunk();
+        chunk.readFrom(in);
+        return chunk;
+    }
+
+    private void readFrom(DataInput in) throws IOException {
+        transferId = in.readUTF();
+        offset = in.readLong();
+        crc = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > FrameCodec.MAX_FRAME_BYTES) {
+            throw new IOException("Invalid chunk length " + length);
+        }
+        data = new byte[length];
+        in.readFully(data);
+    }
+}
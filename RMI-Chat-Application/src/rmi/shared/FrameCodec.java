@@ -0,0 +1,602 @@
+package rmi.shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire format of the NIO transport. Every frame is a length prefixed message on a persistent connection:
+ * <pre>
+ * [int length][byte type][...]
+ *   CALL  [long id][short method][byte argCount][values]   client to server, a method of RMIServerInterface
+ *   REPLY [long id][value]                                 server to client, the result of a call
+ *   ERROR [long id][value]                                 server to client, the exception thrown by a call
+ *   PUSH  [short method][byte argCount][values]            server to client, a method of RMIClientInterface
+ *   HELLO [int features][int dictionaryId]                 both ways, negotiates the features of the connection
+ * </pre>
+ * Methods are numbered by their position in the sorted list of the interface's methods, so both sides have to use
+ * the same version of the interfaces. Strings, numbers, lists, chat messages, presence and file chunks have a compact
+ * encoding, other values are serialized. The arguments of a call may only be serialized values of this package and
+ * the plain JDK types they are made of, lists may be nested a few levels deep.
+ * <p>
+ * A client may open the connection with a HELLO listing the features it wants, the server answers with the ones it
+ * supports as well. Without a HELLO the connection uses none of them:
+ * <ul>
+ *     <li>{@link #COMPRESSION}: frames from the threshold on are deflated with the preset {@link ChatDictionary},
+ *     the type gets the {@code COMPRESSED} bit and is followed by [int rawLength][deflated rest of the frame].
+ *     Each frame is compressed on its own, so frames encoded once can be sent to many clients.</li>
+ *     <li>{@link #USERNAME_IDS}: a username in presence values is sent once per connection and direction, later
+ *     frames refer to it by a number. The codec keeps the numbers, so frames have to be encoded in the order they
+ *     are sent and decoded in the order they arrive, and a frame that is encoded but not sent breaks the
+ *     connection.</li>
+ * </ul>
+ * Without username ids a codec keeps no state and may be shared.
+ */
+public final class FrameCodec {
+    public static final byte CALL = 1;
+    public static final byte REPLY = 2;
+    public static final byte ERROR = 3;
+    public static final byte PUSH = 4;
+    public static final byte HELLO = 5;
+    public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    public static final int COMPRESSION = 1;
+    public static final int USERNAME_IDS = 2;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 128;
+    public static final int MAX_USERNAME_IDS = 4096;
+
+    private static final int COMPRESSED = 0x40;
+    // Name references: 0 is followed by a name that gets no id, 1 by a name that gets the next id, n + 2 is id n
+    private static final int INLINE_NAME = 0;
+    private static final int NEW_NAME = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte MESSAGE = 5;
+    private static final byte LIST = 6;
+    private static final byte OBJECT = 7;
+    private static final byte CHUNK = 8;
+    private static final byte USER = 9;
+    private static final byte DELTA = 10;
+    private static final byte SNAPSHOT = 11;
+
+    private static final int MAX_LIST_DEPTH = 8;
+    // A server deserializes only what the calls of RMIServerInterface take
+    private static final ObjectInputFilter CALL_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=16;maxrefs=4096;maxbytes=1048576;maxarray=65536;rmi.shared.*;java.lang.String;java.lang.Enum;"
+                    + "java.lang.Number;java.lang.Boolean;java.lang.Integer;java.lang.Long;java.util.ArrayList;"
+                    + "java.util.HashSet;java.util.LinkedHashSet;java.util.HashMap;java.util.CollSer;"
+                    + "java.util.ImmutableCollections$*;java.util.Collections$*;java.util.Map$Entry;!*");
+    // Replies and pushes come from the server, they may carry any exception of the JDK as well
+    private static final ObjectInputFilter REPLY_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=32;maxrefs=65536;maxbytes=16777216;rmi.**;java.**;!*");
+    private static final Method[] SERVER_METHODS = methodsOf(RMIServerInterface.class);
+    private static final Method[] CLIENT_METHODS = methodsOf(RMIClientInterface.class);
+    private static final PresenceStatus[] STATUSES = PresenceStatus.values();
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final int features;
+    private final int compressionThreshold;
+    private final Map<String, Integer> sentNames = new HashMap<>();
+    private final List<String> receivedNames = new ArrayList<>();
+
+    /**
+     * Creates a codec without any features, as a connection starts
+     */
+    public FrameCodec() {
+        this(0, DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * @param features             negotiated features, see {@link #COMPRESSION} and {@link #USERNAME_IDS}
+     * @param compressionThreshold frames of fewer bytes are sent as they are
+     */
+    public FrameCodec(int features, int compressionThreshold) {
+        this.features = features;
+        this.compressionThreshold = Math.max(1, compressionThreshold);
+    }
+
+    /**
+     * Features this side offers, from the rmi.chat.nio.compression and rmi.chat.nio.usernameIds settings
+     *
+     * @param config
+     * @return features
+     */
+    public static int supportedFeatures(ChatConfig config) {
+        int features = 0;
+        if (config.getBoolean("rmi.chat.nio.compression", true)) {
+            features |= COMPRESSION;
+        }
+        if (config.getBoolean("rmi.chat.nio.usernameIds", true)) {
+            features |= USERNAME_IDS;
+        }
+        return features;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    /**
+     * @return true if frames have to be encoded and decoded in order, see {@link #USERNAME_IDS}
+     */
+    public boolean isStateful() {
+        return (features & USERNAME_IDS) != 0;
+    }
+
+    /**
+     * A decoded frame
+     */
+    public static final class Frame {
+        private final byte type;
+        private final long id;
+        private final Method method;
+        private final Object[] values;
+
+        private Frame(byte type, long id, Method method, Object[] values) {
+            this.type = type;
+            this.id = id;
+            this.method = method;
+            this.values = values;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        /**
+         * @return id of the call, 0 for a push
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return called method, null for a reply or an error
+         */
+        public Method getMethod() {
+            return method;
+        }
+
+        /**
+         * @return arguments of a call or a push
+         */
+        public Object[] getArguments() {
+            return values;
+        }
+
+        /**
+         * @return result of a reply or exception of an error
+         */
+        public Object getValue() {
+            return values[0];
+        }
+    }
+
+    private static Method[] methodsOf(Class<?> type) {
+        Method[] methods = type.getMethods();
+        Arrays.sort(methods, Comparator.comparing(Method::getName).thenComparing(Method::toGenericString));
+        return methods;
+    }
+
+    public ByteBuffer call(long id, Method method, Object[] args) throws IOException {
+        return encode(CALL, id, indexOf(SERVER_METHODS, method), args);
+    }
+
+    public ByteBuffer push(Method method, Object[] args) throws IOException {
+        return encode(PUSH, 0, indexOf(CLIENT_METHODS, method), args);
+    }
+
+    public ByteBuffer reply(long id, Object result) throws IOException {
+        return encode(REPLY, id, -1, new Object[]{result});
+    }
+
+    public ByteBuffer error(long id, Throwable error) throws IOException {
+        return encode(ERROR, id, -1, new Object[]{error});
+    }
+
+    /**
+     * Encodes a HELLO, it is never compressed
+     *
+     * @param features wanted by the client or accepted by the server
+     * @return frame
+     */
+    public static ByteBuffer hello(int features) {
+        return ByteBuffer.allocate(13).putInt(9).put(HELLO).putInt(features).putInt(ChatDictionary.id()).flip();
+    }
+
+    /**
+     * Features of a decoded HELLO both sides can use. Compression is left out if the other side has another
+     * dictionary.
+     *
+     * @param hello     decoded HELLO
+     * @param supported features of this side
+     * @return features of the connection
+     */
+    public static int negotiate(Frame hello, int supported) {
+        Object[] values = hello.getArguments();
+        int features = (Integer) values[0] & supported;
+        if ((Integer) values[1] != ChatDictionary.id()) {
+            features &= ~COMPRESSION;
+        }
+        return features;
+    }
+
+    private static int indexOf(Method[] methods, Method method) {
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i].equals(method)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a remote method: " + method);
+    }
+
+    private ByteBuffer encode(byte type, long id, int method, Object[] values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(type);
+        if (type != PUSH) {
+            out.writeLong(id);
+        }
+        int knownNames = sentNames.size();
+        try {
+            if (type == CALL || type == PUSH) {
+                out.writeShort(method);
+                int count = values == null ? 0 : values.length;
+                out.writeByte(count);
+                for (int i = 0; i < count; i++) {
+                    writeValue(out, values[i]);
+                }
+            } else {
+                writeValue(out, values[0]);
+            }
+            if (bytes.size() - 4 > MAX_FRAME_BYTES) {
+                throw new IOException("Frame of " + bytes.size() + " bytes is too large");
+            }
+        } catch (IOException | RuntimeException e) {
+            // The frame is not sent, the other side does not learn the ids given out for it
+            sentNames.values().removeIf(nameId -> nameId >= knownNames);
+            throw e;
+        }
+        byte[] raw = bytes.toByteArray();
+        if ((features & COMPRESSION) != 0 && raw.length - 4 >= compressionThreshold) {
+            ByteBuffer compressed = compress(raw);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+        ByteBuffer frame = ByteBuffer.wrap(raw);
+        frame.putInt(0, raw.length - 4);
+        return frame;
+    }
+
+    /**
+     * Deflates everything after the type of a frame
+     *
+     * @return compressed frame, null if it would not be smaller
+     */
+    private static ByteBuffer compress(byte[] raw) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(ChatDictionary.bytes());
+        deflater.setInput(raw, 5, raw.length - 5);
+        deflater.finish();
+        byte[] frame = new byte[raw.length];
+        int length = 9;
+        while (!deflater.finished()) {
+            if (length == frame.length) {
+                return null;
+            }
+            length += deflater.deflate(frame, length, frame.length - length);
+        }
+        return ByteBuffer.wrap(frame, 0, length)
+                .putInt(0, length - 4)
+                .put(4, (byte) (raw[4] | COMPRESSED))
+                .putInt(5, raw.length - 5);
+    }
+
+    private ByteBuffer decompress(ByteBuffer body) throws IOException {
+        if ((features & COMPRESSION) == 0) {
+            throw new IOException("Compressed frame without negotiated compression");
+        }
+        if (body.remaining() < 5) {
+            throw new IOException("Compressed frame is truncated");
+        }
+        int rawLength = body.getInt(body.position() + 1);
+        if (rawLength < 0 || rawLength >= MAX_FRAME_BYTES) {
+            throw new IOException("Invalid length " + rawLength);
+        }
+        // One byte more than announced, so that a frame inflating to more than that is noticed
+        byte[] raw = new byte[1 + rawLength + 1];
+        raw[0] = (byte) (body.get(body.position()) & ~COMPRESSED);
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setDictionary(ChatDictionary.bytes());
+        inflater.setInput(body.array(), body.arrayOffset() + body.position() + 5, body.remaining() - 5);
+        int length = 1;
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() || length == raw.length)) {
+                    break;
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed frame", e);
+        }
+        // The deflated data has to end exactly with the frame and inflate to the announced length
+        if (!inflater.finished() || inflater.getRemaining() != 0) {
+            throw new IOException("Compressed frame is truncated");
+        }
+        if (length != 1 + rawLength) {
+            throw new IOException("Compressed frame does not match its length " + rawLength);
+        }
+        return ByteBuffer.wrap(raw, 0, length);
+    }
+
+    /**
+     * Decodes the body of a frame, without its length prefix
+     *
+     * @param body
+     * @return frame
+     * @throws IOException if the frame is malformed
+     */
+    public Frame decode(ByteBuffer body) throws IOException {
+        if (body.remaining() > 0 && (body.get(body.position()) & COMPRESSED) != 0) {
+            body = decompress(body);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array(),
+                body.arrayOffset() + body.position(), body.remaining()));
+        byte type = in.readByte();
+        long id = type == PUSH || type == HELLO ? 0 : in.readLong();
+        if (type == CALL || type == PUSH) {
+            Method[] methods = type == CALL ? SERVER_METHODS : CLIENT_METHODS;
+            int index = in.readShort();
+            if (index < 0 || index >= methods.length) {
+                throw new IOException("Unknown method " + index);
+            }
+            ObjectInputFilter filter = type == CALL ? CALL_FILTER : REPLY_FILTER;
+            Object[] args = new Object[in.readByte()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = readValue(in, filter, 0);
+            }
+            return new Frame(type, id, methods[index], args);
+        }
+        if (type == REPLY || type == ERROR) {
+            return new Frame(type, id, null, new Object[]{readValue(in, REPLY_FILTER, 0)});
+        }
+        if (type == HELLO) {
+            return new Frame(type, 0, null, new Object[]{in.readInt(), in.readInt()});
+        }
+        throw new IOException("Unknown frame type " + type);
+    }
+
+    private void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            // Not writeUTF, which is limited to 64 KB
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof ChatMessage) {
+            out.writeByte(MESSAGE);
+            ((ChatMessage) value).writeTo(out);
+        } else if (value instanceof FileChunk) {
+            out.writeByte(CHUNK);
+            ((FileChunk) value).writeTo(out);
+        } else if (value instanceof UserPresence) {
+            out.writeByte(USER);
+            writeUser(out, (UserPresence) value);
+        } else if (value instanceof PresenceDelta) {
+            PresenceDelta delta = (PresenceDelta) value;
+            out.writeByte(DELTA);
+            out.writeLong(delta.getBaseVersion());
+            out.writeLong(delta.getVersion());
+            writeUsers(out, delta.getChanges());
+        } else if (value instanceof PresenceSnapshot) {
+            PresenceSnapshot snapshot = (PresenceSnapshot) value;
+            out.writeByte(SNAPSHOT);
+            out.writeLong(snapshot.getVersion());
+            writeUsers(out, snapshot.getUsers());
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                writeValue(out, element);
+            }
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+                objects.writeObject(value);
+            }
+            out.writeByte(OBJECT);
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        }
+    }
+
+    private Object readValue(DataInput in, ObjectInputFilter filter, int depth) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case BOOLEAN:
+                return in.readBoolean();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case MESSAGE:
+                return ChatMessage.read(in);
+            case CHUNK:
+                return FileChunk.read(in);
+            case USER:
+                return readUser(in);
+            case DELTA:
+                long baseVersion = in.readLong();
+                return new PresenceDelta(baseVersion, in.readLong(), readUsers(in));
+            case SNAPSHOT:
+                return new PresenceSnapshot(in.readLong(), readUsers(in));
+            case LIST:
+                if (depth >= MAX_LIST_DEPTH) {
+                    throw new IOException("Lists are nested too deeply");
+                }
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(Math.max(0, Math.min(size, 1024)));
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, filter, depth + 1));
+                }
+                return list;
+            case OBJECT:
+                try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+                    objects.setObjectInputFilter(filter);
+                    return objects.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown class in frame", e);
+                }
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private void writeUsers(DataOutput out, List<UserPresence> users) throws IOException {
+        writeVarInt(out, users.size());
+        for (UserPresence user : users) {
+            writeUser(out, user);
+        }
+    }
+
+    private List<UserPresence> readUsers(DataInput in) throws IOException {
+        int size = readVarInt(in);
+        List<UserPresence> users = new ArrayList<>(Math.min(size, 1024));
+        for (int i = 0; i < size; i++) {
+            users.add(readUser(in));
+        }
+        return users;
+    }
+
+    private void writeUser(DataOutput out, UserPresence user) throws IOException {
+        writeName(out, user.getUserName());
+        out.writeByte(user.getStatus().ordinal());
+    }
+
+    private UserPresence readUser(DataInput in) throws IOException {
+        String name = readName(in);
+        int status = in.readUnsignedByte();
+        if (status >= STATUSES.length) {
+            throw new IOException("Unknown status " + status);
+        }
+        return new UserPresence(name, STATUSES[status]);
+    }
+
+    private void writeName(DataOutput out, String name) throws IOException {
+        if ((features & USERNAME_IDS) == 0) {
+            writeVarInt(out, INLINE_NAME);
+            out.writeUTF(name);
+            return;
+        }
+        Integer id = sentNames.get(name);
+        if (id != null) {
+            writeVarInt(out, id + 2);
+        } else if (sentNames.size() < MAX_USERNAME_IDS) {
+            sentNames.put(name, sentNames.size());
+            writeVarInt(out, NEW_NAME);
+            out.writeUTF(name);
+        } else {
+            writeVarInt(out, INLINE_NAME);
+            out.writeUTF(name);
+        }
+    }
+
+    private String readName(DataInput in) throws IOException {
+        int reference = readVarInt(in);
+        if (reference == INLINE_NAME) {
+            return in.readUTF();
+        }
+        if (reference == NEW_NAME) {
+            if (receivedNames.size() >= MAX_USERNAME_IDS) {
+                throw new IOException("Too many username ids");
+            }
+            String name = in.readUTF();
+            receivedNames.add(name);
+            return name;
+        }
+        if (reference - 2 >= receivedNames.size()) {
+            throw new IOException("Unknown username id " + (reference - 2));
+        }
+        return receivedNames.get(reference - 2);
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int next = in.readUnsignedByte();
+            value |= (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
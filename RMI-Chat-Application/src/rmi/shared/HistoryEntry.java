@@ -0,0 +1,48 @@
+package rmi.shared;
+
+import java.io.Serializable;
+
+/**
+ * A stored message of a conversation
+ */
+public class HistoryEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long sequence;
+    private final long timestamp;
+    private final String sender;
+    private final String message;
+
+    public HistoryEntry(long sequence, long timestamp, String sender, String message) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.message = message;
+    }
+
+    /**
+     * Position of the message in its conversation, starting from 1
+     *
+     * @return sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Time the server received the message
+     *
+     * @return epoch milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
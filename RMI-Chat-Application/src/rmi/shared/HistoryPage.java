@@ -0,0 +1,53 @@
+package rmi.shared;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of the stored messages of a conversation
+ */
+public class HistoryPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String conversation;
+    private final List<HistoryEntry> entries;
+    private final long nextSequence;
+    private final long lastSequence;
+
+    public HistoryPage(String conversation, List<HistoryEntry> entries, long nextSequence, long lastSequence) {
+        this.conversation = conversation;
+        this.entries = entries;
+        this.nextSequence = nextSequence;
+        this.lastSequence = lastSequence;
+    }
+
+    public String getConversation() {
+        return conversation;
+    }
+
+    public List<HistoryEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Sequence number to ask for to get the next page
+     *
+     * @return sequence number
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Sequence number of the latest message of the conversation, 0 if there is none
+     *
+     * @return sequence number
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public boolean hasMore() {
+        return nextSequence <= lastSequence;
+    }
+}
@@ -0,0 +1,60 @@
+package rmi.shared;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Which users a client wants to hear about in the lobby. The server only sends a client the lobby events and
+ * presence changes of users its filter matches. A client always hears about events that concern itself.
+ */
+public class InterestFilter implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final InterestFilter EVERYONE = new InterestFilter(null);
+
+    private final Set<String> friends;
+
+    private InterestFilter(Set<String> friends) {
+        this.friends = friends;
+    }
+
+    /**
+     * @return filter that matches every user, the default
+     */
+    public static InterestFilter everyone() {
+        return EVERYONE;
+    }
+
+    /**
+     * @param friends usernames, case is ignored
+     * @return filter that matches only the given users
+     */
+    public static InterestFilter friendsOnly(Collection<String> friends) {
+        Set<String> keys = new HashSet<>();
+        friends.forEach(friend -> keys.add(friend.toLowerCase(Locale.ROOT)));
+        return new InterestFilter(Collections.unmodifiableSet(keys));
+    }
+
+    public boolean isEveryone() {
+        return friends == null;
+    }
+
+    /**
+     * @return lowercase usernames of the friends, empty if the filter matches everyone
+     */
+    public Set<String> getFriends() {
+        return friends == null ? Collections.emptySet() : friends;
+    }
+
+    public boolean matches(String username) {
+        return friends == null || friends.contains(username.toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    public String toString() {
+        return friends == null ? "everyone" : "friends " + friends;
+    }
+}
@@ -0,0 +1,15 @@
+package rmi.shared;
+
+/**
+ * How a search text is matched against usernames, case is ignored
+ */
+public enum NameMatch {
+    /**
+     * Usernames that start with the text
+     */
+    PREFIX,
+    /**
+     * Usernames that contain the text anywhere
+     */
+    SUBSTRING
+}
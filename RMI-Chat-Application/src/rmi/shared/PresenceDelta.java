@@ -0,0 +1,66 @@
+package rmi.shared;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Changes of user statuses between two presence versions. A user who left the chat room is reported with
+ * {@link PresenceStatus#OFFLINE}. A client only receives the changes it is interested in, so the versions of the
+ * deltas it receives may have gaps; the base version tells which versions the delta covers.
+ */
+public class PresenceDelta implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * Base version of a delta that cannot be applied to the client's roster, the client has to fetch a snapshot
+     */
+    public static final long UNKNOWN_BASE = -1;
+
+    private final long baseVersion;
+    private final long version;
+    private final List<UserPresence> changes;
+
+    /**
+     * Creates a delta that directly follows the previous version
+     *
+     * @param version
+     * @param changes
+     */
+    public PresenceDelta(long version, List<UserPresence> changes) {
+        this(version - 1, version, changes);
+    }
+
+    /**
+     * @param baseVersion version the delta applies to, the client heard of no change since then
+     * @param version
+     * @param changes
+     */
+    public PresenceDelta(long baseVersion, long version, List<UserPresence> changes) {
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.changes = changes;
+    }
+
+    /**
+     * The delta contains every change of interest after this version, up to {@link #getVersion()}. A roster at any
+     * version from the base version on, but older than the delta, can apply it.
+     *
+     * @return base version, {@link #UNKNOWN_BASE} if the client has to fetch a snapshot
+     */
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    /**
+     * Version of the roster after applying this delta
+     *
+     * @return version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public List<UserPresence> getChanges() {
+        return changes;
+    }
+}
@@ -0,0 +1,28 @@
+package rmi.shared;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Statuses of all users in the chat room at a given presence version. Clients keep it as their local roster and
+ * apply later {@link PresenceDelta}s on top of it.
+ */
+public class PresenceSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long version;
+    private final List<UserPresence> users;
+
+    public PresenceSnapshot(long version, List<UserPresence> users) {
+        this.version = version;
+        this.users = users;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<UserPresence> getUsers() {
+        return users;
+    }
+}
@@ -0,0 +1,13 @@
+package rmi.shared;
+
+/**
+ * Status of a user as seen by the other users
+ */
+public enum PresenceStatus {
+    AVAILABLE,
+    BUSY,
+    /**
+     * The user has left the chat room
+     */
+    OFFLINE
+}
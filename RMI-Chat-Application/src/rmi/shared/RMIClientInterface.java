@@ -2,6 +2,7 @@ package rmi.shared;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * Defines the shared methods for clients
@@ -76,11 +77,103 @@ public interface RMIClientInterface extends Remote {
      */
     void peerReturnedHomePage(String from, String to) throws RemoteException;
 
+    /**
+     * Pushes status changes of other users. Deltas are delivered in version order, a client that misses a version
+     * should fetch a new snapshot by calling {@link RMIServerInterface#getPresenceSnapshot()}.
+     *
+     * @param delta
+     * @throws RemoteException
+     */
+    void applyPresenceDelta(PresenceDelta delta) throws RemoteException;
+
     /**
      * When a peer wants to send message, finds its peer and deliver the message to there
      *
      * @param message
      * @throws RemoteException
      */
-    void getMessageFromPeer(String message) throws RemoteException;
+    void getMessageFromPeer(ChatMessage message) throws RemoteException;
+
+    /**
+     * Delivers a batch of messages of the conversation at once, in the order they were sent
+     *
+     * @param messages
+     * @throws RemoteException
+     */
+    void getMessagesFromPeer(List<ChatMessage> messages) throws RemoteException;
+
+    /**
+     * Delivers the messages other users have left for this client, in the order they were sent. Messages that arrived
+     * while the client was offline come in a single call right after joining.
+     *
+     * @param messages
+     * @throws RemoteException
+     */
+    void getMailboxMessages(List<ChatMessage> messages) throws RemoteException;
+
+    /**
+     * Delivers a message sent to a chat room the client is a member of
+     *
+     * @param roomName
+     * @param message
+     * @throws RemoteException
+     */
+    void getMessageFromRoom(String roomName, ChatMessage message) throws RemoteException;
+
+    /**
+     * Notifies members of a chat room when someone joins or leaves it
+     *
+     * @param roomName
+     * @param username
+     * @param joined   true if the user joined, false if it left
+     * @throws RemoteException
+     */
+    void notifyRoomMembershipChanged(String roomName, String username, boolean joined) throws RemoteException;
+
+    /**
+     * The peer offers a file. Answer with {@link RMIServerInterface#answerTransfer}.
+     *
+     * @param offer
+     * @throws RemoteException
+     */
+    void transferOffered(TransferOffer offer) throws RemoteException;
+
+    /**
+     * The peer has accepted a file this client offered. Send the chunks from the given offset with
+     * {@link RMIServerInterface#sendChunk}, or connect to the direct address and stream the file there.
+     *
+     * @param transferId
+     * @param offset        bytes the peer has already
+     * @param windowChunks  chunks that may be sent before they are acknowledged
+     * @param directAddress "host:port" of the peer for a direct transfer, null to relay through the server
+     * @throws RemoteException
+     */
+    void transferAccepted(String transferId, long offset, int windowChunks, String directAddress)
+            throws RemoteException;
+
+    /**
+     * Delivers the next chunk of a relayed file, chunks arrive in file order
+     *
+     * @param chunk
+     * @throws RemoteException
+     */
+    void receiveChunk(FileChunk chunk) throws RemoteException;
+
+    /**
+     * The receiver has written the file up to the given offset, which frees room in the window
+     *
+     * @param transferId
+     * @param offset
+     * @throws RemoteException
+     */
+    void chunksAcknowledged(String transferId, long offset) throws RemoteException;
+
+    /**
+     * A transfer has been declined or cancelled by the other side or the server, e.g. because the chat has ended
+     *
+     * @param transferId
+     * @param reason
+     * @throws RemoteException
+     */
+    void transferCancelled(String transferId, String reason) throws RemoteException;
 }
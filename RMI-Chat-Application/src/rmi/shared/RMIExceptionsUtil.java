@@ -1,11 +1,30 @@
 package rmi.shared;
 
 import java.rmi.RemoteException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This util class is a wrapper for the RemoteException. Handles try-catch here to make the code readable
  */
 public class RMIExceptionsUtil {
+    private static final LongAdder FAILURES = new LongAdder();
+
+    /**
+     * Counts a failed remote call. The wrappers below count their failures themselves, code that makes remote calls
+     * without them should call this.
+     */
+    public static void recordFailure() {
+        FAILURES.increment();
+    }
+
+    /**
+     * Number of failed remote calls in this JVM
+     *
+     * @return failure count
+     */
+    public static long getFailureCount() {
+        return FAILURES.sum();
+    }
 
     /**
      * Tries to get the username of the client
@@ -14,6 +33,7 @@ public class RMIExceptionsUtil {
         try {
             return user.getUserName();
         } catch (RemoteException e) {
+            recordFailure();
             throw new RuntimeException(e);
         }
     }
@@ -25,6 +45,7 @@ public class RMIExceptionsUtil {
         try {
             return user.getIsBusy();
         } catch (RemoteException e) {
+            recordFailure();
             throw new RuntimeException(e);
         }
     }
@@ -36,6 +57,7 @@ public class RMIExceptionsUtil {
         try {
             user.setIsBusy(isBusy);
         } catch (RemoteException e) {
+            recordFailure();
             throw new RuntimeException(e);
         }
     }
@@ -47,6 +69,7 @@ public class RMIExceptionsUtil {
         try {
             user.notifyNewUserJoined(username);
         } catch (RemoteException e) {
+            recordFailure();
             throw new RuntimeException(e);
         }
     }
@@ -62,6 +85,7 @@ public class RMIExceptionsUtil {
         try {
             user.notifyStatusChanged(from, to);
         } catch (RemoteException e) {
+            recordFailure();
             throw new RuntimeException(e);
         }
     }
@@ -76,6 +100,7 @@ public class RMIExceptionsUtil {
         try {
             user.notifyUserLeft(username);
         } catch (RemoteException e) {
+            recordFailure();
             throw new RuntimeException(e);
         }
     }
@@ -91,6 +116,7 @@ public class RMIExceptionsUtil {
         try {
             user.peerReturnedHomePage(from, to);
         } catch (RemoteException e) {
+            recordFailure();
             throw new RuntimeException(e);
         }
     }
@@ -1,16 +1,17 @@
 package rmi.shared;
 
 import java.rmi.RemoteException;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 
 import static rmi.shared.RMIExceptionsUtil.getUserNameCheckException;
 
 public class RMIOperationsUtil {
+    public static final int MAX_NAME_LENGTH = 64;
 
-    public static String findPeerUsername(String username, HashMap<String, String> peers) {
+    public static String findPeerUsername(String username, Map<String, String> peers) {
         String peer = null;
         if (peers.containsKey(username)) {
             peer = peers.get(username);
@@ -33,9 +34,37 @@ public class RMIOperationsUtil {
         return optional.orElse(null);
     }
 
+    /**
+     * Usernames and room names make up conversation ids, so they may not contain the separator of a direct
+     * conversation or start like a room's conversation
+     *
+     * @param name
+     * @return true if the name can be used for a user or a room
+     */
+    public static boolean isValidName(String name) {
+        return name != null && !name.isBlank() && name.length() <= MAX_NAME_LENGTH && name.indexOf('|') < 0
+                && !name.startsWith("#");
+    }
+
+    /**
+     * Identifies the private conversation of two users, the same for both of them regardless of order and case
+     */
+    public static String directConversation(String first, String second) {
+        String a = first.toLowerCase(Locale.ROOT);
+        String b = second.toLowerCase(Locale.ROOT);
+        return a.compareTo(b) <= 0 ? a + "|" + b : b + "|" + a;
+    }
+
+    /**
+     * Identifies the conversation of a chat room
+     */
+    public static String roomConversation(String roomName) {
+        return "#" + roomName.toLowerCase(Locale.ROOT);
+    }
+
     public static void printProgramInstructions() {
         String description = """
-                You will have four options to choose throughout the program.
+                You will have nine options to choose throughout the program.
                 (1) Now, you are at the home page. You may see all users whether they are busy or available for chatting.
                 You will also be notified for newcomers and people who leave the chat if you stay here.
                 (2) You may start a chat with those who are not busy by prompting command of "$username". You will
@@ -44,6 +73,20 @@ public class RMIOperationsUtil {
                 for good by prompting command of "$disconnect".
                 (4) You may terminate chatting with your peer and return back to home page any time
                 by prompting command of "$return"
+                (5) You may chat in groups. Create a room with "$create room", join an existing one with
+                "$enter room", leave it with "$leave room" and list all rooms with "$rooms". Send a message to
+                a room you are in by prompting "#room message". Type "$history" to see the latest messages with your
+                peer or "$history #room" for a room.
+                (6) You may leave a message for any user by prompting "@username message". Users who are offline
+                receive it when they join again.
+                (7) You may follow only some users by prompting "$friends user1,user2". You will be notified only
+                about them and see only them at the home page. Type "$everyone" to follow everyone again.
+                (8) You may search users by prompting "$users text", all users whose name contains the text are
+                listed a page at a time. Type "$more" for the next page.
+                (9) While chatting you may send your peer a file with "$send path", or with "$direct path" to send it
+                over a direct connection instead of through the server. Accept a file offered to you with "$accept"
+                or decline it with "$decline", type "$cancel" to stop the latest transfer. Offer a file again to
+                resume an interrupted transfer.
                 NOTE: Please do not use dollar sign($) for messaging since it is a reserve character for commands.
                 """;
         System.out.println(description);
@@ -11,13 +11,37 @@ public interface RMIServerInterface extends Remote {
     /**
      * When a new client wants to join the chat room, registers by sending username and its shared instance
      *
-     * @param username
+     * @param username        see {@link RMIOperationsUtil#isValidName(String)}
      * @param clientInterface
-     * @return
+     * @return false if the username has been taken already or is not valid
      * @throws RemoteException
      */
     boolean joinToChatServer(String username, RMIClientInterface clientInterface) throws RemoteException;
 
+    /**
+     * Joins the chat room like {@link #joinToChatServer} and returns a token to resume the session with, e.g. after
+     * the server has been restarted
+     *
+     * @param username
+     * @param clientInterface
+     * @return resume token, or null if the username has been taken already or is not valid
+     * @throws RemoteException
+     */
+    String openSession(String username, RMIClientInterface clientInterface) throws RemoteException;
+
+    /**
+     * Reattaches a client to its session. The user keeps its status, peer and rooms without joining again, so the
+     * other users are not notified. Events held for the user since the restart are delivered.
+     *
+     * @param username
+     * @param resumeToken     token returned by {@link #openSession}
+     * @param clientInterface
+     * @return false if there is no such session or the token does not match, the client has to join again
+     * @throws RemoteException
+     */
+    boolean resumeSession(String username, String resumeToken, RMIClientInterface clientInterface)
+            throws RemoteException;
+
     /**
      * When a client wants to disconnect, sends that request to server
      *
@@ -49,7 +73,9 @@ public interface RMIServerInterface extends Remote {
      *
      * @return
      * @throws RemoteException
+     * @deprecated returns every user at once, use {@link #findUsers} instead
      */
+    @Deprecated
     List<RMIClientInterface> getAllAvailableUsers() throws RemoteException;
 
     /**
@@ -57,16 +83,201 @@ public interface RMIServerInterface extends Remote {
      *
      * @return
      * @throws RemoteException
+     * @deprecated returns every user at once, use {@link #findUsers} instead
      */
+    @Deprecated
     List<RMIClientInterface> getAllBusyUsers() throws RemoteException;
 
+    /**
+     * Searches the users of the chat room by name, a page at a time in username order. Pages are requested one after
+     * another by passing the cursor of a page to the following call.
+     *
+     * @param text   search text, empty for all users
+     * @param match
+     * @param status only users with this status, null for any
+     * @param cursor cursor of the previous page, null for the first page
+     * @param limit  maximum number of users
+     * @return page of names and statuses
+     * @throws RemoteException
+     */
+    UserPage findUsers(String text, NameMatch match, PresenceStatus status, String cursor, int limit)
+            throws RemoteException;
+
+    /**
+     * Renews the lease of a client. Clients should call it periodically, well within the lease duration, otherwise
+     * the server considers them dead and disconnects them.
+     *
+     * @param username
+     * @return lease duration in milliseconds, or 0 if the user is not connected (e.g. it has already been evicted)
+     * @throws RemoteException
+     */
+    long renewLease(String username) throws RemoteException;
+
+    /**
+     * Returns names and statuses of all users together with the presence version. Later changes are pushed to the
+     * clients as {@link PresenceDelta}s.
+     *
+     * @return snapshot of the chat room
+     * @throws RemoteException
+     */
+    PresenceSnapshot getPresenceSnapshot() throws RemoteException;
+
+    /**
+     * Sets which users the client wants to be notified about. Lobby events and presence deltas about other users are
+     * not sent to it, events about the user itself always are.
+     *
+     * @param username
+     * @param filter   null for everyone
+     * @throws RemoteException
+     */
+    void setInterestFilter(String username, InterestFilter filter) throws RemoteException;
+
     /**
      * Delivers a message from one peer to another
      *
      * @param peerUserName
      * @param message
-     * @throws RemoteException
+     * @throws RemoteException if a message is too long or could not be stored
      */
     void sendMessageToPeer(String peerUserName, String message) throws RemoteException;
 
+    /**
+     * Delivers several messages from one peer to another in a single call. Messages are delivered in list order.
+     *
+     * @param peerUserName
+     * @param messages
+     * @throws RemoteException if a message is too long or could not be stored
+     */
+    void sendMessagesToPeer(String peerUserName, List<String> messages) throws RemoteException;
+
+    /**
+     * Creates a chat room for group conversations. The creator becomes its first member.
+     *
+     * @param username
+     * @param roomName see {@link RMIOperationsUtil#isValidName(String)}
+     * @return false if there is a room with that name already or the name is not valid
+     * @throws RemoteException
+     */
+    boolean createRoom(String username, String roomName) throws RemoteException;
+
+    /**
+     * Joins an existing chat room
+     *
+     * @param username
+     * @param roomName
+     * @return false if there is no such room
+     * @throws RemoteException
+     */
+    boolean joinRoom(String username, String roomName) throws RemoteException;
+
+    /**
+     * Leaves a chat room. The room is removed when its last member leaves.
+     *
+     * @param username
+     * @param roomName
+     * @throws RemoteException
+     */
+    void leaveRoom(String username, String roomName) throws RemoteException;
+
+    /**
+     * Delivers a message to every member of a chat room. Only members may send to a room.
+     *
+     * @param username
+     * @param roomName
+     * @param message
+     * @return false if the room does not exist or the user is not a member
+     * @throws RemoteException if a message is too long or could not be stored
+     */
+    boolean sendMessageToRoom(String username, String roomName, String message) throws RemoteException;
+
+    /**
+     * Returns names of all chat rooms
+     *
+     * @return
+     * @throws RemoteException
+     */
+    List<String> getRoomNames() throws RemoteException;
+
+    /**
+     * Leaves a message for a user, who does not have to be connected. Messages for offline users wait in a mailbox
+     * and are delivered together when the user joins again.
+     *
+     * @param username
+     * @param recipientName
+     * @param message
+     * @return false if the recipient's mailbox is full, the server keeps no more mailboxes or the name is not valid
+     * @throws RemoteException if a message is too long or could not be stored
+     */
+    boolean sendMessageToUser(String username, String recipientName, String message) throws RemoteException;
+
+    /**
+     * Returns a page of the stored messages of a conversation, see
+     * {@link RMIOperationsUtil#directConversation(String, String)} and
+     * {@link RMIOperationsUtil#roomConversation(String)} for conversation ids. Pages are requested one after
+     * another by passing the next sequence number of a page to the following call.
+     *
+     * @param username     user asking for the history, must take part in the conversation
+     * @param conversation
+     * @param fromSequence sequence number of the first message, 0 or less for the latest messages
+     * @param limit        maximum number of messages
+     * @return
+     * @throws RemoteException
+     */
+    HistoryPage getHistory(String username, String conversation, long fromSequence, int limit) throws RemoteException;
+
+    /**
+     * Offers a file to the peer of the user's chat. Offering a file again with the same id resumes it. The file
+     * itself is not part of the offer, it is sent in chunks once the peer has accepted it.
+     *
+     * @param username
+     * @param offer
+     * @return false if the user is not in a chat, the offer is invalid or the user has too many open transfers
+     * @throws RemoteException
+     */
+    boolean offerTransfer(String username, TransferOffer offer) throws RemoteException;
+
+    /**
+     * Accepts or declines a file offered by the peer. A direct transfer is accepted with the address the sender
+     * should connect to, the server only passes it on.
+     *
+     * @param username      receiver
+     * @param transferId
+     * @param offset        bytes the receiver has already, -1 to decline
+     * @param directAddress "host:port" for a direct transfer, null to relay it through the server
+     * @throws RemoteException
+     */
+    void answerTransfer(String username, String transferId, long offset, String directAddress)
+            throws RemoteException;
+
+    /**
+     * Relays the next chunk of an accepted file to the receiver. Chunks have to be sent in file order and at most a
+     * window of them may be unacknowledged, see {@link RMIClientInterface#transferAccepted}.
+     *
+     * @param username sender
+     * @param chunk
+     * @return false if the transfer is not active any more or the chunk does not fit, the transfer is cancelled
+     * @throws RemoteException
+     */
+    boolean sendChunk(String username, FileChunk chunk) throws RemoteException;
+
+    /**
+     * Acknowledges the chunks the receiver has written, the sender is told so
+     *
+     * @param username   receiver
+     * @param transferId
+     * @param offset     bytes written so far, the size of the file once it has been received and verified
+     * @throws RemoteException
+     */
+    void acknowledgeChunks(String username, String transferId, long offset) throws RemoteException;
+
+    /**
+     * Cancels a transfer of the user, the other side is told so
+     *
+     * @param username
+     * @param transferId
+     * @param reason
+     * @throws RemoteException
+     */
+    void cancelTransfer(String username, String transferId, String reason) throws RemoteException;
+
 }
@@ -0,0 +1,28 @@
+package rmi.shared;
+
+import java.rmi.RemoteException;
+
+/**
+ * Thrown by the server when a client calls a method more often than it is allowed to. The call has not been
+ * executed, it may be repeated after the given delay.
+ */
+public class RateLimitedException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    private final String methodName;
+    private final long retryAfterMillis;
+
+    public RateLimitedException(String methodName, long retryAfterMillis) {
+        super("Too many calls of " + methodName + ", retry after " + retryAfterMillis + " ms");
+        this.methodName = methodName;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,92 @@
+package rmi.shared;
+
+import java.io.Serializable;
+
+/**
+ * A file one user offers to the peer of its chat. The receiver accepts it with the number of bytes it has already,
+ * so an interrupted transfer is resumed by offering the same file again.
+ */
+public class TransferOffer implements Serializable {
+    public static final int MAX_TRANSFER_ID_LENGTH = 64;
+    public static final int MAX_FILE_NAME_LENGTH = 255;
+    public static final int SHA256_BYTES = 32;
+
+    private static final long serialVersionUID = 1L;
+
+    private final String transferId;
+    private final String sender;
+    private final String fileName;
+    private final long size;
+    private final int chunkSize;
+    private final byte[] sha256;
+    private final boolean direct;
+
+    /**
+     * @param transferId unique id chosen by the sender
+     * @param sender
+     * @param fileName   name without any directory
+     * @param size       bytes
+     * @param chunkSize  bytes of each chunk but the last one
+     * @param sha256     digest of the whole file
+     * @param direct     true to send the file over a direct connection between the peers, false to relay it
+     *                   through the server
+     */
+    public TransferOffer(String transferId, String sender, String fileName, long size, int chunkSize, byte[] sha256,
+                         boolean direct) {
+        this.transferId = transferId;
+        this.sender = sender;
+        this.fileName = fileName;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.sha256 = sha256.clone();
+        this.direct = direct;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public byte[] getSha256() {
+        return sha256 == null ? null : sha256.clone();
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * An offer arrives deserialized, so its fields may be anything. Checks what the receiver relies on: the ids are
+     * present and bounded, the file name cannot leave the download directory and the digest is a SHA-256.
+     *
+     * @return true if the offer can be shown to the receiver
+     */
+    public boolean isWellFormed() {
+        return transferId != null && !transferId.isEmpty() && transferId.length() <= MAX_TRANSFER_ID_LENGTH
+                && RMIOperationsUtil.isValidName(sender)
+                && fileName != null && !fileName.isBlank() && fileName.length() <= MAX_FILE_NAME_LENGTH
+                && fileName.indexOf('/') < 0 && fileName.indexOf('\\') < 0 && fileName.indexOf('\0') < 0
+                && !fileName.equals(".") && !fileName.contains("..")
+                && sha256 != null && sha256.length == SHA256_BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return fileName + " (" + size + " bytes) from " + sender;
+    }
+}
@@ -0,0 +1,15 @@
+package rmi.shared;
+
+/**
+ * How clients talk to the server, chosen with the rmi.chat.transport setting
+ */
+public enum Transport {
+    /**
+     * Java RMI, the server calls back exported client objects
+     */
+    RMI,
+    /**
+     * One persistent connection per client with framed calls, the server pushes events on the same connection
+     */
+    NIO
+}
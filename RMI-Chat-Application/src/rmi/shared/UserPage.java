@@ -0,0 +1,36 @@
+package rmi.shared;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of a search in the user directory, in username order
+ */
+public class UserPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<UserPresence> users;
+    private final String nextCursor;
+
+    public UserPage(List<UserPresence> users, String nextCursor) {
+        this.users = users;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<UserPresence> getUsers() {
+        return users;
+    }
+
+    /**
+     * Cursor to ask for to get the next page. A page may hold fewer users than asked for and still have a next one.
+     *
+     * @return cursor or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
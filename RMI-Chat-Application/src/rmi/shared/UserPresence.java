@@ -0,0 +1,31 @@
+package rmi.shared;
+
+import java.io.Serializable;
+
+/**
+ * Username and status of a user. Sent by value, so reading it does not require a remote call.
+ */
+public class UserPresence implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String userName;
+    private final PresenceStatus status;
+
+    public UserPresence(String userName, PresenceStatus status) {
+        this.userName = userName;
+        this.status = status;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public PresenceStatus getStatus() {
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return userName + " (" + status + ")";
+    }
+}
@@ -0,0 +1,145 @@
+package rmi.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import rmi.shared.HistoryEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLogTest {
+    private static final String CONVERSATION = "alice|bob";
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void ignoresFilesThatAreNotSegments() throws IOException {
+        Files.writeString(directory.resolve("segment-old.log"), "not a segment");
+        Files.writeString(directory.resolve("segment-.log"), "");
+        Files.writeString(directory.resolve("segment-99999999999.log"), "");
+
+        MessageLog log = open();
+        try {
+            assertEquals(1, log.append(CONVERSATION, "alice", 1, "first"));
+        } finally {
+            log.close();
+        }
+        assertEquals("not a segment", Files.readString(directory.resolve("segment-old.log")));
+    }
+
+    @Test
+    void recoversFromDamagedLastRecord() throws IOException {
+        writeThreeMessages();
+        flipByte(lastRecordOffset() + LogSegment.HEADER_SIZE + 20);
+
+        assertRecoveredAndAppendable();
+    }
+
+    @Test
+    void recoversFromTornLastRecord() throws IOException {
+        writeThreeMessages();
+        int offset = lastRecordOffset();
+        int length = readInt(offset);
+        // Only the length made it to the disk, the rest of the record is missing
+        zero(offset + LogSegment.HEADER_SIZE, length);
+
+        assertRecoveredAndAppendable();
+    }
+
+    private void writeThreeMessages() throws IOException {
+        MessageLog log = open();
+        try {
+            log.append(CONVERSATION, "alice", 1, "first");
+            log.append(CONVERSATION, "bob", 2, "second");
+            log.append(CONVERSATION, "alice", 3, "third");
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * The records before the damaged one are kept, a new message takes its place and survives another restart
+     */
+    private void assertRecoveredAndAppendable() throws IOException {
+        MessageLog log = open();
+        try {
+            assertEquals(List.of("first", "second"), messages(log));
+            assertEquals(3, log.append(CONVERSATION, "bob", 4, "replacement"));
+        } finally {
+            log.close();
+        }
+
+        log = open();
+        try {
+            assertEquals(List.of("first", "second", "replacement"), messages(log));
+            assertEquals(4, log.append(CONVERSATION, "alice", 5, "after restart"));
+        } finally {
+            log.close();
+        }
+    }
+
+    private MessageLog open() throws IOException {
+        return MessageLog.open(directory, SEGMENT_BYTES, 60_000);
+    }
+
+    private static List<String> messages(MessageLog log) {
+        return log.getHistory(CONVERSATION, 1, MessageLog.MAX_PAGE_SIZE).getEntries().stream()
+                .map(HistoryEntry::getMessage)
+                .collect(Collectors.toList());
+    }
+
+    private Path segment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = files.filter(file -> file.getFileName().toString().matches("segment-\\d+\\.log"))
+                    .collect(Collectors.toList());
+            assertEquals(1, segments.size());
+            return segments.get(0);
+        }
+    }
+
+    private int lastRecordOffset() throws IOException {
+        int offset = 0;
+        int last = -1;
+        for (int length = readInt(offset); length > 0; length = readInt(offset)) {
+            last = offset;
+            offset += LogSegment.HEADER_SIZE + length;
+        }
+        assertTrue(last >= 0);
+        return last;
+    }
+
+    private int readInt(int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+            channel.read(buffer, position);
+            return buffer.flip().getInt();
+        }
+    }
+
+    private void flipByte(int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            channel.read(buffer, position);
+            buffer.put(0, (byte) ~buffer.get(0));
+            channel.write(buffer.rewind(), position);
+        }
+    }
+
+    private void zero(int position, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(length), position);
+        }
+    }
+}
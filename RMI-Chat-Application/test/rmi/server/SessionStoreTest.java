@@ -0,0 +1,121 @@
+package rmi.server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SessionStoreTest {
+    private static final SessionRecord ALICE = new SessionRecord("alice", "token-a", null, List.of(), null);
+    private static final SessionRecord ALICE_IN_CHAT = new SessionRecord("alice", "token-a", "bob", List.of("lobby"),
+            null);
+    private static final SessionRecord BOB = new SessionRecord("bob", "token-b", null, List.of("lobby"),
+            List.of("alice"));
+
+    @TempDir
+    Path directory;
+
+    private final List<SessionRecord> sessions = new ArrayList<>();
+
+    @BeforeEach
+    void writeSessions() throws IOException {
+        SessionStore store = SessionStore.open(directory);
+        store.start(() -> new ArrayList<>(sessions), 3_600_000);
+        // One journal entry per write, so the last entry is known
+        sessions.add(ALICE);
+        store.writeChanges();
+        sessions.add(BOB);
+        store.writeChanges();
+        sessions.set(0, ALICE_IN_CHAT);
+        store.writeChanges();
+        sessions.remove(BOB);
+        store.writeChanges();
+        store.close();
+    }
+
+    @Test
+    void recoversAllEntries() throws IOException {
+        long generation = generation();
+
+        SessionStore store = SessionStore.open(directory);
+
+        assertEquals(List.of(ALICE_IN_CHAT), store.getRestored());
+        assertEquals(generation + 1, generation());
+        store.close();
+    }
+
+    @Test
+    void dropsTornLastEntry() throws IOException {
+        long generation = generation();
+        // The removal of bob is "bob" as UTF after its type, cut it off in the middle
+        truncateJournal(2);
+
+        SessionStore store = SessionStore.open(directory);
+
+        assertEquals(List.of(ALICE_IN_CHAT, BOB), sorted(store.getRestored()));
+        assertEquals(generation + 1, generation());
+        assertEquals(12, Files.size(directory.resolve("sessions.journal")));
+        store.close();
+
+        // The torn entry is gone for good, the next start recovers the same sessions from the new snapshot
+        store = SessionStore.open(directory);
+        assertEquals(List.of(ALICE_IN_CHAT, BOB), sorted(store.getRestored()));
+        assertEquals(generation + 2, generation());
+        store.close();
+    }
+
+    @Test
+    void dropsEntryOfUnknownType() throws IOException {
+        Files.write(directory.resolve("sessions.journal"), new byte[]{7, 0, 0}, StandardOpenOption.APPEND);
+
+        SessionStore store = SessionStore.open(directory);
+
+        assertEquals(List.of(ALICE_IN_CHAT), store.getRestored());
+        store.close();
+    }
+
+    @Test
+    void ignoresJournalOfOlderGeneration() throws IOException {
+        byte[] journal = Files.readAllBytes(directory.resolve("sessions.journal"));
+        // Start a new generation from the current sessions, then put the old journal back
+        SessionStore.open(directory).close();
+        Files.write(directory.resolve("sessions.journal"), journal);
+
+        SessionStore store = SessionStore.open(directory);
+
+        assertEquals(List.of(ALICE_IN_CHAT), store.getRestored());
+        store.close();
+    }
+
+    private long generation() throws IOException {
+        try (InputStream file = Files.newInputStream(directory.resolve("sessions.snapshot"));
+             DataInputStream in = new DataInputStream(file)) {
+            in.readInt();
+            return in.readLong();
+        }
+    }
+
+    private void truncateJournal(int bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve("sessions.journal"), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - bytes);
+        }
+    }
+
+    private static List<SessionRecord> sorted(Collection<SessionRecord> records) {
+        List<SessionRecord> list = new ArrayList<>(records);
+        list.sort((first, second) -> first.getUserName().compareTo(second.getUserName()));
+        return list;
+    }
+}
@@ -0,0 +1,331 @@
+package rmi.shared;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameCodecTest {
+    private static final int ALL_FEATURES = FrameCodec.COMPRESSION | FrameCodec.USERNAME_IDS;
+    private static final int COMPRESSED = 0x40;
+
+    // Every combination of features, each with the default compression threshold and with every frame compressed
+    @ParameterizedTest
+    @ValueSource(ints = {0, FrameCodec.COMPRESSION, FrameCodec.USERNAME_IDS, ALL_FEATURES})
+    void roundTripsCall(int features) throws Exception {
+        for (int threshold : new int[]{FrameCodec.DEFAULT_COMPRESSION_THRESHOLD, 1}) {
+            Method method = RMIServerInterface.class.getMethod("sendMessagesToPeer", String.class, List.class);
+            String large = "x".repeat(70_000);
+            Object[] args = {"alice", List.of("hi", large, "", "ünïcödé")};
+
+            FrameCodec.Frame frame = decode(new FrameCodec(features, threshold),
+                    new FrameCodec(features, threshold).call(42, method, args));
+
+            assertEquals(FrameCodec.CALL, frame.getType());
+            assertEquals(42, frame.getId());
+            assertEquals(method, frame.getMethod());
+            assertEquals(Arrays.asList(args), Arrays.asList(frame.getArguments()));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, FrameCodec.COMPRESSION, FrameCodec.USERNAME_IDS, ALL_FEATURES})
+    void roundTripsEveryValue(int features) throws Exception {
+        Method method = RMIClientInterface.class.getMethod("getMessagesFromPeer", List.class);
+        ChatMessage message = new ChatMessage("bob", 1234, 7, "hello");
+        FileChunk chunk = new FileChunk("transfer", 65536, new byte[]{1, 2, 3});
+        UserPresence user = new UserPresence("carol", PresenceStatus.BUSY);
+        List<UserPresence> users = List.of(user, new UserPresence("dave", PresenceStatus.AVAILABLE));
+        Object[] args = {null, "text", true, 17, 1L << 40, message, chunk, user, new PresenceDelta(3, 4, users),
+                new PresenceSnapshot(5, users), List.of(List.of(1, List.of("nested"))), InterestFilter.everyone()};
+        FrameCodec encoder = new FrameCodec(features, 1);
+        FrameCodec decoder = new FrameCodec(features, 1);
+
+        Object[] decoded = decode(decoder, encoder.push(method, args)).getArguments();
+
+        assertEquals(args.length, decoded.length);
+        assertNull(decoded[0]);
+        assertEquals(Arrays.asList(args).subList(1, 5), Arrays.asList(decoded).subList(1, 5));
+        assertMessage(message, (ChatMessage) decoded[5]);
+        FileChunk decodedChunk = (FileChunk) decoded[6];
+        assertEquals("transfer", decodedChunk.getTransferId());
+        assertEquals(65536, decodedChunk.getOffset());
+        assertArrayEquals(new byte[]{1, 2, 3}, decodedChunk.getData());
+        assertTrue(decodedChunk.isIntact());
+        assertEquals(user.toString(), decoded[7].toString());
+        PresenceDelta delta = (PresenceDelta) decoded[8];
+        assertEquals(3, delta.getBaseVersion());
+        assertEquals(4, delta.getVersion());
+        assertUsers(users, delta.getChanges());
+        PresenceSnapshot snapshot = (PresenceSnapshot) decoded[9];
+        assertEquals(5, snapshot.getVersion());
+        assertUsers(users, snapshot.getUsers());
+        assertEquals(List.of(List.of(1, List.of("nested"))), decoded[10]);
+        assertTrue(((InterestFilter) decoded[11]).matches("anyone"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, FrameCodec.COMPRESSION, FrameCodec.USERNAME_IDS, ALL_FEATURES})
+    void roundTripsReplyAndError(int features) throws IOException {
+        FrameCodec encoder = new FrameCodec(features, 1);
+        FrameCodec decoder = new FrameCodec(features, 1);
+
+        FrameCodec.Frame reply = decode(decoder, encoder.reply(9, List.of("lobby", "games")));
+        FrameCodec.Frame error = decode(decoder, encoder.error(10, new RateLimitedException("joinRoom", 250)));
+
+        assertEquals(FrameCodec.REPLY, reply.getType());
+        assertEquals(9, reply.getId());
+        assertEquals(List.of("lobby", "games"), reply.getValue());
+        assertEquals(FrameCodec.ERROR, error.getType());
+        assertEquals(10, error.getId());
+        RateLimitedException exception = (RateLimitedException) error.getValue();
+        assertEquals("joinRoom", exception.getMethodName());
+        assertEquals(250, exception.getRetryAfterMillis());
+    }
+
+    @Test
+    void negotiatesHello() throws IOException {
+        FrameCodec.Frame hello = new FrameCodec().decode(body(FrameCodec.hello(ALL_FEATURES)));
+
+        assertEquals(FrameCodec.HELLO, hello.getType());
+        assertEquals(FrameCodec.USERNAME_IDS, FrameCodec.negotiate(hello, FrameCodec.USERNAME_IDS));
+        assertEquals(ALL_FEATURES, FrameCodec.negotiate(hello, ALL_FEATURES));
+    }
+
+    @Test
+    void compressesOnlyWithTheFeatureFromTheThreshold() throws IOException {
+        String text = "the same words again and again ".repeat(20);
+
+        ByteBuffer compressed = new FrameCodec(FrameCodec.COMPRESSION, 128).reply(1, text);
+        ByteBuffer small = new FrameCodec(FrameCodec.COMPRESSION, 128).reply(1, "short");
+        ByteBuffer plain = new FrameCodec(FrameCodec.USERNAME_IDS, 128).reply(1, text);
+
+        assertEquals(COMPRESSED, compressed.get(4) & COMPRESSED);
+        assertTrue(compressed.remaining() < plain.remaining());
+        assertEquals(0, small.get(4) & COMPRESSED);
+        assertEquals(0, plain.get(4) & COMPRESSED);
+        assertEquals(compressed.remaining() - 4, compressed.getInt(0));
+    }
+
+    @Test
+    void rejectsTruncatedCompressedFrame() throws IOException {
+        FrameCodec codec = new FrameCodec(FrameCodec.COMPRESSION, 1);
+        ByteBuffer body = body(codec.reply(1, "compress me ".repeat(50)));
+
+        for (int cut : new int[]{1, 4, body.remaining() / 2, body.remaining() - 6}) {
+            ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(body.array(), body.remaining() - cut));
+            assertThrows(IOException.class, () -> codec.decode(truncated));
+        }
+    }
+
+    @Test
+    void rejectsOversizedCompressedFrame() throws IOException {
+        FrameCodec codec = new FrameCodec(FrameCodec.COMPRESSION, 1);
+        ByteBuffer body = body(codec.reply(1, "compress me ".repeat(50)));
+
+        for (int rawLength : new int[]{FrameCodec.MAX_FRAME_BYTES, Integer.MAX_VALUE, -1}) {
+            ByteBuffer oversized = copy(body).putInt(1, rawLength);
+            assertThrows(IOException.class, () -> codec.decode(oversized));
+        }
+        // Claims more bytes than the deflated data holds
+        ByteBuffer longer = copy(body).putInt(1, body.getInt(1) + 100);
+        assertThrows(IOException.class, () -> codec.decode(longer));
+        // Inflates to more bytes than announced
+        ByteBuffer shorter = copy(body).putInt(1, body.getInt(1) - 1);
+        assertThrows(IOException.class, () -> codec.decode(shorter));
+    }
+
+    @Test
+    void rejectsCompressedFrameWithoutCompression() throws IOException {
+        ByteBuffer body = body(new FrameCodec(FrameCodec.COMPRESSION, 1).reply(1, "compress me ".repeat(50)));
+
+        assertThrows(IOException.class, () -> new FrameCodec(FrameCodec.USERNAME_IDS, 1).decode(body));
+    }
+
+    @Test
+    void rejectsGarbageAfterCompressedHeader() {
+        byte[] body = new byte[64];
+        body[0] = (byte) (FrameCodec.REPLY | COMPRESSED);
+        ByteBuffer.wrap(body).putInt(1, 100);
+        Arrays.fill(body, 5, body.length, (byte) 0x5A);
+
+        assertThrows(IOException.class, () -> new FrameCodec(FrameCodec.COMPRESSION, 1).decode(ByteBuffer.wrap(body)));
+    }
+
+    @Test
+    void sendsEachNameOnce() throws IOException {
+        List<UserPresence> users = users("user", 50);
+        FrameCodec encoder = new FrameCodec(FrameCodec.USERNAME_IDS, 1);
+        FrameCodec decoder = new FrameCodec(FrameCodec.USERNAME_IDS, 1);
+
+        ByteBuffer first = encoder.reply(1, new PresenceSnapshot(1, users));
+        ByteBuffer second = encoder.reply(2, new PresenceSnapshot(2, users));
+
+        assertTrue(second.remaining() < first.remaining() / 3);
+        assertUsers(users, ((PresenceSnapshot) decode(decoder, first).getValue()).getUsers());
+        assertUsers(users, ((PresenceSnapshot) decode(decoder, second).getValue()).getUsers());
+    }
+
+    @Test
+    void rejectsUnknownNameId() throws IOException {
+        List<UserPresence> users = users("user", 3);
+        FrameCodec encoder = new FrameCodec(FrameCodec.USERNAME_IDS, 1);
+        encoder.reply(1, new PresenceSnapshot(1, users));
+        ByteBuffer second = encoder.reply(2, new PresenceSnapshot(2, users));
+
+        // The decoder has not seen the frame that gave out the ids
+        IOException e = assertThrows(IOException.class,
+                () -> new FrameCodec(FrameCodec.USERNAME_IDS, 1).decode(body(second)));
+        assertTrue(e.getMessage().startsWith("Unknown username id"), e.getMessage());
+    }
+
+    @Test
+    void rollsBackNameIdsOfFailedFrame() throws IOException {
+        List<UserPresence> users = users("user", 3);
+        FrameCodec encoder = new FrameCodec(FrameCodec.USERNAME_IDS, 1);
+        FrameCodec decoder = new FrameCodec(FrameCodec.USERNAME_IDS, 1);
+        decode(decoder, encoder.reply(1, new PresenceSnapshot(1, users.subList(0, 1))));
+
+        // The names are written before the value that cannot be serialized
+        assertThrows(IOException.class, () -> encoder.reply(2, List.of(new PresenceSnapshot(2, users), new Object())));
+        assertThrows(IOException.class, () -> encoder.reply(3, List.of(new PresenceSnapshot(3, users),
+                "x".repeat(FrameCodec.MAX_FRAME_BYTES))));
+
+        ByteBuffer next = encoder.reply(4, new PresenceSnapshot(4, users));
+        assertUsers(users, ((PresenceSnapshot) decode(decoder, next).getValue()).getUsers());
+    }
+
+    @Test
+    void sendsNamesInlineBeyondTheLimit() throws IOException {
+        List<UserPresence> users = users("user", FrameCodec.MAX_USERNAME_IDS + 10);
+        FrameCodec encoder = new FrameCodec(FrameCodec.USERNAME_IDS, 1);
+        FrameCodec decoder = new FrameCodec(FrameCodec.USERNAME_IDS, 1);
+
+        for (int version = 1; version <= 2; version++) {
+            PresenceSnapshot snapshot = (PresenceSnapshot) decode(decoder,
+                    encoder.reply(version, new PresenceSnapshot(version, users))).getValue();
+            assertUsers(users, snapshot.getUsers());
+        }
+    }
+
+    @Test
+    void rejectsTooManyNewNames() {
+        // NEW_NAME references beyond the limit can only come from a broken or hostile peer
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(FrameCodec.REPLY);
+        bytes.writeBytes(new byte[8]);
+        bytes.write(11);
+        bytes.writeBytes(new byte[8]);
+        int count = FrameCodec.MAX_USERNAME_IDS + 1;
+        bytes.write((count & 0x7F) | 0x80);
+        bytes.write(count >>> 7);
+        for (int i = 0; i < count; i++) {
+            bytes.write(1);
+            bytes.write(0);
+            bytes.write(1);
+            bytes.write('a');
+            bytes.write(0);
+        }
+        ByteBuffer body = ByteBuffer.wrap(bytes.toByteArray());
+
+        IOException e = assertThrows(IOException.class, () -> new FrameCodec(FrameCodec.USERNAME_IDS, 1).decode(body));
+        assertEquals("Too many username ids", e.getMessage());
+    }
+
+    @Test
+    void limitsListDepth() throws IOException {
+        FrameCodec codec = new FrameCodec();
+        Object allowed = "leaf";
+        for (int i = 0; i < 8; i++) {
+            allowed = List.of(allowed);
+        }
+
+        assertEquals(allowed, decode(codec, codec.reply(1, allowed)).getValue());
+        ByteBuffer tooDeep = codec.reply(2, List.of(allowed));
+        assertThrows(IOException.class, () -> codec.decode(body(tooDeep)));
+    }
+
+    @Test
+    void filtersSerializedArgumentsOfCalls() throws Exception {
+        FrameCodec codec = new FrameCodec();
+        Method method = RMIServerInterface.class.getMethod("sendMessageToPeer", String.class, String.class);
+
+        ByteBuffer call = codec.call(1, method, new Object[]{"alice", new Date(0)});
+        assertThrows(InvalidClassException.class, () -> codec.decode(body(call)));
+        // Replies come from the server and may carry JDK types
+        assertEquals(new Date(0), decode(codec, codec.reply(2, new Date(0))).getValue());
+    }
+
+    @Test
+    void rejectsMalformedFrames() throws Exception {
+        FrameCodec codec = new FrameCodec();
+        Method method = RMIServerInterface.class.getMethod("sendMessageToPeer", String.class, String.class);
+        ByteBuffer call = body(codec.call(1, method, new Object[]{"alice", "hi"}));
+
+        ByteBuffer unknownMethod = copy(call).putShort(9, Short.MAX_VALUE);
+        ByteBuffer unknownType = copy(call).put(0, (byte) 0x3F);
+        ByteBuffer unknownTag = copy(call).put(12, (byte) 99);
+        ByteBuffer negativeLength = copy(call).putInt(13, -5);
+        ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(call.array(), call.remaining() - 1));
+
+        for (ByteBuffer body : List.of(unknownMethod, unknownType, unknownTag, negativeLength, truncated)) {
+            assertThrows(IOException.class, () -> codec.decode(body));
+        }
+    }
+
+    private static FrameCodec.Frame decode(FrameCodec decoder, ByteBuffer frame) throws IOException {
+        assertEquals(frame.remaining() - 4, frame.getInt(frame.position()));
+        return decoder.decode(body(frame));
+    }
+
+    /**
+     * The frame without its length prefix, as the connection hands it to the codec
+     */
+    private static ByteBuffer body(ByteBuffer frame) {
+        return ByteBuffer.wrap(Arrays.copyOfRange(frame.array(), frame.arrayOffset() + frame.position() + 4,
+                frame.arrayOffset() + frame.limit()));
+    }
+
+    private static ByteBuffer copy(ByteBuffer body) {
+        return ByteBuffer.wrap(Arrays.copyOf(body.array(), body.remaining()));
+    }
+
+    private static List<UserPresence> users(String prefix, int count) {
+        List<UserPresence> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            users.add(new UserPresence(prefix + i, PresenceStatus.values()[i % PresenceStatus.values().length]));
+        }
+        return users;
+    }
+
+    private static void assertUsers(List<UserPresence> expected, List<UserPresence> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getUserName(), actual.get(i).getUserName());
+            assertEquals(expected.get(i).getStatus(), actual.get(i).getStatus());
+        }
+    }
+
+    private static void assertMessage(ChatMessage expected, ChatMessage actual) {
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getText(), actual.getText());
+    }
+}
@@ -0,0 +1,161 @@
+package rmi.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import rmi.shared.ChatMessage;
+import rmi.shared.FrameCodec;
+import rmi.shared.HistoryEntry;
+import rmi.shared.HistoryPage;
+import rmi.shared.PresenceDelta;
+import rmi.shared.PresenceSnapshot;
+import rmi.shared.PresenceStatus;
+import rmi.shared.RMIClientInterface;
+import rmi.shared.UserPresence;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trade-off of the NIO transport's compression and username ids: the CPU time to encode and decode typical frames
+ * with each combination of features. Running the class itself prints the bytes each frame takes on the wire.
+ * <p>
+ * Username ids are measured in the steady state of a connection, where the other side knows every name already.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+    private static final String[] TEXTS = {
+            "Hello there, how are you doing?",
+            "I'm fine, thanks, and you?",
+            "Did you get my message? Let me check and get back to you.",
+            "haha ok, see you tomorrow!",
+            "What are you doing this weekend?"
+    };
+
+    @Param({"none", "ids", "deflate", "deflate+ids"})
+    public String features;
+
+    @Param({"message", "batch", "delta", "snapshot", "history"})
+    public String payload;
+
+    // Frames of fewer bytes are not compressed
+    @Param({"128"})
+    public int threshold;
+
+    private FrameCodec encoder;
+    private FrameCodec decoder;
+    private ByteBuffer frame;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        encoder = codec(features, threshold);
+        decoder = codec(features, threshold);
+        // The first frame gives out the username ids, the measured frame only refers to them
+        decoder.decode(body(encode(encoder, payload)));
+        frame = encode(encoder, payload);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        return encode(encoder, payload);
+    }
+
+    @Benchmark
+    public FrameCodec.Frame decode() throws IOException {
+        return decoder.decode(body(frame));
+    }
+
+    private static FrameCodec codec(String features, int threshold) {
+        int bits = 0;
+        if (features.contains("deflate")) {
+            bits |= FrameCodec.COMPRESSION;
+        }
+        if (features.contains("ids")) {
+            bits |= FrameCodec.USERNAME_IDS;
+        }
+        return new FrameCodec(bits, threshold);
+    }
+
+    private static ByteBuffer body(ByteBuffer frame) {
+        return ByteBuffer.wrap(frame.array(), frame.arrayOffset() + 4, frame.remaining() - 4).slice();
+    }
+
+    private static ByteBuffer encode(FrameCodec codec, String payload) throws IOException {
+        switch (payload) {
+            case "message":
+                return codec.push(method("getMessageFromPeer"), new Object[]{message(0)});
+            case "batch":
+                List<ChatMessage> messages = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    messages.add(message(i));
+                }
+                return codec.push(method("getMessagesFromPeer"), new Object[]{messages});
+            case "delta":
+                return codec.push(method("applyPresenceDelta"), new Object[]{new PresenceDelta(42, users(10))});
+            case "snapshot":
+                return codec.reply(1, new PresenceSnapshot(42, users(1000)));
+            case "history":
+                List<HistoryEntry> entries = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                    entries.add(new HistoryEntry(i, 1_700_000_000_000L + i * 1000L, i % 2 == 0 ? "alice" : "bob",
+                            TEXTS[i % TEXTS.length]));
+                }
+                return codec.reply(1, new HistoryPage("alice|bob", entries, 50, 50));
+            default:
+                throw new IllegalArgumentException(payload);
+        }
+    }
+
+    private static ChatMessage message(int i) {
+        return new ChatMessage("alice", 1_700_000_000_000L + i * 1000L, i, TEXTS[i % TEXTS.length]);
+    }
+
+    private static List<UserPresence> users(int count) {
+        List<UserPresence> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            users.add(new UserPresence("user" + i, i % 3 == 0 ? PresenceStatus.BUSY : PresenceStatus.AVAILABLE));
+        }
+        return users;
+    }
+
+    private static Method method(String name) {
+        for (Method method : RMIClientInterface.class.getMethods()) {
+            if (method.getName().equals(name)) {
+                return method;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    /**
+     * Prints the bytes of each frame on the wire, with the frame's length prefix
+     *
+     * @param args compression threshold, the default one if none is given
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int threshold = args.length > 0 ? Integer.parseInt(args[0]) : FrameCodec.DEFAULT_COMPRESSION_THRESHOLD;
+        String[] features = {"none", "ids", "deflate", "deflate+ids"};
+        System.out.printf("%-10s", "payload");
+        for (String feature : features) {
+            System.out.printf("%14s", feature);
+        }
+        System.out.println();
+        for (String payload : new String[]{"message", "batch", "delta", "snapshot", "history"}) {
+            System.out.printf("%-10s", payload);
+            for (String feature : features) {
+                FrameCodec codec = codec(feature, threshold);
+                encode(codec, payload);
+                System.out.printf("%14d", encode(codec, payload).remaining());
+            }
+            System.out.println();
+        }
+    }
+}
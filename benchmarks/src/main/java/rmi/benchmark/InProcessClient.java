@@ -0,0 +1,124 @@
+package rmi.benchmark;
+
+import rmi.shared.ChatMessage;
+import rmi.shared.FileChunk;
+import rmi.shared.PresenceDelta;
+import rmi.shared.RMIClientInterface;
+import rmi.shared.TransferOffer;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client implementation that lives in the same JVM as the server and is not exported, so callbacks are plain method
+ * calls and the benchmarks measure the server instead of the network.
+ */
+public class InProcessClient implements RMIClientInterface {
+    private final String userName;
+    private volatile boolean isBusy = false;
+    private final LongAdder received = new LongAdder();
+
+    public InProcessClient(String userName) {
+        this.userName = userName;
+    }
+
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    @Override
+    public String getUserName() {
+        return userName;
+    }
+
+    @Override
+    public boolean getIsBusy() {
+        return isBusy;
+    }
+
+    @Override
+    public void setIsBusy(boolean isBusy) {
+        this.isBusy = isBusy;
+    }
+
+    @Override
+    public void notifyNewUserJoined(String username) {
+        received.increment();
+    }
+
+    @Override
+    public void notifyUserLeft(String username) {
+        received.increment();
+    }
+
+    @Override
+    public void notifyPeeredUp(String username) {
+        isBusy = true;
+        received.increment();
+    }
+
+    @Override
+    public void notifyStatusChanged(String from, String to) {
+        received.increment();
+    }
+
+    @Override
+    public void peerReturnedHomePage(String from, String to) {
+        received.increment();
+    }
+
+    @Override
+    public void applyPresenceDelta(PresenceDelta delta) {
+        received.increment();
+    }
+
+    @Override
+    public void getMessageFromPeer(ChatMessage message) {
+        received.increment();
+    }
+
+    @Override
+    public void getMessagesFromPeer(List<ChatMessage> messages) {
+        received.add(messages.size());
+    }
+
+    @Override
+    public void getMailboxMessages(List<ChatMessage> messages) {
+        received.increment();
+    }
+
+    @Override
+    public void getMessageFromRoom(String roomName, ChatMessage message) {
+        received.increment();
+    }
+
+    @Override
+    public void notifyRoomMembershipChanged(String roomName, String username, boolean joined) {
+        received.increment();
+    }
+
+    @Override
+    public void transferOffered(TransferOffer offer) {
+        received.increment();
+    }
+
+    @Override
+    public void transferAccepted(String transferId, long offset, int windowChunks, String directAddress) {
+        received.increment();
+    }
+
+    @Override
+    public void receiveChunk(FileChunk chunk) {
+        received.increment();
+    }
+
+    @Override
+    public void chunksAcknowledged(String transferId, long offset) {
+        received.increment();
+    }
+
+    @Override
+    public void transferCancelled(String transferId, String reason) {
+        received.increment();
+    }
+}
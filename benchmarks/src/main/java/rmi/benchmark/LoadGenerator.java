@@ -0,0 +1,180 @@
+package rmi.benchmark;
+
+import rmi.server.ClientOutbox;
+import rmi.server.RMIServer;
+import rmi.shared.RMIServerInterface;
+
+import java.nio.file.Path;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless end-to-end load test. Starts a server on a local registry and runs a step for each user count: simulated
+ * clients join, peer up in pairs, exchange messages at a fixed rate, return home and disconnect. Every step reports
+ * the message throughput and the delivery latency percentiles, so the latency curve can be compared across user
+ * counts.
+ * <p>
+ * Settings are read from system properties:
+ * <ul>
+ * <li>{@code load.users} comma separated user counts, default {@code 100,500,1000,2000}</li>
+ * <li>{@code load.messagesPerSecond} messages each user sends to its peer per second, default 5</li>
+ * <li>{@code load.durationSeconds} how long each step exchanges messages, default 20</li>
+ * <li>{@code load.port} registry port, default 2299</li>
+ * <li>{@code load.senderThreads} threads that make the send calls, default 32</li>
+ * </ul>
+ * The server's rate limits are off unless {@code rmi.chat.rateLimit.enabled} is set.
+ */
+public class LoadGenerator {
+    private final int messagesPerSecond = Integer.getInteger("load.messagesPerSecond", 5);
+    private final int durationSeconds = Integer.getInteger("load.durationSeconds", 20);
+    private final int port = Integer.getInteger("load.port", 2299);
+    private final int senderThreads = Integer.getInteger("load.senderThreads", 32);
+
+    private final ExecutorService setupPool = Executors.newFixedThreadPool(senderThreads);
+    private RMIServer server;
+    private RMIServerInterface serverInterface;
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("rmi.chat.rateLimit.enabled") == null) {
+            System.setProperty("rmi.chat.rateLimit.enabled", "false");
+        }
+        int[] userCounts = Arrays.stream(System.getProperty("load.users", "100,500,1000,2000").split(","))
+                .map(String::trim)
+                .mapToInt(Integer::parseInt)
+                .toArray();
+        new LoadGenerator().run(userCounts);
+        System.exit(0);
+    }
+
+    private void run(int[] userCounts) throws Exception {
+        Path logDirectory = LogDirectories.create();
+        server = new RMIServer(logDirectory);
+        server.bind(port);
+        serverInterface = (RMIServerInterface) LocateRegistry.getRegistry("127.0.0.1", port).lookup("ServerInterface");
+
+        System.out.printf("%8s %10s %12s %10s %10s %10s %10s %10s %10s%n",
+                "users", "join ms", "msgs/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "sent", "delivered");
+        for (int users : userCounts) {
+            runStep(users);
+        }
+        setupPool.shutdown();
+        server.shutdown();
+        LogDirectories.delete(logDirectory);
+    }
+
+    private void runStep(int users) throws Exception {
+        int pairs = users / 2;
+        List<SimulatedClient> clients = new ArrayList<>(pairs * 2);
+        for (int i = 0; i < pairs * 2; i++) {
+            clients.add(new SimulatedClient("load" + users + "_" + i));
+        }
+
+        long joinStart = System.nanoTime();
+        runAll(clients.size(), i -> serverInterface.joinToChatServer(clients.get(i).getUserName(), clients.get(i)));
+        long joinMillis = (System.nanoTime() - joinStart) / 1_000_000;
+
+        // Keep the simulated clients' leases alive like the console client does
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+        long leaseDurationMillis = serverInterface.renewLease(clients.get(0).getUserName());
+        heartbeat.scheduleAtFixedRate(() -> clients.forEach(client -> {
+            try {
+                serverInterface.renewLease(client.getUserName());
+            } catch (Exception e) {
+                System.err.println("Lease renewal failed: " + e.getMessage());
+            }
+        }), leaseDurationMillis / 3, leaseDurationMillis / 3, TimeUnit.MILLISECONDS);
+
+        runAll(pairs, i -> serverInterface.peerUpWith(clients.get(2 * i).getUserName(),
+                clients.get(2 * i + 1).getUserName()));
+        // Don't let the join and peer-up notifications queue up in front of the first messages
+        awaitIdleOutboxes();
+        clients.forEach(SimulatedClient::drainLatencies);
+
+        // Every user sends to its peer; the recipient's name prefixes the text so it can tell its messages apart
+        LongAdder sent = new LongAdder();
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(senderThreads);
+        List<ScheduledFuture<?>> tasks = new ArrayList<>();
+        long periodMicros = 1_000_000L / messagesPerSecond;
+        for (int i = 0; i < clients.size(); i++) {
+            String recipient = clients.get(i ^ 1).getUserName();
+            long initialDelay = (long) (Math.random() * periodMicros);
+            tasks.add(senders.scheduleAtFixedRate(() -> {
+                try {
+                    serverInterface.sendMessageToPeer(recipient, recipient + "@" + System.nanoTime());
+                    sent.increment();
+                } catch (Exception e) {
+                    System.err.println("Send failed: " + e.getMessage());
+                }
+            }, initialDelay, periodMicros, TimeUnit.MICROSECONDS));
+        }
+        Thread.sleep(durationSeconds * 1000L);
+        tasks.forEach(task -> task.cancel(false));
+        senders.shutdown();
+        senders.awaitTermination(10, TimeUnit.SECONDS);
+        // Let the messages still in the outboxes or on their way to the clients arrive
+        awaitIdleOutboxes();
+
+        long[] latencies = clients.stream().map(SimulatedClient::drainLatencies).flatMapToLong(Arrays::stream)
+                .sorted().toArray();
+
+        heartbeat.shutdown();
+        runAll(pairs, i -> {
+            serverInterface.returnToHomePage(clients.get(2 * i).getUserName());
+            return null;
+        });
+        runAll(clients.size(), i -> {
+            serverInterface.disconnectFromChatServer(clients.get(i).getUserName());
+            return null;
+        });
+        clients.forEach(SimulatedClient::unexport);
+
+        System.out.printf("%8d %10d %12.0f %10.2f %10.2f %10.2f %10.2f %10d %10d%n",
+                users, joinMillis, (double) latencies.length / durationSeconds,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                percentile(latencies, 1.0), sent.sum(), latencies.length);
+    }
+
+    private void awaitIdleOutboxes() throws InterruptedException {
+        while (!server.getOutboxes().stream().allMatch(ClientOutbox::isIdle)) {
+            Thread.sleep(50);
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1_000_000.0;
+    }
+
+    @FunctionalInterface
+    private interface IndexedCall {
+        Object call(int index) throws Exception;
+    }
+
+    /**
+     * Makes the calls for all indexes in parallel and waits for them
+     */
+    private void runAll(int count, IndexedCall call) throws Exception {
+        List<Future<Object>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            Callable<Object> task = () -> call.call(index);
+            futures.add(setupPool.submit(task));
+        }
+        for (Future<Object> future : futures) {
+            future.get();
+        }
+    }
+}
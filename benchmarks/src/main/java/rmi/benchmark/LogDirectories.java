@@ -0,0 +1,28 @@
+package rmi.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Temporary message log directories, so benchmark runs neither share nor leave behind stored messages
+ */
+final class LogDirectories {
+
+    private LogDirectories() {
+    }
+
+    static Path create() throws IOException {
+        return Files.createTempDirectory("rmi-chat-log");
+    }
+
+    static void delete(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Could not delete " + directory + ": " + e.getMessage());
+        }
+    }
+}
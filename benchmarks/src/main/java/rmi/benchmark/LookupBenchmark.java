@@ -0,0 +1,74 @@
+package rmi.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import rmi.server.ConnectedUser;
+import rmi.server.PeerIndex;
+import rmi.server.UserRegistry;
+import rmi.shared.RMIClientInterface;
+import rmi.shared.RMIOperationsUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the scanning lookups of {@link RMIOperationsUtil} with the indexes the server uses instead. The scanning
+ * lookups are measured with in-process clients, in a real deployment every scanned user costs a remote call on top.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int users;
+
+    private final HashMap<String, String> peerMap = new HashMap<>();
+    private final List<RMIClientInterface> clientList = new ArrayList<>();
+    private final PeerIndex peerIndex = new PeerIndex();
+    private final UserRegistry registry = new UserRegistry();
+
+    private String lastUser;
+    private String lastPeer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < users; i++) {
+            String name = "user" + i;
+            InProcessClient client = new InProcessClient(name);
+            clientList.add(client);
+            registry.add(new ConnectedUser(name, client, null));
+        }
+        for (int i = 0; i + 1 < users; i += 2) {
+            peerMap.put("user" + i, "user" + (i + 1));
+            peerIndex.pair("user" + i, "user" + (i + 1));
+        }
+        // Worst case for the scans: the last user, looked up from the value side of the pairing
+        lastUser = "USER" + (users - 1);
+        lastPeer = "user" + (users - 1);
+    }
+
+    @Benchmark
+    public String findPeerUsernameScan() {
+        return RMIOperationsUtil.findPeerUsername(lastPeer, peerMap);
+    }
+
+    @Benchmark
+    public String findPeerIndexed() {
+        return peerIndex.findPeer(lastPeer);
+    }
+
+    @Benchmark
+    public RMIClientInterface findUserFromNameScan() {
+        return RMIOperationsUtil.findUserFromName(lastUser, clientList);
+    }
+
+    @Benchmark
+    public ConnectedUser findUserIndexed() {
+        return registry.find(lastUser);
+    }
+}
@@ -0,0 +1,80 @@
+package rmi.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import rmi.server.RMIServer;
+import rmi.shared.RMIClientInterface;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the RMI methods of the server with a chat room of the given size. Clients are in-process, so the numbers
+ * show the cost of the server's own bookkeeping and enqueueing, not of the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// In-process clients don't renew their leases, keep them from being evicted during the run. The benchmark calls
+// methods far more often than a real client may, so rate limits are off.
+@Fork(value = 1, jvmArgsAppend = {"-Drmi.chat.lease.durationMillis=86400000", "-Drmi.chat.rateLimit.enabled=false"})
+public class ServerOperationsBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int users;
+
+    private Path logDirectory;
+    private RMIServer server;
+    private InProcessClient newcomer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        logDirectory = LogDirectories.create();
+        server = new RMIServer(logDirectory);
+        for (int i = 0; i < users; i++) {
+            server.joinToChatServer("user" + i, new InProcessClient("user" + i));
+        }
+        server.peerUpWith("user0", "user1");
+        newcomer = new InProcessClient("newcomer");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.shutdown();
+        LogDirectories.delete(logDirectory);
+    }
+
+    @Benchmark
+    public void sendMessageToPeer() throws RemoteException {
+        server.sendMessageToPeer("user1", "Hello there, how are you doing?");
+    }
+
+    /**
+     * A join is measured together with the disconnect, otherwise the chat room would keep growing
+     */
+    @Benchmark
+    public boolean joinAndDisconnect() throws RemoteException {
+        boolean joined = server.joinToChatServer("newcomer", newcomer);
+        server.disconnectFromChatServer("newcomer");
+        return joined;
+    }
+
+    /**
+     * A peer-up is measured together with returning home, so both users are available again for the next call
+     */
+    @Benchmark
+    public boolean peerUpAndReturn() throws RemoteException {
+        boolean peered = server.peerUpWith("user2", "user3");
+        server.returnToHomePage("user2");
+        return peered;
+    }
+
+    @Benchmark
+    public List<RMIClientInterface> getAllAvailableUsers() throws RemoteException {
+        return server.getAllAvailableUsers();
+    }
+}
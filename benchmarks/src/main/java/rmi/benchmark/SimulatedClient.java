@@ -0,0 +1,165 @@
+package rmi.benchmark;
+
+import rmi.shared.ChatMessage;
+import rmi.shared.FileChunk;
+import rmi.shared.PresenceDelta;
+import rmi.shared.RMIClientInterface;
+import rmi.shared.TransferOffer;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Exported client used by the load generator. It has no console, it only records how long each message it receives
+ * from its peer was under way. Message texts are "recipient@nanoTime", the name of the receiving user and the
+ * {@link System#nanoTime()} of sending. Only messages addressed to this client are measured, its own come back too.
+ */
+public class SimulatedClient extends UnicastRemoteObject implements RMIClientInterface {
+    private final String userName;
+    private volatile boolean isBusy = false;
+    private final LongAdder notifications = new LongAdder();
+
+    // Written by one callback at a time, the server delivers the events of a client in order
+    private long[] latencies = new long[1024];
+    private int latencyCount = 0;
+
+    public SimulatedClient(String userName) throws RemoteException {
+        this.userName = userName;
+    }
+
+    /**
+     * Returns the recorded message latencies and starts recording from scratch
+     *
+     * @return latencies in nanoseconds
+     */
+    public synchronized long[] drainLatencies() {
+        long[] result = Arrays.copyOf(latencies, latencyCount);
+        latencyCount = 0;
+        return result;
+    }
+
+    public long getNotificationCount() {
+        return notifications.sum();
+    }
+
+    public void unexport() {
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (RemoteException e) {
+            // Already unexported
+        }
+    }
+
+    @Override
+    public String getUserName() {
+        return userName;
+    }
+
+    @Override
+    public boolean getIsBusy() {
+        return isBusy;
+    }
+
+    @Override
+    public void setIsBusy(boolean isBusy) {
+        this.isBusy = isBusy;
+    }
+
+    @Override
+    public void notifyNewUserJoined(String username) {
+        notifications.increment();
+    }
+
+    @Override
+    public void notifyUserLeft(String username) {
+        notifications.increment();
+    }
+
+    @Override
+    public void notifyPeeredUp(String username) {
+        isBusy = true;
+        notifications.increment();
+    }
+
+    @Override
+    public void notifyStatusChanged(String from, String to) {
+        notifications.increment();
+    }
+
+    @Override
+    public void peerReturnedHomePage(String from, String to) {
+        notifications.increment();
+    }
+
+    @Override
+    public void applyPresenceDelta(PresenceDelta delta) {
+        notifications.increment();
+    }
+
+    @Override
+    public void getMessageFromPeer(ChatMessage message) {
+        record(message, System.nanoTime());
+    }
+
+    @Override
+    public void getMessagesFromPeer(List<ChatMessage> messages) {
+        long now = System.nanoTime();
+        messages.forEach(message -> record(message, now));
+    }
+
+    private synchronized void record(ChatMessage message, long now) {
+        String text = message.getText();
+        // Messages this client sent itself come back as well, only measure the ones from the peer
+        if (!text.startsWith(userName + "@")) {
+            return;
+        }
+        long sentAt = Long.parseLong(text.substring(userName.length() + 1));
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+        latencies[latencyCount++] = now - sentAt;
+    }
+
+    @Override
+    public void getMailboxMessages(List<ChatMessage> messages) {
+        notifications.increment();
+    }
+
+    @Override
+    public void getMessageFromRoom(String roomName, ChatMessage message) {
+        record(message, System.nanoTime());
+    }
+
+    @Override
+    public void notifyRoomMembershipChanged(String roomName, String username, boolean joined) {
+        notifications.increment();
+    }
+
+    @Override
+    public void transferOffered(TransferOffer offer) {
+        notifications.increment();
+    }
+
+    @Override
+    public void transferAccepted(String transferId, long offset, int windowChunks, String directAddress) {
+        notifications.increment();
+    }
+
+    @Override
+    public void receiveChunk(FileChunk chunk) {
+        notifications.increment();
+    }
+
+    @Override
+    public void chunksAcknowledged(String transferId, long offset) {
+        notifications.increment();
+    }
+
+    @Override
+    public void transferCancelled(String transferId, String reason) {
+        notifications.increment();
+    }
+}